@@ -0,0 +1,117 @@
+/*
+
+Copyright (C) 2014 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of RapidSOA.
+
+RapidSOA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. The terms require you to include
+the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.rapid.soa;
+
+import javax.servlet.ServletContext;
+
+import com.rapid.soa.WSFactory.XSDmaxLength;
+import com.rapid.soa.WSFactory.XSDminOccurs;
+import com.rapid.soa.WSFactory.XSDorder;
+
+/*
+
+A made up request for the benchmarks, with nested complex types and an array of lines that can be made as large as needed
+
+*/
+
+public class BenchmarkOrder extends WSFactory.Request {
+	
+	public static class Address {
+		
+		@XSDorder(1) public String Street;
+		@XSDorder(2) public String Town;
+		@XSDorder(3) @XSDmaxLength(8) public String PostCode;
+		
+	}
+	
+	public static class Customer {
+		
+		@XSDorder(1) public int Id;
+		@XSDorder(2) public String Name;
+		@XSDorder(3) public Address Address;
+		@XSDorder(4) @XSDminOccurs(0) public java.sql.Date Since;
+		
+	}
+	
+	public static class Line {
+		
+		@XSDorder(1) public String Product;
+		@XSDorder(2) public int Quantity;
+		@XSDorder(3) public float Price;
+		@XSDorder(4) @XSDminOccurs(0) public String[] Note;
+		
+	}
+	
+	public static class Confirmation {
+		
+		@XSDorder(1) public String Reference;
+		@XSDorder(2) public Customer Customer;
+		@XSDorder(3) public float Total;
+		@XSDorder(4) @XSDminOccurs(0) public Line[] Line;
+		
+	}
+	
+	private String _reference;
+	private Customer _customer;
+	private Line[] _lines;
+	private int _priority;
+	
+	@XSDorder(1)
+	public String getReference() { return _reference; }
+	public void setReference(String reference) { _reference = reference; }
+	
+	@XSDorder(2)
+	public Customer getCustomer() { return _customer; }
+	public void setCustomer(Customer customer) { _customer = customer; }
+	
+	@XSDorder(3) @XSDminOccurs(0)
+	public Line[] getLine() { return _lines; }
+	public void setLine(Line[] lines) { _lines = lines; }
+	
+	// a boxed get with a primitive set, which reflection has to unbox into
+	@XSDorder(4) @XSDminOccurs(0)
+	public Integer getPriority() { return _priority; }
+	public void setPriority(int priority) { _priority = priority; }
+	
+	@Override
+	public Confirmation getResponse(ServletContext servletContext) throws Exception {
+		
+		Confirmation confirmation = new Confirmation();
+		
+		confirmation.Reference = _reference;
+		confirmation.Customer = _customer;
+		confirmation.Line = _lines;
+		
+		// add up the lines so the response has something to do
+		if (_lines != null) {
+			for (Line line : _lines) confirmation.Total += line.Quantity * line.Price;
+		}
+		
+		return confirmation;
+		
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+
+Copyright (C) 2014 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of RapidSOA.
+
+RapidSOA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. The terms require you to include
+the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.rapid.soa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.SOAPConstants;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.rapid.soa.WSFactory.WSDL;
+
+/*
+
+JMH benchmarks for each stage of making a response, run the main method (or JMH with -prof gc) to see the allocation rate as well as the throughput
+
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WSFactoryBenchmark {
+	
+	private static final String OPERATION = "benchmarkOrder";
+	private static final String END_POINT = "http://localhost/soa";
+	
+	// how many lines are in the order
+	@Param({"1", "100", "10000"})
+	public int lines;
+	
+	private WSFactory _wsFactory;
+	private MessageFactory _messageFactory;
+	private byte[] _request;
+	private Node _requestNode;
+	private Object _response;
+	private Source _responseSource;
+	
+	private static String getRequest(int lines) {
+		
+		StringBuilder request = new StringBuilder();
+		
+		request.append("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Header/><soapenv:Body>");
+		request.append("<BenchmarkOrder xmlns=\"" + WSFactory.NAMESPACE + "\">");
+		request.append("<Reference>ORD-0001</Reference>");
+		request.append("<Customer><Id>42</Id><Name>A Customer</Name><Address><Street>1 The Street</Street><Town>Town</Town><PostCode>AB1 2CD</PostCode></Address><Since>2014-03-05</Since></Customer>");
+		
+		if (lines > 0) {
+			
+			request.append("<ArrayOfLine>");
+			
+			for (int i = 0; i < lines; i++) {
+				request.append("<Line><Product>Product " + i + "</Product><Quantity>" + (i % 10 + 1) + "</Quantity><Price>" + (i % 100) + ".5</Price>");
+				request.append("<ArrayOfNote><Note>First note</Note><Note>Second note</Note></ArrayOfNote></Line>");
+			}
+			
+			request.append("</ArrayOfLine>");
+			
+		}
+		
+		request.append("<Priority>3</Priority>");
+		
+		request.append("</BenchmarkOrder></soapenv:Body></soapenv:Envelope>");
+		
+		return request.toString();
+		
+	}
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		// otherwise log4j defaults to debug and logging every message would be most of the work
+		Logger.getRootLogger().setLevel(Level.WARN);
+		
+		_wsFactory = WSFactory.getWSFactory();
+		
+		_wsFactory.addOperation(OPERATION, BenchmarkOrder.class);
+		
+		_messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
+		
+		_request = getRequest(lines).getBytes("UTF-8");
+		
+		// the request element as the dom parser binds it
+		Document body = _messageFactory.createMessage(null, new ByteArrayInputStream(_request)).getSOAPBody().extractContentAsDocument();
+		
+		_requestNode = body.getFirstChild();
+		
+		// the response to marshal
+		_response = _wsFactory.getRequestObject(OPERATION, _requestNode).getResponse(null);
+		
+		_responseSource = new DOMSource(_wsFactory.getSOAPMessage(_response).getSOAPPart().getEnvelope());
+		
+	}
+	
+	@Benchmark
+	public Object bindDOM() throws Exception {
+		return _wsFactory.getRequestObject(OPERATION, _requestNode);
+	}
+	
+	@Benchmark
+	public Object bindStream() throws Exception {
+		// this includes reading the envelope and validating the body as there's no way to stream without them
+		return _wsFactory.getRequestObject(OPERATION, new ByteArrayInputStream(_request), new ArrayList<String>());
+	}
+	
+	@Benchmark
+	public SOAPMessage marshalSAAJ() throws Exception {
+		return _wsFactory.getSOAPMessage(_response);
+	}
+	
+	@Benchmark
+	public int marshalStream() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		_wsFactory.writeSOAPMessage(_response, out);
+		return out.size();
+	}
+	
+	@Benchmark
+	public String roundTripDOM() throws Exception {
+		// as WSGateway does with the dom parser
+		SOAPMessage request = _messageFactory.createMessage(null, new ByteArrayInputStream(_request));
+		return WSFactory.getXMLString(new DOMSource(_wsFactory.getSOAPResponse(OPERATION, request, null).getSOAPPart().getEnvelope()));
+	}
+	
+	@Benchmark
+	public int roundTripStream() throws Exception {
+		// as WSGateway does with the streaming parser
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		_wsFactory.writeSOAPResponse(OPERATION, new ByteArrayInputStream(_request), null, out);
+		return out.size();
+	}
+	
+	@Benchmark
+	public Document wsdl() throws Exception {
+		return _wsFactory.getWSDL(OPERATION, END_POINT);
+	}
+	
+	@Benchmark
+	public WSDL cachedWSDL() throws Exception {
+		return _wsFactory.getCachedWSDL(OPERATION, END_POINT);
+	}
+	
+	@Benchmark
+	public String xmlString() {
+		return WSFactory.getXMLString(_responseSource);
+	}
+	
+	public static void main(String[] args) throws RunnerException {
+		
+		// run everything, with the gc profiler for the allocation rates
+		Options options = new OptionsBuilder()
+			.include(WSFactoryBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build();
+		
+		new Runner(options).run();
+		
+	}
+
+}
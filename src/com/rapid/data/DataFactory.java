@@ -25,17 +25,48 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 
 package com.rapid.data;
 
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.sql.Date;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.servlet.ServletContext;
 
+import org.apache.log4j.Logger;
+
 public class DataFactory {
 	
 	public static class Parameter {
@@ -86,6 +117,8 @@ public class DataFactory {
 		
 	public static class Parameters extends ArrayList<Parameter> {
 		
+		private static final long serialVersionUID = 1L;
+		
 		private boolean _toUpperCase;
 		
 		public boolean getToUpperCase() { return _toUpperCase; }
@@ -107,15 +140,954 @@ public class DataFactory {
 		
 	}
 	
+	public interface RowMapper<T> {
+		
+		// make an object from the current row, without moving the result set on
+		public T map(ResultSet resultSet) throws SQLException;
+		
+		// the mapper to use for every row of a result set, so anything worked out from its columns is only done once for it
+		public default RowMapper<T> bind(ResultSet resultSet) throws SQLException {
+			return this;
+		}
+		
+	}
+	
+	public static class RowIterator<T> implements Iterator<T>, AutoCloseable {
+		
+		// maps rows as they're asked for, so only those in the driver's fetch are in memory, closing the result set and statement once the last is read,
+		// or when closed early, and the data factory too if asked, which returns its connection to the pool
+		
+		private ResultSet _resultSet;
+		private Statement _statement;
+		private RowMapper<T> _mapper;
+		private DataFactory _dataFactory;
+		private boolean _fetched;
+		private boolean _hasNext;
+		private boolean _closed;
+		
+		private RowIterator(ResultSet resultSet, Statement statement, RowMapper<T> mapper, DataFactory dataFactory) {
+			_resultSet = resultSet;
+			_statement = statement;
+			_mapper = mapper;
+			_dataFactory = dataFactory;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			
+			if (_closed) return false;
+			
+			if (!_fetched) {
+				
+				try {
+					
+					_hasNext = _resultSet.next();
+					
+				} catch (SQLException ex) {
+					
+					close();
+					
+					throw new RuntimeException(ex);
+					
+				}
+				
+				_fetched = true;
+				
+				if (!_hasNext) close();
+				
+			}
+			
+			return _hasNext;
+			
+		}
+		
+		@Override
+		public T next() {
+			
+			if (!hasNext()) throw new NoSuchElementException();
+			
+			_fetched = false;
+			
+			try {
+				
+				return _mapper.map(_resultSet);
+				
+			} catch (SQLException ex) {
+				
+				close();
+				
+				throw new RuntimeException(ex);
+				
+			}
+			
+		}
+		
+		@Override
+		public void close() {
+			
+			if (_closed) return;
+			
+			_closed = true;
+			
+			_hasNext = false;
+			
+			// each close runs even if an earlier one throws, so a bad result set can't keep the connection from going back to the pool
+			try {
+				
+				try {
+					
+					_resultSet.close();
+					
+				} finally {
+					
+					try {
+						
+						_statement.close();
+						
+					} finally {
+						
+						if (_dataFactory != null) _dataFactory.close();
+						
+					}
+					
+				}
+				
+			} catch (SQLException ex) {
+				
+				throw new RuntimeException(ex);
+				
+			}
+			
+		}
+		
+	}
+	
+	// the column a property is read from, when it isn't the property name, or the name with underscores between its words
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface DBcolumn { public String name(); }
+	
+	// a property that isn't read from any column
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface DBignore {}
+	
+	public static class ObjectMapper<T> implements RowMapper<T> {
+		
+		// makes objects of a class from rows by matching its public fields and set methods to the column labels, the columns of each shape of result set
+		// are matched once and the rows then read by column index with the getter for the property's type, rather than looked up by name for every row
+		
+		private static final int OBJECT = 0;
+		private static final int STRING = 1;
+		private static final int INT = 2;
+		private static final int INTEGER = 3;
+		private static final int LONG = 4;
+		private static final int LONG_OBJECT = 5;
+		private static final int FLOAT = 6;
+		private static final int FLOAT_OBJECT = 7;
+		private static final int DOUBLE = 8;
+		private static final int DOUBLE_OBJECT = 9;
+		private static final int BOOLEAN = 10;
+		private static final int BOOLEAN_OBJECT = 11;
+		private static final int DATE = 12;
+		private static final int TIMESTAMP = 13;
+		private static final int BIG_DECIMAL = 14;
+		private static final int BYTES = 15;
+		
+		private static class Property {
+			
+			private Field _field;
+			private Method _setter;
+			private int _type;
+			
+			private Property(Field field, Method setter, Class<?> c) {
+				
+				_field = field;
+				_setter = setter;
+				
+				if (c == String.class) _type = STRING;
+				else if (c == int.class) _type = INT;
+				else if (c == Integer.class) _type = INTEGER;
+				else if (c == long.class) _type = LONG;
+				else if (c == Long.class) _type = LONG_OBJECT;
+				else if (c == float.class) _type = FLOAT;
+				else if (c == Float.class) _type = FLOAT_OBJECT;
+				else if (c == double.class) _type = DOUBLE;
+				else if (c == Double.class) _type = DOUBLE_OBJECT;
+				else if (c == boolean.class) _type = BOOLEAN;
+				else if (c == Boolean.class) _type = BOOLEAN_OBJECT;
+				else if (c == Date.class) _type = DATE;
+				// a timestamp is also a java.util.Date, and keeps the time
+				else if (c == Timestamp.class || c == java.util.Date.class) _type = TIMESTAMP;
+				else if (c == BigDecimal.class) _type = BIG_DECIMAL;
+				else if (c == byte[].class) _type = BYTES;
+				else _type = OBJECT;
+				
+			}
+			
+			private Object getValue(ResultSet resultSet, int column) throws SQLException {
+				
+				Object value;
+				
+				switch (_type) {
+				case STRING : return resultSet.getString(column);
+				// primitives stay at their defaults for nulls
+				case INT : return resultSet.getInt(column);
+				case LONG : return resultSet.getLong(column);
+				case FLOAT : return resultSet.getFloat(column);
+				case DOUBLE : return resultSet.getDouble(column);
+				case BOOLEAN : return resultSet.getBoolean(column);
+				case INTEGER : value = resultSet.getInt(column); break;
+				case LONG_OBJECT : value = resultSet.getLong(column); break;
+				case FLOAT_OBJECT : value = resultSet.getFloat(column); break;
+				case DOUBLE_OBJECT : value = resultSet.getDouble(column); break;
+				case BOOLEAN_OBJECT : value = resultSet.getBoolean(column); break;
+				case DATE : return resultSet.getDate(column);
+				case TIMESTAMP : return resultSet.getTimestamp(column);
+				case BIG_DECIMAL : return resultSet.getBigDecimal(column);
+				case BYTES : return resultSet.getBytes(column);
+				default : return resultSet.getObject(column);
+				}
+				
+				return resultSet.wasNull() ? null : value;
+				
+			}
+			
+			private void setValue(Object o, Object value) throws Exception {
+				if (_setter == null) {
+					_field.set(o, value);
+				} else {
+					_setter.invoke(o, value);
+				}
+			}
+			
+		}
+		
+		private static ConcurrentHashMap<Class<?>, ObjectMapper<?>> _mappers = new ConcurrentHashMap<Class<?>, ObjectMapper<?>>();
+		
+		private Class<T> _class;
+		private HashMap<String, Property> _properties;
+		// the properties to set from each column of a shape of result set, null where a column isn't used
+		private ConcurrentHashMap<String, Property[]> _plans;
+		
+		private ObjectMapper(Class<T> c) {
+			
+			_class = c;
+			_properties = new HashMap<String, Property>();
+			_plans = new ConcurrentHashMap<String, Property[]>();
+			
+			for (Field f : c.getFields()) {
+				
+				int modifiers = f.getModifiers();
+				
+				if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers) && f.getAnnotation(DBignore.class) == null) {
+					
+					DBcolumn column = f.getAnnotation(DBcolumn.class);
+					
+					addProperty(column == null ? f.getName() : column.name(), new Property(f, null, f.getType()));
+					
+				}
+				
+			}
+			
+			for (Method m : c.getMethods()) {
+				
+				if (m.getName().startsWith("set") && m.getName().length() > 3 && m.getParameterCount() == 1 && !Modifier.isStatic(m.getModifiers())) {
+					
+					String name = m.getName().substring(3);
+					
+					// only one of any overloaded set methods is used
+					if (!m.equals(getSetter(c, name))) continue;
+										
+					// the annotations can go on the set or the get method
+					Method getter = null;
+					try {
+						getter = c.getMethod("get" + name);
+					} catch (NoSuchMethodException ex) {}
+					
+					if (m.getAnnotation(DBignore.class) != null || (getter != null && getter.getAnnotation(DBignore.class) != null)) continue;
+					
+					DBcolumn column = m.getAnnotation(DBcolumn.class);
+					
+					if (column == null && getter != null) column = getter.getAnnotation(DBcolumn.class);
+					
+					addProperty(column == null ? name : column.name(), new Property(null, m, m.getParameterTypes()[0]));
+					
+				}
+				
+			}
+			
+		}
+		
+		private static Method getSetter(Class<?> c, String name) {
+			
+			// the set method taking what the get method returns, or the public field's type, otherwise the first by type name, so the choice
+			// doesn't depend on the order getMethods happens to return them in
+			
+			Class<?> type = null;
+			
+			try {
+				type = c.getMethod("get" + name).getReturnType();
+			} catch (NoSuchMethodException ex) {
+				try {
+					type = c.getField(name).getType();
+				} catch (NoSuchFieldException ex2) {}
+			}
+			
+			Method setter = null;
+			
+			for (Method m : c.getMethods()) {
+				
+				if (m.getName().equals("set" + name) && m.getParameterCount() == 1 && !Modifier.isStatic(m.getModifiers()) && !m.isBridge()) {
+					
+					Class<?> parameterType= m.getParameterTypes()[0];
+					
+					if (parameterType == type) return m;
+					
+					if (setter == null || parameterType.getName().compareTo(setter.getParameterTypes()[0].getName()) < 0) setter = m;
+					
+				}
+				
+			}
+			
+			return setter;
+			
+		}
+		
+		private void addProperty(String name, Property property) {
+			
+			if (property._field != null) property._field.setAccessible(true);
+			
+			if (property._setter != null) property._setter.setAccessible(true);
+			
+			_properties.put(getKey(name), property);
+			
+		}
+		
+		private static String getKey(String name) {
+			// PartyId, partyid, and PARTY_ID all match
+			return name.replace("_", "").toUpperCase();
+		}
+		
+		@SuppressWarnings("unchecked")
+		public static <T> ObjectMapper<T> getObjectMapper(Class<T> c) {
+			
+			ObjectMapper<T> mapper = (ObjectMapper<T>) _mappers.get(c);
+			
+			if (mapper == null) {
+				
+				mapper = new ObjectMapper<T>(c);
+				
+				_mappers.put(c, mapper);
+				
+			}
+			
+			return mapper;
+			
+		}
+		
+		private Property[] getPlan(ResultSet resultSet) throws SQLException {
+			
+			ResultSetMetaData metaData = resultSet.getMetaData();
+			
+			int count = metaData.getColumnCount();
+			
+			StringBuilder shape = new StringBuilder();
+			
+			for (int i = 1; i <= count; i++) shape.append(metaData.getColumnLabel(i)).append(',');
+			
+			Property[] properties = _plans.get(shape.toString());
+			
+			if (properties == null) {
+				
+				properties = new Property[count + 1];
+				
+				for (int i = 1; i <= count; i++) properties[i] = _properties.get(getKey(metaData.getColumnLabel(i)));
+				
+				_plans.put(shape.toString(), properties);
+				
+			}
+			
+			return properties;
+			
+		}
+		
+		@Override
+		public RowMapper<T> bind(ResultSet resultSet) throws SQLException {
+			
+			// the plan is held by the returned mapper, so mappers of different result sets on other threads don't share, or undo, each other's
+			Property[] properties = getPlan(resultSet);
+			
+			return rs -> map(rs, properties);
+			
+		}
+		
+		@Override
+		public T map(ResultSet resultSet) throws SQLException {
+			
+			// the columns are matched for every call, so use bind for more than one row
+			return map(resultSet, getPlan(resultSet));
+			
+		}
+		
+		private T map(ResultSet resultSet, Property[] properties) throws SQLException {
+			
+			try {
+				
+				T o = _class.newInstance();
+				
+				for (int i = 1; i < properties.length; i++) {
+					
+					Property property = properties[i];
+					
+					if (property != null) property.setValue(o, property.getValue(resultSet, i));
+					
+				}
+				
+				return o;
+				
+			} catch (SQLException ex) {
+				
+				throw ex;
+				
+			} catch (Exception ex) {
+				
+				throw new SQLException("Error mapping row to " + _class.getName(), ex);
+				
+			}
+			
+		}
+		
+	}
+	
+	public static class ConnectionPool {
+				
+		// keeps physical connections open between data factories, borrowers queue fairly for one of at most maxSize, and give up after maxWait milliseconds,
+		// connections idle for more than idleTimeout are closed down to minSize, and any borrowed for longer than leakTimeout are logged with where they were borrowed,
+		// each connection keeps its statementCacheSize most recently used prepared statements so the sql isn't parsed again
+		
+		public static class PooledConnection {
+			
+			private Connection _connection;
+			private long _lastUsed;
+			private long _borrowed;
+			private Exception _borrowedBy;
+			private boolean _leakReported;
+			private int _transactionIsolation;
+			private LinkedHashMap<String, PreparedStatement> _statements;
+			
+			public Connection getConnection() { return _connection; }
+			
+			private PooledConnection(Connection connection) {
+				_connection = connection;
+				_lastUsed = System.currentTimeMillis();
+			}
+			
+		}
+		
+		// idle connections that were used this recently are trusted without checking them
+		private static final long VALIDATION_INTERVAL = 1000;
+		// the servlet context attribute the pool for a web application is kept in
+		private static final String SERVLET_CONTEXT_ATTRIBUTE = "com.rapid.data.ConnectionPool";
+		
+		private String _driver;
+		private String _connectionString;
+		private String _user;
+		private String _password;
+		private int _minSize;
+		private int _maxSize;
+		private long _maxWait;
+		private long _idleTimeout;
+		private long _leakTimeout;
+		private int _validationTimeout;
+		private Semaphore _permits;
+		private LinkedBlockingDeque<PooledConnection> _idle;
+		private Set<PooledConnection> _borrowedConnections;
+		private AtomicInteger _size;
+		private ScheduledExecutorService _housekeeper;
+		private volatile int _statementCacheSize = 20;
+		private LongAdder _statementHits;
+		private LongAdder _statementMisses;
+		private volatile boolean _closed;
+		private Logger _logger;
+		
+		public int getMinSize() { return _minSize; }
+		public int getMaxSize() { return _maxSize; }
+		public int getSize() { return _size.get(); }
+		public int getIdle() { return _idle.size(); }
+		public int getBorrowed() { return _borrowedConnections.size(); }
+		public int getWaiting() { return _permits.getQueueLength(); }
+		public int getStatementCacheSize() { return _statementCacheSize; }
+		public void setStatementCacheSize(int statementCacheSize) { _statementCacheSize = statementCacheSize; }
+		public long getStatementCacheHits() { return _statementHits.sum(); }
+		public long getStatementCacheMisses() { return _statementMisses.sum(); }
+		
+		public ConnectionPool(String driver, String connectionString, String user, String password, int minSize, int maxSize, long maxWait, long idleTimeout, long leakTimeout, int validationTimeout) {
+			_driver = driver;
+			_connectionString = connectionString;
+			_user = user;
+			_password = password;
+			_minSize = Math.max(minSize, 0);
+			_maxSize = Math.max(maxSize, 1);
+			_maxWait = maxWait;
+			_idleTimeout = idleTimeout;
+			_leakTimeout = leakTimeout;
+			_validationTimeout = validationTimeout;
+			// fair, so borrowers get connections in the order they asked
+			_permits = new Semaphore(_maxSize, true);
+			_idle = new LinkedBlockingDeque<PooledConnection>();
+			_borrowedConnections = ConcurrentHashMap.newKeySet();
+			_size = new AtomicInteger();
+			_statementHits = new LongAdder();
+			_statementMisses = new LongAdder();
+			_logger = Logger.getLogger(DataFactory.class);
+			// a daemon thread closes idle connections, tops the pool up to its minimum, and looks for leaks
+			_housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "DataFactory-pool");
+				t.setDaemon(true);
+				return t;
+			});
+			long period = Math.max(100, Math.min(_idleTimeout > 0 ? _idleTimeout : 30000, _leakTimeout > 0 ? _leakTimeout : 30000) / 2);
+			_housekeeper.scheduleWithFixedDelay(() -> housekeep(), 0, period, TimeUnit.MILLISECONDS);
+		}
+		
+		public static ConnectionPool getConnectionPool(ServletContext servletContext) {
+			
+			// one pool for the web application, made on first use if jdbc.pool.maxSize is set, otherwise null and connections aren't pooled
+			
+			ConnectionPool pool = (ConnectionPool) servletContext.getAttribute(SERVLET_CONTEXT_ATTRIBUTE);
+			
+			if (pool == null && servletContext.getInitParameter("jdbc.pool.maxSize") != null) {
+				
+				synchronized (ConnectionPool.class) {
+					
+					pool = (ConnectionPool) servletContext.getAttribute(SERVLET_CONTEXT_ATTRIBUTE);
+					
+					if (pool == null) {
+						
+						pool = new ConnectionPool(
+							getInitParameter(servletContext, "jdbc.driver", "oracle.jdbc.driver.OracleDriver"),
+							servletContext.getInitParameter("jdbc.connectionstring"),
+							servletContext.getInitParameter("jdbc.user"),
+							servletContext.getInitParameter("jdbc.password"),
+							Integer.parseInt(getInitParameter(servletContext, "jdbc.pool.minSize", "0")),
+							Integer.parseInt(servletContext.getInitParameter("jdbc.pool.maxSize")),
+							Long.parseLong(getInitParameter(servletContext, "jdbc.pool.maxWait", "30000")),
+							Long.parseLong(getInitParameter(servletContext, "jdbc.pool.idleTimeout", "600000")),
+							Long.parseLong(getInitParameter(servletContext, "jdbc.pool.leakTimeout", "0")),
+							Integer.parseInt(getInitParameter(servletContext, "jdbc.pool.validationTimeout", "5")));
+							
+						pool.setStatementCacheSize(Integer.parseInt(getInitParameter(servletContext, "jdbc.pool.statementCacheSize", "20")));
+						
+						servletContext.setAttribute(SERVLET_CONTEXT_ATTRIBUTE, pool);
+						
+					}
+					
+				}
+				
+			}
+			
+			return pool;
+			
+		}
+		
+		public static void closeConnectionPool(ServletContext servletContext) {
+			
+			// for when the web application stops
+			
+			ConnectionPool pool = (ConnectionPool) servletContext.getAttribute(SERVLET_CONTEXT_ATTRIBUTE);
+			
+			if (pool != null) {
+				
+				servletContext.removeAttribute(SERVLET_CONTEXT_ATTRIBUTE);
+				
+				pool.close();
+				
+			}
+			
+		}
+		
+		private static String getInitParameter(ServletContext servletContext, String name, String defaultValue) {
+			String value = servletContext.getInitParameter(name);
+			return value == null ? defaultValue : value;
+		}
+		
+		private PooledConnection create() throws SQLException, ClassNotFoundException {
+			
+			Class.forName(_driver);
+			
+			PooledConnection pooledConnection = new PooledConnection(DriverManager.getConnection(_connectionString, _user, _password));
+			
+			// what release puts it back to if a borrower changes it
+			pooledConnection._transactionIsolation = pooledConnection._connection.getTransactionIsolation();
+			
+			// least recently used first, closing any beyond the cache size
+			pooledConnection._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					
+					if (size() <= _statementCacheSize) return false;
+					
+					try {
+						
+						eldest.getValue().close();
+						
+					} catch (SQLException ex) {
+						
+						_logger.debug("Error closing cached statement", ex);
+						
+					}
+					
+					return true;
+					
+				}
+				
+			};
+			
+			return pooledConnection;
+			
+		}
+		
+		public PreparedStatement getPreparedStatement(PooledConnection pooledConnection, String sql) throws SQLException {
+			
+			// the connection is only used by its borrower so the cache needs no locking
+			
+			PreparedStatement preparedStatement = pooledConnection._statements.get(sql);
+			
+			if (preparedStatement != null && !preparedStatement.isClosed()) {
+				
+				_statementHits.increment();
+				
+				preparedStatement.clearParameters();
+				
+			} else {
+				
+				_statementMisses.increment();
+				
+				preparedStatement = pooledConnection._connection.prepareStatement(sql);
+				
+				pooledConnection._statements.put(sql, preparedStatement);
+				
+			}
+			
+			return preparedStatement;
+			
+		}
+				
+		private void discard(PooledConnection pooledConnection) {
+			
+			_size.decrementAndGet();
+			
+			try {
+				
+				pooledConnection._connection.close();
+				
+			} catch (SQLException ex) {
+				
+				_logger.debug("Error closing pooled connection", ex);
+				
+			}
+			
+		}
+		
+		private boolean isValid(PooledConnection pooledConnection) {
+			
+			if (System.currentTimeMillis() - pooledConnection._lastUsed < VALIDATION_INTERVAL) return true;
+			
+			try {
+				
+				return pooledConnection._connection.isValid(_validationTimeout);
+				
+			} catch (SQLException ex) {
+				
+				return false;
+				
+			}
+			
+		}
+		
+		public PooledConnection borrow() throws SQLException, ClassNotFoundException {
+			
+			if (_closed) throw new SQLException("The connection pool is closed");
+			
+			try {
+				
+				if (!_permits.tryAcquire(_maxWait, TimeUnit.MILLISECONDS)) throw new SQLException("No connection was available after " + _maxWait + " milliseconds, all " + _maxSize + " are in use");
+				
+			} catch (InterruptedException ex) {
+				
+				Thread.currentThread().interrupt();
+				
+				throw new SQLException("Interrupted waiting for a connection", ex);
+				
+			}
+			
+			// the time spent waiting for the permit counts against waiting for a connection, so maxWait is the most a borrower waits altogether
+			long waitUntil = System.currentTimeMillis() + _maxWait;
+			
+			try {
+				
+				PooledConnection pooledConnection = null;
+				
+				while (pooledConnection == null) {
+					
+					// the most recently used first, as it's the most likely to still be good, leaving the others to go idle
+					pooledConnection = _idle.pollFirst();
+					
+					if (pooledConnection == null) {
+						
+						if (_size.incrementAndGet() <= _maxSize) {
+							
+							try {
+								
+								pooledConnection = create();
+								
+							} catch (SQLException | ClassNotFoundException | RuntimeException ex) {
+								
+								_size.decrementAndGet();
+								
+								throw ex;
+								
+							}
+							
+						} else {
+							
+							// the housekeeper has just made one, which will be idle any moment
+							_size.decrementAndGet();
+							
+							pooledConnection = _idle.pollFirst(Math.max(waitUntil - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+							
+							if (pooledConnection == null) throw new SQLException("No connection was available after " + _maxWait + " milliseconds");
+							
+						}
+						
+					} else if (!isValid(pooledConnection)) {
+						
+						// the database, or something in between, has dropped it
+						discard(pooledConnection);
+						
+						pooledConnection = null;
+						
+					}
+					
+				}
+				
+				pooledConnection._borrowed = System.currentTimeMillis();
+				pooledConnection._borrowedBy = _leakTimeout > 0 ? new Exception("Connection borrowed here") : null;
+				pooledConnection._leakReported = false;
+				
+				_borrowedConnections.add(pooledConnection);
+				
+				return pooledConnection;
+				
+			} catch (SQLException | ClassNotFoundException | RuntimeException ex) {
+				
+				_permits.release();
+				
+				throw ex;
+				
+			} catch (InterruptedException ex) {
+				
+				_permits.release();
+				
+				Thread.currentThread().interrupt();
+				
+				throw new SQLException("Interrupted waiting for a connection", ex);
+				
+			}
+			
+		}
+		
+		public void release(PooledConnection pooledConnection) {
+			
+			// only connections that were borrowed, and only once
+			if (!_borrowedConnections.remove(pooledConnection)) return;
+			
+			try {
+				
+				Connection connection = pooledConnection._connection;
+				
+				boolean reusable = !_closed && !connection.isClosed();
+				
+				if (reusable) {
+					
+					if (!connection.getAutoCommit()) {
+						
+						// anything not committed is not left for the next borrower
+						connection.rollback();
+						
+						connection.setAutoCommit(true);
+						
+					}
+					
+					// nor is anything else the borrower changed
+					if (connection.isReadOnly()) connection.setReadOnly(false);
+					
+					if (connection.getTransactionIsolation() != pooledConnection._transactionIsolation) connection.setTransactionIsolation(pooledConnection._transactionIsolation);
+					
+					pooledConnection._lastUsed = System.currentTimeMillis();
+					pooledConnection._borrowedBy = null;
+					
+					_idle.offerFirst(pooledConnection);
+					
+					// as in housekeep, in case the pool closed since we checked
+					if (_closed && _idle.remove(pooledConnection)) discard(pooledConnection);
+					
+				} else {
+					
+					discard(pooledConnection);
+					
+				}
+				
+			} catch (SQLException ex) {
+				
+				_logger.debug("Discarding pooled connection that could not be reset", ex);
+				
+				discard(pooledConnection);
+				
+			} finally {
+				
+				_permits.release();
+				
+			}
+			
+		}
+		
+		private void housekeep() {
+			
+			try {
+				
+				long now = System.currentTimeMillis();
+				
+				// close the connections idle the longest, which are at the end, while we have more than the minimum
+				if (_idleTimeout > 0) {
+					
+					PooledConnection pooledConnection;
+					
+					while (_size.get() > _minSize && (pooledConnection = _idle.pollLast()) != null) {
+						
+						if (now - pooledConnection._lastUsed > _idleTimeout) {
+							
+							discard(pooledConnection);
+							
+						} else {
+							
+							_idle.offerLast(pooledConnection);
+							
+							break;
+							
+						}
+						
+					}
+					
+				}
+				
+				// top up to the minimum so a quiet spell isn't followed by everyone logging on at once
+				while (!_closed && _size.get() < _minSize) {
+					
+					if (_size.incrementAndGet() > _maxSize) {
+						
+						_size.decrementAndGet();
+						
+						break;
+						
+					}
+					
+					PooledConnection pooledConnection;
+					
+					try {
+						
+						pooledConnection = create();
+						
+					} catch (Exception ex) {
+						
+						_size.decrementAndGet();
+						
+						throw ex;
+						
+					}
+					
+					_idle.offerLast(pooledConnection);
+					
+					// the pool may have been closed, and its idle connections drained, while this one was being made
+					if (_closed && _idle.remove(pooledConnection)) discard(pooledConnection);
+					
+				}
+				
+				if (_leakTimeout > 0) {
+					
+					for (PooledConnection pooledConnection : _borrowedConnections) {
+						
+						if (!pooledConnection._leakReported && now - pooledConnection._borrowed > _leakTimeout) {
+							
+							pooledConnection._leakReported = true;
+							
+							_logger.warn("Connection borrowed " + (now - pooledConnection._borrowed) + " milliseconds ago has not been returned, is a DataFactory not being closed?", pooledConnection._borrowedBy);
+							
+						}
+						
+					}
+					
+				}
+				
+			} catch (Exception ex) {
+				
+				// try again next time
+				_logger.error("Error maintaining connection pool", ex);
+				
+			}
+			
+		}
+		
+		public void close() {
+			
+			// idle connections are closed now, borrowed ones as they're released
+			
+			_closed = true;
+			
+			_housekeeper.shutdown();
+			
+			// let any housekeeping under way finish, what it makes after this is discarded by it
+			try {
+				
+				_housekeeper.awaitTermination(_maxWait, TimeUnit.MILLISECONDS);
+				
+			} catch (InterruptedException ex) {
+				
+				Thread.currentThread().interrupt();
+				
+			}
+			
+			PooledConnection pooledConnection;
+			
+			while ((pooledConnection = _idle.pollFirst()) != null) discard(pooledConnection);
+			
+		}
+		
+	}
+	
 	private String _connectionString;
 	private String _user;
 	private String _password;
 	private boolean _autoCommit;
+	private ConnectionPool _connectionPool;
+	private ConnectionPool.PooledConnection _pooledConnection;
+	private boolean _preparedStatementCached;
 	private Connection _connection; 
 	private String _sql;
 	private Statement _statement;
 	private PreparedStatement _preparedStatement;
 	private ResultSet _resultset;
+	private int _batchSize = 100;
+	private int _fetchSize = 100;
+	
+	public int getBatchSize() { return _batchSize; }
+	public void setBatchSize(int batchSize) { _batchSize = batchSize; }
+	public int getFetchSize() { return _fetchSize; }
+	public void setFetchSize(int fetchSize) { _fetchSize = fetchSize; }
 	
 	public DataFactory(String connectionString, String user, String password) {
 		_connectionString = connectionString;
@@ -136,6 +1108,7 @@ public class DataFactory {
 		_user = servletContext.getInitParameter("jdbc.user");
 		_password = servletContext.getInitParameter("jdbc.password");
 		_autoCommit = true;
+		_connectionPool = ConnectionPool.getConnectionPool(servletContext);
 	}
 	
 	public DataFactory(ServletContext servletContext, boolean autoCommit) {
@@ -143,15 +1116,37 @@ public class DataFactory {
 		_user = servletContext.getInitParameter("jdbc.user");
 		_password = servletContext.getInitParameter("jdbc.password");
 		_autoCommit = autoCommit;
+		_connectionPool = ConnectionPool.getConnectionPool(servletContext);
+	}
+	
+	public DataFactory(ConnectionPool connectionPool) {
+		_connectionPool = connectionPool;
+		_autoCommit = true;
+	}
+	
+	public DataFactory(ConnectionPool connectionPool, boolean autoCommit) {
+		_connectionPool = connectionPool;
+		_autoCommit = autoCommit;
 	}
 	
 	public Connection getConnection() throws SQLException, ClassNotFoundException {
 		
 		if (_connection == null) {
 			
-			Class.forName("oracle.jdbc.driver.OracleDriver");
-			
-			_connection = DriverManager.getConnection(_connectionString, _user, _password);
+			if (_connectionPool == null) {
+				
+				Class.forName("oracle.jdbc.driver.OracleDriver");
+				
+				_connection = DriverManager.getConnection(_connectionString, _user, _password);
+				
+			} else {
+				
+				// borrowed until close
+				_pooledConnection = _connectionPool.borrow();
+				
+				_connection = _pooledConnection.getConnection();
+				
+			}
 			
 			_connection.setAutoCommit(_autoCommit);
 			
@@ -179,7 +1174,13 @@ public class DataFactory {
 				
 	}
 	
-	public PreparedStatement getPreparedStatement(String sql, Parameters parameters) throws SQLException, ClassNotFoundException  {
+	private PreparedStatement prepareStatement(String sql) throws SQLException, ClassNotFoundException  {
+		
+		return prepareStatement(sql, true);
+		
+	}
+	
+	private PreparedStatement prepareStatement(String sql, boolean cache) throws SQLException, ClassNotFoundException  {
 		
 		_sql = sql;
 		
@@ -187,9 +1188,28 @@ public class DataFactory {
 		
 		if (_resultset != null) _resultset.close();
 		
-		if (_preparedStatement != null) _preparedStatement.close();	
+		// cached statements stay open for the next time the sql is used on the connection
+		if (_preparedStatement != null && !_preparedStatementCached) _preparedStatement.close();
 		
-		_preparedStatement = _connection.prepareStatement(_sql);
+		if (cache && _pooledConnection != null && _connectionPool.getStatementCacheSize() > 0) {
+			
+			_preparedStatement = _connectionPool.getPreparedStatement(_pooledConnection, _sql);
+			
+			_preparedStatementCached = true;
+			
+		} else {
+			
+			_preparedStatement = _connection.prepareStatement(_sql);
+			
+			_preparedStatementCached = false;
+			
+		}
+				
+		return _preparedStatement;
+		
+	}
+	
+	private void setParameters(PreparedStatement preparedStatement, Parameters parameters) throws SQLException {
 		
 		int i = 0;
 		
@@ -198,30 +1218,38 @@ public class DataFactory {
 			i++;
 			
 			switch (parameter.getType()) {
-			case Parameter.NULL : _preparedStatement.setNull(i, java.sql.Types.NULL); break;
+			case Parameter.NULL : preparedStatement.setNull(i, java.sql.Types.NULL); break;
 			case Parameter.STRING : 											
 				if (parameter.getString() == null) {
-					_preparedStatement.setNull(i, java.sql.Types.NULL);
+					preparedStatement.setNull(i, java.sql.Types.NULL);
 				} else {
 					if (parameters.getToUpperCase()) {
-						_preparedStatement.setString(i, parameter.getString().toUpperCase());
+						preparedStatement.setString(i, parameter.getString().toUpperCase());
 					} else {
-						_preparedStatement.setString(i, parameter.getString());
+						preparedStatement.setString(i, parameter.getString());
 					}
 				}
 				break;
 			case Parameter.DATE : 				
 				if (parameter.getDate() == null) {
-					_preparedStatement.setNull(i, java.sql.Types.NULL);
+					preparedStatement.setNull(i, java.sql.Types.NULL);
 				} else {
-					_preparedStatement.setDate(i, parameter.getDate());
+					preparedStatement.setDate(i, parameter.getDate());
 				}
 				break;
-			case Parameter.INTEGER : _preparedStatement.setInt(i, parameter.getInteger()); break;
-			case Parameter.FLOAT : _preparedStatement.setFloat(i, parameter.getFloat()); break;
+			case Parameter.INTEGER : preparedStatement.setInt(i, parameter.getInteger()); break;
+			case Parameter.FLOAT : preparedStatement.setFloat(i, parameter.getFloat()); break;
 			}						
 		}
 		
+	}
+	
+	public PreparedStatement getPreparedStatement(String sql, Parameters parameters) throws SQLException, ClassNotFoundException  {
+		
+		prepareStatement(sql);
+		
+		setParameters(_preparedStatement, parameters);
+		
 		return _preparedStatement;
 		
 	}
@@ -246,12 +1274,168 @@ public class DataFactory {
 				
 	}
 	
+	public <T> T getPreparedObject(String sql, Parameters parameters, Class<T> c) throws SQLException, ClassNotFoundException {
+		
+		// like getPreparedScalar, the first row, or null if there are none
+		
+		_resultset = getPreparedStatement(sql, parameters).executeQuery();
+		
+		T result = null;
+		
+		if (_resultset.next()) result = ObjectMapper.getObjectMapper(c).bind(_resultset).map(_resultset);
+		
+		return result;
+		
+	}
+	
+	public <T> ArrayList<T> getPreparedList(String sql, Parameters parameters, Class<T> c) throws SQLException, ClassNotFoundException {
+		
+		_resultset = getPreparedStatement(sql, parameters).executeQuery();
+		
+		RowMapper<T> mapper = ObjectMapper.getObjectMapper(c).bind(_resultset);
+		
+		ArrayList<T> results = new ArrayList<T>();
+		
+		while (_resultset.next()) results.add(mapper.map(_resultset));
+		
+		return results;
+		
+	}
+	
+	public <T> Stream<T> getPreparedStream(String sql, Parameters parameters, Class<T> c, boolean closeDataFactory) throws SQLException, ClassNotFoundException {
+		
+		return getPreparedStream(sql, parameters, ObjectMapper.getObjectMapper(c), closeDataFactory);
+		
+	}
+	
 	public int getPreparedUpdate(String sql, Parameters parameters) throws SQLException, ClassNotFoundException {
 		
 		return getPreparedStatement(sql, parameters).executeUpdate();
 		
 	}	
 	
+	public <T> RowIterator<T> getPreparedRows(String sql, Parameters parameters, RowMapper<T> mapper) throws SQLException, ClassNotFoundException {
+		
+		return getPreparedRows(sql, parameters, mapper, false);
+		
+	}
+	
+	public <T> RowIterator<T> getPreparedRows(String sql, Parameters parameters, RowMapper<T> mapper, boolean closeDataFactory) throws SQLException, ClassNotFoundException {
+		
+		// set closeDataFactory when the rows are returned in a response, so the data factory is closed once they've been written
+		
+		// never a cached statement, which could be reused or pushed out of the cache, and closed, by other sql while the rows are still being read
+		PreparedStatement preparedStatement = prepareStatement(sql, false);
+		
+		setParameters(preparedStatement, parameters);
+		
+		preparedStatement.setFetchSize(_fetchSize);
+		
+		ResultSet resultSet = preparedStatement.executeQuery();
+		
+		RowIterator<T> rows = new RowIterator<T>(resultSet, preparedStatement, mapper.bind(resultSet), closeDataFactory ? this : null);
+		
+		// the iterator closes them now, not us when we're next used
+		_preparedStatement = null;
+		
+		_resultset = null;
+		
+		return rows;
+		
+	}
+	
+	public <T> Stream<T> getPreparedStream(String sql, Parameters parameters, RowMapper<T> mapper) throws SQLException, ClassNotFoundException {
+		
+		return getPreparedStream(sql, parameters, mapper, false);
+		
+	}
+	
+	public <T> Stream<T> getPreparedStream(String sql, Parameters parameters, RowMapper<T> mapper, boolean closeDataFactory) throws SQLException, ClassNotFoundException {
+		
+		RowIterator<T> rows = getPreparedRows(sql, parameters, mapper, closeDataFactory);
+		
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED), false).onClose(rows::close);
+		
+	}
+	
+	public int[] getPreparedBatchUpdate(String sql, List<Parameters> rows) throws SQLException, ClassNotFoundException {
+		
+		return getPreparedBatchUpdate(sql, rows, _batchSize);
+		
+	}
+	
+	public int[] getPreparedBatchUpdate(String sql, List<Parameters> rows, int batchSize) throws SQLException, ClassNotFoundException {
+		
+		// one round trip per batchSize rows rather than per row, returning the update count of each row, or Statement.SUCCESS_NO_INFO if the driver doesn't say
+		
+		int[] counts = new int[rows.size()];
+		
+		if (rows.isEmpty()) return counts;
+		
+		batchSize = Math.max(batchSize, 1);
+		
+		PreparedStatement preparedStatement = prepareStatement(sql);
+		
+		// with auto commit the rows are committed together, or not at all, rather than a batch at a time, or however the driver
+		// commits a batch that fails part way through
+		boolean transaction = _autoCommit;
+		
+		if (transaction) _connection.setAutoCommit(false);
+		
+		try {
+			
+			int executed = 0;
+			
+			for (int i = 0; i < rows.size(); i++) {
+				
+				setParameters(preparedStatement, rows.get(i));
+				
+				preparedStatement.addBatch();
+				
+				if (i + 1 - executed == batchSize || i == rows.size() - 1) {
+					
+					int[] batchCounts = preparedStatement.executeBatch();
+					
+					System.arraycopy(batchCounts, 0, counts, executed, Math.min(batchCounts.length, i + 1 - executed));
+					
+					executed = i + 1;
+					
+				}
+				
+			}
+			
+			if (transaction) _connection.commit();
+			
+		} catch (SQLException | RuntimeException ex) {
+			
+			try {
+				
+				// a cached statement mustn't keep the failed rows for its next use
+				preparedStatement.clearBatch();
+				
+			} catch (SQLException clearEx) {
+				
+				// the failure that matters is the batch's
+				ex.addSuppressed(clearEx);
+				
+			} finally {
+				
+				if (transaction) _connection.rollback();
+				
+			}
+			
+			throw ex;
+			
+		} finally {
+			
+			if (transaction) _connection.setAutoCommit(true);
+			
+		}
+		
+		return counts;
+		
+	}
+	
 	public void commit() throws SQLException {
 		
 		if (_connection != null) _connection.commit();
@@ -265,14 +1449,54 @@ public class DataFactory {
 	}
 	
 	public void close() throws SQLException {
-										
-		if (_resultset != null) _resultset.close();
-		
-		if (_statement != null) _statement.close();
-		
-		if (_preparedStatement != null) _preparedStatement.close();
 		
-		if (_connection != null) _connection.close();
+		// each close runs even if an earlier one throws, so a pooled connection, and its permit, always go back to the pool
+		try {
+			
+			try {
+				
+				if (_resultset != null) _resultset.close();
+				
+			} finally {
+				
+				try {
+					
+					if (_statement != null) _statement.close();
+					
+				} finally {
+					
+					try {
+						
+						if (_preparedStatement != null && !_preparedStatementCached) _preparedStatement.close();
+						
+					} finally {
+						
+						_preparedStatement = null;
+						
+					}
+					
+				}
+				
+			}
+			
+		} finally {
+			
+			if (_pooledConnection != null) {
+				
+				// back to the pool rather than closed, and a new one borrowed if this data factory is used again
+				_connectionPool.release(_pooledConnection);
+				
+				_pooledConnection = null;
+				
+				_connection = null;
+				
+			} else if (_connection != null) {
+				
+				_connection.close();
+				
+			}
+			
+		}
 		
 	}
 
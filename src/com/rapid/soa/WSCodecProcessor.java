@@ -0,0 +1,620 @@
+/*
+
+Copyright (C) 2014 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of RapidSOA.
+
+RapidSOA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. The terms require you to include
+the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.rapid.soa;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+
+/*
+
+This optional annotation processor generates a WSFactory.Codec for each WSFactory.Request class, its response class, and
+the classes they use. The codecs bind and marshal with straight-line code instead of reflection, and are picked up by
+WSFactory.addOperation when they are on the classpath. Run it with javac -processor com.rapid.soa.WSCodecProcessor
+
+Classes with properties the codecs can't handle exactly as the reflection does are skipped, and keep using reflection.
+
+*/
+
+@SupportedAnnotationTypes("*")
+public class WSCodecProcessor extends AbstractProcessor {
+
+	private static final String REQUEST = "com.rapid.soa.WSFactory.Request";
+	private static final String ASYNC_REQUEST = "com.rapid.soa.WSFactory.AsyncRequest";
+	private static final String XSD_PREFIX = "com.rapid.soa.WSFactory.XSD";
+
+	private static class Property {
+
+		private String _name;
+		private String _getter;
+		private String _setter;
+		private String _field;
+		private TypeMirror _type;
+		private int _order;
+
+		public String getName() { return _name; }
+		// the name of the get method or field, which array types are named after rather than any XSDname
+		public String getPropertyName() { return _field == null ? _getter.substring(3) : _field; }
+		public TypeMirror getType() { return _type; }
+		public int getOrder() { return _order; }
+		public boolean isArray() { return _type.getKind() == TypeKind.ARRAY; }
+		public TypeMirror getComponentType() { return isArray() ? ((ArrayType) _type).getComponentType() : _type; }
+
+		public Property(String name, String getter, String setter, String field, TypeMirror type, int order) {
+			_name = name;
+			_getter = getter;
+			_setter = setter;
+			_field = field;
+			_type = type;
+			_order = order;
+		}
+
+		public String getValue(String object) {
+			return _field == null ? object + "." + _getter + "()" : object + "." + _field;
+		}
+
+		public String setValue(String object, String value) {
+			return _field == null ? object + "." + _setter + "(" + value + ");" : object + "." + _field + " = " + value + ";";
+		}
+
+	}
+
+	private Elements _elements;
+	private Types _types;
+	// classes we've looked at, by binary name, and their properties, or null if they can't have a codec
+	private Map<String, List<Property>> _classes;
+	private Map<String, TypeElement> _typeElements;
+	private Set<String> _generated;
+
+	@Override
+	public synchronized void init(ProcessingEnvironment processingEnv) {
+		super.init(processingEnv);
+		_elements = processingEnv.getElementUtils();
+		_types = processingEnv.getTypeUtils();
+		_classes = new HashMap<String, List<Property>>();
+		_typeElements = new HashMap<String, TypeElement>();
+		_generated = new HashSet<String>();
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+		// find the request classes, and from them everything else
+		for (Element e : roundEnv.getRootElements()) addRequests(e);
+
+		// drop any class that uses a class that can't have a codec, until nothing changes
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Map.Entry<String, List<Property>> entry : _classes.entrySet()) {
+				if (entry.getValue() != null) {
+					for (Property p : entry.getValue()) {
+						TypeMirror t = p.getComponentType();
+						if (t.getKind() == TypeKind.DECLARED && !isSimpleType(t) && _classes.get(getBinaryName(t)) == null) {
+							note(_typeElements.get(entry.getKey()), "no codec as " + p.getName() + " has no codec");
+							entry.setValue(null);
+							changed = true;
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		// write the codecs we haven't already
+		for (Map.Entry<String, List<Property>> entry : _classes.entrySet()) {
+			if (entry.getValue() != null && !_generated.contains(entry.getKey())) {
+				writeCodec(_typeElements.get(entry.getKey()), entry.getValue());
+				_generated.add(entry.getKey());
+			}
+		}
+
+		// we don't claim any annotations
+		return false;
+
+	}
+
+	private void note(Element e, String message) {
+		processingEnv.getMessager().printMessage(Kind.NOTE, "WSCodecProcessor : " + message, e);
+	}
+
+	private boolean isType(TypeMirror t, String qualifiedName) {
+		return ((TypeElement) _types.asElement(t)).getQualifiedName().contentEquals(qualifiedName);
+	}
+
+	private String getBinaryName(TypeMirror t) {
+		return _elements.getBinaryName((TypeElement) _types.asElement(t)).toString();
+	}
+
+	private void addRequests(Element e) {
+
+		if (e.getKind() == ElementKind.CLASS) {
+
+			TypeElement t = (TypeElement) e;
+
+			// like addOperation, the request class must directly extend WSFactory.Request, or WSFactory.AsyncRequest
+			TypeMirror superClass = t.getSuperclass();
+
+			if (superClass.getKind() == TypeKind.DECLARED && (isType(superClass, REQUEST) || isType(superClass, ASYNC_REQUEST))) {
+
+				addClass(t);
+
+				TypeMirror responseType = null;
+
+				// find the getResponse method that returns something more specific than Object, or the type of the getResponseAsync stage
+				for (ExecutableElement m : ElementFilter.methodsIn(_elements.getAllMembers(t))) {
+					if (m.getSimpleName().contentEquals("getResponse") && m.getReturnType().getKind() == TypeKind.DECLARED && !isType(m.getReturnType(), "java.lang.Object")) {
+						responseType = m.getReturnType();
+						break;
+					}
+					if (m.getSimpleName().contentEquals("getResponseAsync") && m.getReturnType().getKind() == TypeKind.DECLARED) {
+						List<? extends TypeMirror> arguments = ((DeclaredType) m.getReturnType()).getTypeArguments();
+						if (arguments.size() == 1 && arguments.get(0).getKind() == TypeKind.DECLARED && !isType(arguments.get(0), "java.lang.Object")) responseType = arguments.get(0);
+					}
+				}
+
+				if (responseType != null && !isSimpleType(responseType)) addClass((TypeElement) _types.asElement(responseType));
+
+			}
+
+		}
+
+		// check any nested classes too
+		for (Element enclosed : e.getEnclosedElements()) {
+			if (enclosed.getKind() == ElementKind.CLASS) addRequests(enclosed);
+		}
+
+	}
+
+	private void addClass(TypeElement t) {
+
+		String binaryName = _elements.getBinaryName(t).toString();
+
+		if (_classes.containsKey(binaryName)) return;
+
+		_typeElements.put(binaryName, t);
+
+		// put a placeholder first in case the class refers to itself
+		_classes.put(binaryName, null);
+
+		List<Property> properties = getProperties(t);
+
+		_classes.put(binaryName, properties);
+
+		// add the classes of any complex properties
+		if (properties != null) {
+			for (Property p : properties) {
+				TypeMirror c = p.getComponentType();
+				if (c.getKind() == TypeKind.DECLARED && !isSimpleType(c)) addClass((TypeElement) _types.asElement(c));
+			}
+		}
+
+	}
+
+	private boolean isSimpleType(TypeMirror t) {
+		// as WSFactory.getIsSimpleSOAPType, anything in a java package or a primitive
+		if (t.getKind().isPrimitive()) return true;
+		if (t.getKind() != TypeKind.DECLARED) return false;
+		return ((TypeElement) _types.asElement(t)).getQualifiedName().toString().indexOf("java") == 0;
+	}
+
+	private boolean isBinaryType(TypeMirror t) {
+		// as WSFactory.getSimpleSOAPType, a byte array or an input stream is base64Binary
+		if (t.getKind() == TypeKind.ARRAY) return ((ArrayType) t).getComponentType().getKind() == TypeKind.BYTE;
+		return t.getKind() == TypeKind.DECLARED && _types.isAssignable(t, _elements.getTypeElement("java.io.InputStream").asType());
+	}
+
+	private String getXSDType(Property p) {
+		// as WSFactory.SOAPClassElement works out the schema type of an element
+		if (p.isArray()) return "xsd:ArrayOf" + p.getPropertyName() + "Type";
+		TypeMirror t = p.getType();
+		if (!isSimpleType(t)) return "xsd:" + _types.asElement(t).getSimpleName();
+		switch (t.getKind()) {
+		case INT : return "xs:integer";
+		case FLOAT : return "xs:decimal";
+		case BOOLEAN : return "xs:boolean";
+		case DECLARED :
+			String name = ((TypeElement) _types.asElement(t)).getQualifiedName().toString();
+			if (name.equals("java.lang.Integer")) return "xs:integer";
+			if (name.equals("java.lang.Float")) return "xs:decimal";
+			if (name.equals("java.util.Date") || name.equals("java.sql.Date")) return "xs:date";
+			if (name.equals("java.sql.Timestamp")) return "xs:dateTime";
+			return "xs:string";
+		default : return "xs:string";
+		}
+	}
+
+	private String getSimpleTypeName(TypeMirror t) {
+		// the simple types we can parse and format just as WSFactory does, null for the rest
+		switch (t.getKind()) {
+		case INT : return "int";
+		case FLOAT : return "float";
+		case BOOLEAN : return "boolean";
+		case DECLARED :
+			String name = ((TypeElement) _types.asElement(t)).getQualifiedName().toString();
+			if (name.equals("java.lang.String") || name.equals("java.lang.Integer") || name.equals("java.lang.Float") || name.equals("java.util.Date") || name.equals("java.sql.Date") || name.equals("java.sql.Timestamp")) return name;
+			return null;
+		default : return null;
+		}
+	}
+
+	private AnnotationValue getAnnotationValue(Element e, String annotation, String name) {
+		for (AnnotationMirror a : e.getAnnotationMirrors()) {
+			if (((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().contentEquals(XSD_PREFIX + annotation)) {
+				for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> v : a.getElementValues().entrySet()) {
+					if (v.getKey().getSimpleName().contentEquals(name)) return v.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	private boolean hasXSDAnnotation(Element e) {
+		for (AnnotationMirror a : e.getAnnotationMirrors()) {
+			if (((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().toString().indexOf(XSD_PREFIX) == 0) return true;
+		}
+		return false;
+	}
+
+	private List<Property> getProperties(TypeElement t) {
+
+		// the class must be something we can make and reach from the generated code in its package
+		if (!t.getModifiers().contains(Modifier.PUBLIC) || t.getModifiers().contains(Modifier.ABSTRACT)) {
+			note(t, "no codec for " + t + " as it is not public, or is abstract");
+			return null;
+		}
+		for (Element o = t; o.getKind() == ElementKind.CLASS; o = o.getEnclosingElement()) {
+			if (((TypeElement) o).getNestingKind() == NestingKind.MEMBER && (!o.getModifiers().contains(Modifier.STATIC) || !o.getModifiers().contains(Modifier.PUBLIC))) {
+				note(t, "no codec for " + t + " as it is not public static");
+				return null;
+			}
+		}
+		List<ExecutableElement> constructors = ElementFilter.constructorsIn(t.getEnclosedElements());
+		boolean constructor = constructors.size() == 0;
+		for (ExecutableElement c : constructors) {
+			if (c.getModifiers().contains(Modifier.PUBLIC) && c.getParameters().size() == 0) constructor = true;
+		}
+		if (!constructor) {
+			note(t, "no codec for " + t + " as it has no public zero parameter constructor");
+			return null;
+		}
+
+		List<? extends Element> members = _elements.getAllMembers(t);
+
+		List<ExecutableElement> methods = ElementFilter.methodsIn(members);
+
+		ArrayList<Property> properties = new ArrayList<Property>();
+
+		// get/set pairs, as WSFactory.getSOAPClass
+		for (ExecutableElement m : methods) {
+
+			String methodName = m.getSimpleName().toString();
+
+			if (methodName.indexOf("get") == 0 && m.getModifiers().contains(Modifier.PUBLIC)) {
+
+				String name = methodName.substring(3);
+
+				// the reflection accepts any method ending with the set name
+				boolean anySetter = false;
+				ExecutableElement setter = null;
+
+				for (ExecutableElement s : methods) {
+					if (s.getModifiers().contains(Modifier.PUBLIC) && s.getSimpleName().toString().endsWith("set" + name)) {
+						anySetter = true;
+						if (s.getSimpleName().contentEquals("set" + name) && s.getParameters().size() == 1 && _types.isSameType(s.getParameters().get(0).asType(), m.getReturnType())) setter = s;
+					}
+				}
+
+				if (anySetter) {
+
+					if (setter == null || m.getParameters().size() > 0 || m.getModifiers().contains(Modifier.STATIC)) {
+						note(t, "no codec for " + t + " as " + methodName + " is not a simple get/set pair");
+						return null;
+					}
+
+					// the codecs parse and write by the java type, reflection by the schema type, which XSDtype can change
+					if (getAnnotationValue(m, "type", "name") != null) {
+						note(t, "no codec for " + t + " as " + methodName + " has an XSDtype");
+						return null;
+					}
+
+					AnnotationValue xsdName = getAnnotationValue(m, "name", "name");
+					AnnotationValue xsdOrder = getAnnotationValue(m, "order", "value");
+
+					properties.add(new Property(xsdName == null ? name : (String) xsdName.getValue(), methodName, setter.getSimpleName().toString(), null, m.getReturnType(), xsdOrder == null ? 0 : (Integer) xsdOrder.getValue()));
+
+				}
+
+			}
+
+		}
+
+		// sort these by their order, the fields are not sorted and come after
+		Collections.sort(properties, new Comparator<Property>() {
+			public int compare(Property p1, Property p2) {
+				return p1.getOrder() < p2.getOrder() ? -1 : p1.getOrder() > p2.getOrder() ? 1 : 0;
+			}
+		});
+
+		// public variables with XSD annotations
+		for (VariableElement f : ElementFilter.fieldsIn(members)) {
+
+			if (f.getModifiers().contains(Modifier.PUBLIC) && hasXSDAnnotation(f)) {
+
+				if (f.getModifiers().contains(Modifier.STATIC) || f.getModifiers().contains(Modifier.FINAL)) {
+					note(t, "no codec for " + t + " as " + f + " is static or final");
+					return null;
+				}
+
+				if (getAnnotationValue(f, "type", "name") != null) {
+					note(t, "no codec for " + t + " as " + f + " has an XSDtype");
+					return null;
+				}
+
+				AnnotationValue xsdName = getAnnotationValue(f, "name", "name");
+
+				properties.add(new Property(xsdName == null ? f.getSimpleName().toString() : (String) xsdName.getValue(), null, null, f.getSimpleName().toString(), f.asType(), 0));
+
+			}
+
+		}
+
+		// check all of the property types
+		for (Property p : properties) {
+
+			TypeMirror c = p.getComponentType();
+
+			if (isBinaryType(p.getType()) || isBinaryType(c)) {
+				note(t, "no codec for " + t + " as " + p.getName() + " is binary, which reflection writes as an MTOM attachment when it can");
+				return null;
+			}
+
+			boolean supported = c.getKind() == TypeKind.DECLARED ? !isSimpleType(c) || getSimpleTypeName(c) != null : getSimpleTypeName(c) != null;
+
+			if (!supported) {
+				note(t, "no codec for " + t + " as " + p.getName() + " is of unsupported type " + p.getType());
+				return null;
+			}
+
+		}
+
+		return properties;
+
+	}
+
+	private String getCodecName(TypeMirror t) {
+		return getCodecName((TypeElement) _types.asElement(t));
+	}
+
+	private String getCodecName(TypeElement t) {
+		// as WSFactory.getCodec, the binary name with the outer classes joined by underscores
+		return _elements.getBinaryName(t).toString().replace('$', '_') + "_WSCodec";
+	}
+
+	private String getParse(TypeMirror t) {
+
+		String text = "reader.getElementText()";
+
+		if (getSimpleTypeName(t) == null) return getCodecName(t) + ".readObject(reader)";
+
+		String type = getSimpleTypeName(t);
+
+		if (type.equals("int") || type.equals("java.lang.Integer")) return "parseInteger(" + text + ")";
+		if (type.equals("float") || type.equals("java.lang.Float")) return "parseDecimal(" + text + ")";
+		if (type.equals("boolean")) return "parseBoolean(" + text + ")";
+		if (type.equals("java.util.Date") || type.equals("java.sql.Date")) return "parseDate(" + text + ")";
+		if (type.equals("java.sql.Timestamp")) return "new java.sql.Timestamp(parseDateTime(" + text + ").getTime())";
+
+		return text;
+
+	}
+
+	private String getWrite(TypeMirror t, String name, String value) {
+
+		// numbers and dates are written by the codec helpers without making strings
+		
+		String type = getSimpleTypeName(t);
+
+		if (type.equals("int") || type.equals("java.lang.Integer")) return "writeElement(writer, \"" + name + "\", (int) " + value + ")";
+		if (type.equals("float") || type.equals("java.lang.Float")) return "writeElement(writer, \"" + name + "\", (float) " + value + ")";
+		if (type.equals("boolean")) return "writeElement(writer, \"" + name + "\", String.valueOf(" + value + "))";
+		if (type.equals("java.util.Date") || type.equals("java.sql.Date")) return "writeDateElement(writer, \"" + name + "\", " + value + ")";
+		if (type.equals("java.sql.Timestamp")) return "writeDateTimeElement(writer, \"" + name + "\", " + value + ")";
+
+		return "writeElement(writer, \"" + name + "\", " + value + ")";
+
+	}
+
+	private String getBoxedName(TypeMirror t) {
+		if (t.getKind().isPrimitive()) return _types.boxedClass((javax.lang.model.type.PrimitiveType) t).getQualifiedName().toString();
+		return getSourceName(t);
+	}
+
+	private String getSourceName(TypeMirror t) {
+		if (t.getKind() == TypeKind.DECLARED) return ((TypeElement) _types.asElement(t)).getQualifiedName().toString();
+		if (t.getKind() == TypeKind.ARRAY) return getSourceName(((ArrayType) t).getComponentType()) + "[]";
+		return t.toString();
+	}
+
+	private void writeCodec(TypeElement t, List<Property> properties) {
+
+		String className = t.getQualifiedName().toString();
+		String codecName = getCodecName(t);
+		PackageElement packageElement = _elements.getPackageOf(t);
+		String codecSimpleName = packageElement.isUnnamed() ? codecName : codecName.substring(packageElement.getQualifiedName().length() + 1);
+
+		try {
+
+			PrintWriter w = new PrintWriter(processingEnv.getFiler().createSourceFile(codecName, t).openWriter());
+
+			w.println("// generated by com.rapid.soa.WSCodecProcessor from " + className + ", do not edit");
+			w.println();
+			if (!packageElement.isUnnamed()) {
+				w.println("package " + packageElement.getQualifiedName() + ";");
+				w.println();
+			}
+			w.println("public final class " + codecSimpleName + " extends com.rapid.soa.WSFactory.Codec {");
+			w.println();
+
+			// element names
+			StringBuilder names = new StringBuilder();
+			for (Property p : properties) names.append(names.length() == 0 ? "" : ", ").append("\"").append(p.getName()).append("\"");
+			w.println("	public String[] getElementNames() { return new String[] {" + names + "}; }");
+			w.println();
+
+			// element types
+			StringBuilder types = new StringBuilder();
+			for (Property p : properties) types.append(types.length() == 0 ? "" : ", ").append("\"").append(getXSDType(p)).append("\"");
+			w.println("	public String[] getElementTypes() { return new String[] {" + types + "}; }");
+			w.println();
+			w.println("	public Object read(javax.xml.stream.XMLEventReader reader) throws javax.xml.stream.XMLStreamException, java.text.ParseException { return readObject(reader); }");
+			w.println();
+			w.println("	public void write(javax.xml.stream.XMLStreamWriter writer, Object o) throws javax.xml.stream.XMLStreamException { writeObject(writer, (" + className + ") o); }");
+			w.println();
+
+			// read
+			w.println("	public static " + className + " readObject(javax.xml.stream.XMLEventReader reader) throws javax.xml.stream.XMLStreamException, java.text.ParseException {");
+			w.println("		" + className + " o = new " + className + "();");
+			w.println("		while (reader.hasNext()) {");
+			w.println("			javax.xml.stream.events.XMLEvent e = reader.nextEvent();");
+			w.println("			if (e.isEndElement()) break;");
+			w.println("			if (!e.isStartElement()) continue;");
+			w.println("			String name = e.asStartElement().getName().getLocalPart();");
+			String elseIf = "if";
+			for (Property p : properties) {
+				if (p.isArray()) {
+					TypeMirror c = p.getComponentType();
+					w.println("			" + elseIf + " (\"ArrayOf" + p.getName() + "\".equals(name)) {");
+					w.println("				java.util.ArrayList<" + getBoxedName(c) + "> l = new java.util.ArrayList<" + getBoxedName(c) + ">();");
+					w.println("				boolean content = false;");
+					w.println("				while (reader.hasNext()) {");
+					w.println("					javax.xml.stream.events.XMLEvent ce = reader.nextEvent();");
+					w.println("					if (ce.isEndElement()) break;");
+					w.println("					if (ce.isStartElement()) l.add(" + getParse(c) + ");");
+					w.println("					content = true;");
+					w.println("				}");
+					w.println("				if (content) {");
+					w.println("					" + getSourceName(p.getType()) + " a = new " + getSourceName(c) + "[l.size()];");
+					w.println("					for (int i = 0; i < a.length; i++) a[i] = l.get(i);");
+					w.println("					" + p.setValue("o", "a"));
+					w.println("				}");
+					w.println("			}");
+				} else {
+					w.println("			" + elseIf + " (\"" + p.getName() + "\".equals(name)) " + p.setValue("o", getParse(p.getType())));
+				}
+				elseIf = "else if";
+			}
+			w.println("			" + (properties.size() == 0 ? "" : "else ") + "skipElement(reader);");
+			w.println("		}");
+			w.println("		return o;");
+			w.println("	}");
+			w.println();
+
+			// write
+			w.println("	public static void writeObject(javax.xml.stream.XMLStreamWriter writer, " + className + " o) throws javax.xml.stream.XMLStreamException {");
+			int i = 0;
+			for (Property p : properties) {
+				String v = "v" + i++;
+				TypeMirror c = p.getComponentType();
+				boolean primitive = p.getType().getKind().isPrimitive();
+				w.println("		" + getSourceName(p.getType()) + " " + v + " = " + p.getValue("o") + ";");
+				if (p.isArray()) {
+					w.println("		if (" + v + " != null) {");
+					w.println("			writeStartElement(writer, \"ArrayOf" + p.getName() + "\");");
+					w.println("			for (int i = 0; i < " + v + ".length; i++) {");
+					if (getSimpleTypeName(c) == null) {
+						w.println("				writeStartElement(writer, \"" + p.getName() + "\");");
+						w.println("				" + getCodecName(c) + ".writeObject(writer, " + v + "[i]);");
+						w.println("				writer.writeEndElement();");
+					} else {
+						w.println("				" + getWrite(c, p.getName(), v + "[i]") + ";");
+					}
+					w.println("			}");
+					w.println("			writer.writeEndElement();");
+					w.println("		}");
+				} else if (getSimpleTypeName(c) == null) {
+					w.println("		if (" + v + " != null) {");
+					w.println("			writeStartElement(writer, \"" + p.getName() + "\");");
+					w.println("			" + getCodecName(c) + ".writeObject(writer, " + v + ");");
+					w.println("			writer.writeEndElement();");
+					w.println("		}");
+				} else {
+					w.println("		" + (primitive ? "" : "if (" + v + " != null) ") + getWrite(c, p.getName(), v) + ";");
+				}
+			}
+			w.println("	}");
+			w.println();
+			w.println("}");
+
+			w.close();
+
+			note(t, "generated " + codecName);
+
+		} catch (IOException ex) {
+
+			processingEnv.getMessager().printMessage(Kind.ERROR, "WSCodecProcessor : could not write " + codecName + " - " + ex.getMessage(), t);
+
+		}
+
+	}
+
+}
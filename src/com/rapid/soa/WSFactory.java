@@ -25,8 +25,19 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 
 package com.rapid.soa;
 
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -37,38 +48,96 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 import javax.servlet.ServletContext;
 import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.soap.MessageFactory;
+import javax.xml.soap.MimeHeaders;
 import javax.xml.soap.SOAPBody;
 import javax.xml.soap.SOAPConstants;
 import javax.xml.soap.SOAPElement;
 import javax.xml.soap.SOAPEnvelope;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.EventReaderDelegate;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stax.StAXResult;
+import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.DOMException;
@@ -78,17 +147,53 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
 import org.xml.sax.Parser;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
 public class WSFactory {
 	
-	private final static String NAMESPACE = "http://rapid-is.co.uk/soa/";
+	final static String NAMESPACE = "http://rapid-is.co.uk/soa/";
 	private final static String NAMESPACE_PREFIX = "soar";
+	private final static String SOAP_ENVELOPE_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+	// the end point comes from the host header so limit how many we'll keep wsdls for
+	private final static int MAX_WSDL_END_POINTS = 16;
+	// the binary xml content types, the first is for SOAP 1.1 and the second is the one most clients ask for
+	public final static String FAST_INFOSET_CONTENT_TYPE = "application/fastinfoset";
+	public final static String SOAP_FAST_INFOSET_CONTENT_TYPE = "application/soap+fastinfoset";
+	// mtom messages are multipart/related with the envelope in an xop part, binary values are left in the envelope as xop includes of the parts after it
+	public final static String MTOM_CONTENT_TYPE = "multipart/related";
+	public final static String XOP_CONTENT_TYPE = "application/xop+xml";
+	private final static String XOP_NAMESPACE = "http://www.w3.org/2004/08/xop/include";
+	private final static String XMIME_NAMESPACE = "http://www.w3.org/2005/05/xmlmime";
+	private final static String MTOM_ROOT_ID = "root.message@rapid-is.co.uk";
+	// a request with this soap action is a batch of calls to the other operations, unless there's an operation with this name
+	public final static String BATCH_OPERATION = "batch";
+	// the most threads, and queued tasks, of the pool made where there are no virtual threads, unless others are given
+	public final static int EXECUTOR_MAX_THREADS = 200;
+	public final static int EXECUTOR_QUEUE_SIZE = 1000;
+	// the Fast Infoset StAX factories, found by reflection as SAAJ does, null if there's no Fast Infoset on the class path
+	private static XMLInputFactory _fastInfosetInputFactory;
+	private static XMLOutputFactory _fastInfosetOutputFactory;
+	
+	static {
+		// the FastInfoset jar, or the copy inside Java 8
+		for (String fastInfosetPackage : new String[] {"com.sun.xml.fastinfoset.stax.factory.", "com.sun.xml.internal.fastinfoset.stax.factory."}) {
+			try {
+				_fastInfosetInputFactory = (XMLInputFactory) Class.forName(fastInfosetPackage + "StAXInputFactory").newInstance();
+				_fastInfosetOutputFactory = (XMLOutputFactory) Class.forName(fastInfosetPackage + "StAXOutputFactory").newInstance();
+				break;
+			} catch (Exception ex) {
+				_fastInfosetInputFactory = null;
+				_fastInfosetOutputFactory = null;
+			}
+		}
+	}
 	
 	public static abstract class Request {
 		
@@ -96,6 +201,518 @@ public class WSFactory {
 
 	}
 	
+	public static abstract class AsyncRequest extends Request {
+		
+		// the stage completes with the response object, or exceptionally with whatever should be the fault, the response class is taken from its type
+		public abstract CompletionStage<?> getResponseAsync(ServletContext servletContext) throws Exception;
+		
+		@Override
+		public Object getResponse(ServletContext servletContext) throws Exception {
+			
+			// anything that can't wait asynchronously, like the dom parser, blocks until the stage completes
+			try {
+				
+				return getResponseAsync(servletContext).toCompletableFuture().get();
+				
+			} catch (ExecutionException ex) {
+				
+				throw getStageException(ex.getCause());
+				
+			}
+			
+		}
+		
+	}
+	
+	public static abstract class Codec {
+		
+		// generated by the WSCodecProcessor for request and response classes, these bind and marshal without reflection
+		
+		// the element names in the order they are written, which must match what reflection finds for the codec to be used
+		public abstract String[] getElementNames();
+		
+		// and their schema types, null from codecs generated before the types were checked, which are not used
+		public String[] getElementTypes() { return null; }
+		
+		// reads the child elements of an object, the reader is just past its start and is left just past its end
+		public abstract Object read(XMLEventReader reader) throws XMLStreamException, ParseException;
+		
+		// writes the child elements of an object
+		public abstract void write(XMLStreamWriter writer, Object o) throws XMLStreamException;
+		
+		// the helpers below are used by the generated codecs and the reflection binding alike so the two always agree
+		
+		// dates, integers, and decimals in their usual forms are parsed and written by hand, straight from and to characters without SimpleDateFormat or any other garbage,
+		// anything else goes the old way so the results are always the same
+		
+		private static final long MILLIS_PER_DAY = 86400000L;
+		private static final long NOT_PARSED = Long.MIN_VALUE;
+		// dates are only done by hand well after the julian calendar and before 5 digit years
+		private static final long MIN_MILLIS = getDays(1600, 1, 1) * MILLIS_PER_DAY;
+		private static final long MAX_MILLIS = getDays(9999, 12, 1) * MILLIS_PER_DAY;
+		private static final float[] POWERS_OF_TEN = {1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+		// floats can hold every integer up to this exactly
+		private static final int MAX_EXACT_FLOAT = 1 << 24;
+		
+		// the default time zone is copied each time it's asked for so we keep our own, which is also used when we fall back to SimpleDateFormat
+		private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+		
+		// each thread writes its characters here, the stream writers copy them out straight away
+		private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[24]);
+		// binary values are read and encoded this many bytes at a time, a multiple of 3 so only the last chunk is padded
+		private static final int BASE64_CHUNK = 3072;
+		private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+		
+		private static SimpleDateFormat getDateFormat(String pattern) {
+			SimpleDateFormat df = new SimpleDateFormat(pattern);
+			df.setTimeZone(TIME_ZONE);
+			return df;
+		}
+		
+		private static long getDays(long year, int month, int day) {
+			// days since 1970-01-01 in the proleptic gregorian calendar
+			year -= month <= 2 ? 1 : 0;
+			long era = (year >= 0 ? year : year - 399) / 400;
+			long yearOfEra = year - era * 400;
+			long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+			long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+			return era * 146097 + dayOfEra - 719468;
+		}
+		
+		private static int getDaysInMonth(int year, int month) {
+			if (month == 2) return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+			return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+		}
+		
+		private static int getDigits(CharSequence text, int start, int length) {
+			// the value of a run of digits, or -1 if they're not all there
+			if (start + length > text.length()) return -1;
+			int value = 0;
+			for (int i = start; i < start + length; i++) {
+				char c = text.charAt(i);
+				if (c < '0' || c > '9') return -1;
+				value = value * 10 + c - '0';
+			}
+			return value;
+		}
+		
+		private static boolean isDigit(CharSequence text, int i) {
+			return i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9';
+		}
+		
+		private static long parseLocalDate(CharSequence text) {
+			// yyyy-MM-dd, in range, and not followed by another digit which SimpleDateFormat would take as part of the day
+			int year = getDigits(text, 0, 4);
+			int month = getDigits(text, 5, 2);
+			int day = getDigits(text, 8, 2);
+			if (year < 1600 || month < 1 || month > 12 || day < 1 || text.charAt(4) != '-' || text.charAt(7) != '-' || isDigit(text, 10)) return NOT_PARSED;
+			if (day > getDaysInMonth(year, month)) return NOT_PARSED;
+			return getDays(year, month, day) * MILLIS_PER_DAY;
+		}
+		
+		private static long parseLocalDateTime(CharSequence text) {
+			// yyyy-MM-dd'T'HH:mm:ss, anything after the seconds that isn't a digit is ignored as SimpleDateFormat does
+			long date = parseLocalDate(text);
+			if (date == NOT_PARSED || text.length() < 19 || text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':' || isDigit(text, 19)) return NOT_PARSED;
+			int hours = getDigits(text, 11, 2);
+			int minutes = getDigits(text, 14, 2);
+			int seconds = getDigits(text, 17, 2);
+			if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59) return NOT_PARSED;
+			return date + ((hours * 60 + minutes) * 60 + seconds) * 1000L;
+		}
+		
+		private static long getTime(long localMillis) {
+			// local to utc, leaving the days either side of a daylight saving change to SimpleDateFormat
+			if (localMillis == NOT_PARSED) return NOT_PARSED;
+			int offset = TIME_ZONE.getOffset(localMillis - MILLIS_PER_DAY);
+			if (TIME_ZONE.getOffset(localMillis + MILLIS_PER_DAY) != offset || TIME_ZONE.getOffset(localMillis - offset) != offset) return NOT_PARSED;
+			return localMillis - offset;
+		}
+		
+		private static int putDigits(char[] buffer, int position, int value, int length) {
+			for (int i = position + length - 1; i >= position; i--) {
+				buffer[i] = (char) ('0' + value % 10);
+				value /= 10;
+			}
+			return position + length;
+		}
+		
+		private static int putDate(char[] buffer, Object date, boolean time) {
+			
+			// the length of the date written to the buffer, or -1 if it can't be done by hand
+			
+			if (!(date instanceof java.util.Date)) return -1;
+			
+			long millis = ((java.util.Date) date).getTime();
+			
+			if (millis < MIN_MILLIS || millis >= MAX_MILLIS) return -1;
+			
+			long local = millis + TIME_ZONE.getOffset(millis);
+			long days = Math.floorDiv(local, MILLIS_PER_DAY);
+			int millisOfDay = (int) (local - days * MILLIS_PER_DAY);
+			
+			// the gregorian date from the days since 1970-01-01
+			days += 719468;
+			long era = days / 146097;
+			long dayOfEra = days - era * 146097;
+			long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+			long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+			long monthIndex = (5 * dayOfYear + 2) / 153;
+			int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+			int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+			int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+			
+			int i = putDigits(buffer, 0, year, 4);
+			buffer[i++] = '-';
+			i = putDigits(buffer, i, month, 2);
+			buffer[i++] = '-';
+			i = putDigits(buffer, i, day, 2);
+			
+			if (time) {
+				int seconds = millisOfDay / 1000;
+				buffer[i++] = 'T';
+				i = putDigits(buffer, i, seconds / 3600, 2);
+				buffer[i++] = ':';
+				i = putDigits(buffer, i, seconds / 60 % 60, 2);
+				buffer[i++] = ':';
+				i = putDigits(buffer, i, seconds % 60, 2);
+			}
+			
+			return i;
+			
+		}
+		
+		private static int putInteger(char[] buffer, int position, long value) {
+			
+			// as Integer.toString
+			
+			long v = value;
+			int i = position;
+			
+			if (v < 0) {
+				buffer[i++] = '-';
+				v = -v;
+			}
+			
+			int length = 1;
+			for (long p = 10; p <= v; p *= 10) length++;
+			
+			for (int j = i + length - 1; j >= i; j--) {
+				buffer[j] = (char) ('0' + v % 10);
+				v /= 10;
+			}
+			
+			return i + length;
+			
+		}
+		
+		private static int putDecimal(char[] buffer, float value) {
+			
+			// as Float.toString for values written with up to 3 decimal places, which is the shortest decimal that reads back as the same float, or -1 if it can't be done by hand
+			
+			if (Float.isNaN(value) || Float.isInfinite(value)) return -1;
+			
+			float magnitude = Math.abs(value);
+			
+			for (int places = 0; places <= 3; places++) {
+				
+				// a float times a small power of ten is exact as a double
+				double scaled = (double) magnitude * POWERS_OF_TEN[places];
+				long digits = Math.round(scaled);
+				
+				// larger values are written with an exponent, too many digits can't be checked with floats, and Float.toString has its own way with ties
+				if (magnitude >= 1e7f || digits >= MAX_EXACT_FLOAT || scaled - Math.floor(scaled) == 0.5 || (digits == 0 && magnitude != 0)) return -1;
+				
+				if ((float) digits / POWERS_OF_TEN[places] == magnitude) {
+					
+					int i = 0;
+					
+					if (Float.floatToRawIntBits(value) < 0) buffer[i++] = '-';
+					
+					int scale = (int) POWERS_OF_TEN[places];
+					
+					i = putInteger(buffer, i, digits / scale);
+					
+					buffer[i++] = '.';
+					
+					if (places == 0) {
+						buffer[i++] = '0';
+					} else {
+						i = putDigits(buffer, i, (int) (digits % scale), places);
+					}
+					
+					return i;
+					
+				}
+				
+			}
+			
+			return -1;
+			
+		}
+		
+		private static float parseFloat(CharSequence text) {
+			
+			// an optional sign, digits, and an optional point and more digits, with few enough digits that dividing one exact float by another gives the correctly rounded value
+			
+			int length = text.length();
+			int i = 0;
+			boolean negative = false;
+			
+			if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+				negative = text.charAt(0) == '-';
+				i++;
+			}
+			
+			int digits = 0;
+			int mantissa = 0;
+			int places = -1;
+			
+			for (; i < length; i++) {
+				char c = text.charAt(i);
+				if (c == '.' && places < 0 && digits > 0) {
+					places = 0;
+				} else if (c >= '0' && c <= '9') {
+					mantissa = mantissa * 10 + c - '0';
+					if (mantissa >= MAX_EXACT_FLOAT) return Float.NaN;
+					digits++;
+					if (places >= 0) places++;
+				} else {
+					return Float.NaN;
+				}
+			}
+			
+			if (digits == 0 || places == 0 || places >= POWERS_OF_TEN.length) return Float.NaN;
+			
+			float value = places < 0 ? mantissa : mantissa / POWERS_OF_TEN[places];
+			
+			return negative ? -value : value;
+			
+		}
+		
+		private static int putBase64(char[] buffer, byte[] bytes, int offset, int length) {
+			
+			// each 3 bytes becomes 4 characters, with the last 1 or 2 padded
+			
+			int i = 0;
+			int end = offset + length - length % 3;
+			
+			for (int j = offset; j < end; j += 3) {
+				int b = (bytes[j] & 0xff) << 16 | (bytes[j + 1] & 0xff) << 8 | (bytes[j + 2] & 0xff);
+				buffer[i++] = BASE64[b >>> 18];
+				buffer[i++] = BASE64[b >>> 12 & 63];
+				buffer[i++] = BASE64[b >>> 6 & 63];
+				buffer[i++] = BASE64[b & 63];
+			}
+			
+			if (length % 3 > 0) {
+				int b = (bytes[end] & 0xff) << 16 | (length % 3 == 2 ? (bytes[end + 1] & 0xff) << 8 : 0);
+				buffer[i++] = BASE64[b >>> 18];
+				buffer[i++] = BASE64[b >>> 12 & 63];
+				buffer[i++] = length % 3 == 2 ? BASE64[b >>> 6 & 63] : '=';
+				buffer[i++] = '=';
+			}
+			
+			return i;
+			
+		}
+		
+		private static int readChunk(InputStream in, byte[] bytes) throws IOException {
+			// fills the chunk unless the stream ends first, as only the last chunk can be padded
+			int length = 0;
+			int read;
+			while (length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) != -1) length += read;
+			return length;
+		}
+		
+		public static boolean parseBoolean(String text) {
+			return Boolean.parseBoolean(text);
+		}
+		
+		public static int parseInteger(String text) {
+			return Integer.parseInt(text);
+		}
+		
+		public static float parseDecimal(String text) {
+			// nan is never the result of parsing by hand, so it means we couldn't
+			float value = parseFloat(text);
+			if (Float.isNaN(value)) value = Float.parseFloat(text);
+			return value;
+		}
+		
+		public static java.sql.Date parseDate(String text) throws ParseException {
+			long time = getTime(parseLocalDate(text));
+			if (time == NOT_PARSED) time = getDateFormat("yyyy-MM-dd").parse(text).getTime();
+			return new java.sql.Date(time);
+		}
+		
+		public static java.util.Date parseDateTime(String text) throws ParseException {
+			long time = getTime(parseLocalDateTime(text));
+			if (time == NOT_PARSED) return getDateFormat("yyyy-MM-dd'T'HH:mm:ss").parse(text);
+			return new java.util.Date(time);
+		}
+		
+		public static byte[] parseBase64(String text) {
+			// line breaks and other whitespace are allowed in base64Binary
+			return Base64.getMimeDecoder().decode(text);
+		}
+		
+		public static String formatBase64(Object value) throws IOException {
+			StringWriter writer = new StringWriter();
+			writeBase64(writer, value);
+			return writer.toString();
+		}
+		
+		public static void writeBase64(Writer writer, Object value) throws IOException {
+			
+			// a byte array, or everything left in an input stream, encoded a chunk at a time, the stream is closed once it's all been written
+			
+			char[] buffer = new char[BASE64_CHUNK / 3 * 4];
+			
+			if (value instanceof byte[]) {
+				
+				byte[] bytes = (byte[]) value;
+				
+				for (int i = 0; i < bytes.length; i += BASE64_CHUNK) writer.write(buffer, 0, putBase64(buffer, bytes, i, Math.min(BASE64_CHUNK, bytes.length - i)));
+				
+			} else {
+				
+				InputStream in = (InputStream) value;
+				
+				try {
+					
+					byte[] bytes = new byte[BASE64_CHUNK];
+					
+					int length;
+					
+					while ((length = readChunk(in, bytes)) > 0) writer.write(buffer, 0, putBase64(buffer, bytes, 0, length));
+					
+				} finally {
+					
+					in.close();
+					
+				}
+				
+			}
+			
+		}
+		
+		public static void writeBase64(final XMLStreamWriter writer, Object value) throws XMLStreamException {
+			
+			// the characters go straight to the xml writer, nothing the size of the whole value is made
+			
+			try {
+				
+				writeBase64(new Writer() {
+					
+					@Override
+					public void write(char[] buffer, int offset, int length) throws IOException {
+						try {
+							writer.writeCharacters(buffer, offset, length);
+						} catch (XMLStreamException ex) {
+							throw new IOException(ex);
+						}
+					}
+					
+					@Override
+					public void flush() {}
+					
+					@Override
+					public void close() {}
+					
+				}, value);
+				
+			} catch (IOException ex) {
+				
+				if (ex.getCause() instanceof XMLStreamException) throw (XMLStreamException) ex.getCause();
+				
+				throw new XMLStreamException(ex);
+				
+			}
+			
+		}
+		
+		public static String formatDate(Object date) {
+			char[] buffer = BUFFER.get();
+			int length = putDate(buffer, date, false);
+			return length < 0 ? getDateFormat("yyyy-MM-dd").format(date) : new String(buffer, 0, length);
+		}
+		
+		public static String formatDateTime(Object date) {
+			char[] buffer = BUFFER.get();
+			int length = putDate(buffer, date, true);
+			return length < 0 ? getDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(date) : new String(buffer, 0, length);
+		}
+		
+		public static void writeDate(XMLStreamWriter writer, Object date) throws XMLStreamException {
+			char[] buffer = BUFFER.get();
+			int length = putDate(buffer, date, false);
+			if (length < 0) writer.writeCharacters(formatDate(date)); else writer.writeCharacters(buffer, 0, length);
+		}
+		
+		public static void writeDateTime(XMLStreamWriter writer, Object date) throws XMLStreamException {
+			char[] buffer = BUFFER.get();
+			int length = putDate(buffer, date, true);
+			if (length < 0) writer.writeCharacters(formatDateTime(date)); else writer.writeCharacters(buffer, 0, length);
+		}
+		
+		public static void writeInteger(XMLStreamWriter writer, int value) throws XMLStreamException {
+			char[] buffer = BUFFER.get();
+			writer.writeCharacters(buffer, 0, putInteger(buffer, 0, value));
+		}
+		
+		public static void writeDecimal(XMLStreamWriter writer, float value) throws XMLStreamException {
+			char[] buffer = BUFFER.get();
+			int length = putDecimal(buffer, value);
+			if (length < 0) writer.writeCharacters(Float.toString(value)); else writer.writeCharacters(buffer, 0, length);
+		}
+		
+		public static void writeStartElement(XMLStreamWriter writer, String name) throws XMLStreamException {
+			writer.writeStartElement("", name, NAMESPACE);
+		}
+		
+		public static void writeElement(XMLStreamWriter writer, String name, String text) throws XMLStreamException {
+			writer.writeStartElement("", name, NAMESPACE);
+			writer.writeCharacters(text);
+			writer.writeEndElement();
+		}
+		
+		public static void writeElement(XMLStreamWriter writer, String name, int value) throws XMLStreamException {
+			writer.writeStartElement("", name, NAMESPACE);
+			writeInteger(writer, value);
+			writer.writeEndElement();
+		}
+		
+		public static void writeElement(XMLStreamWriter writer, String name, float value) throws XMLStreamException {
+			writer.writeStartElement("", name, NAMESPACE);
+			writeDecimal(writer, value);
+			writer.writeEndElement();
+		}
+		
+		public static void writeDateElement(XMLStreamWriter writer, String name, Object date) throws XMLStreamException {
+			writer.writeStartElement("", name, NAMESPACE);
+			writeDate(writer, date);
+			writer.writeEndElement();
+		}
+		
+		public static void writeDateTimeElement(XMLStreamWriter writer, String name, Object date) throws XMLStreamException {
+			writer.writeStartElement("", name, NAMESPACE);
+			writeDateTime(writer, date);
+			writer.writeEndElement();
+		}
+		
+		public static void skipElement(XMLEventReader reader) throws XMLStreamException {
+			// skip everything up to and including the end of the element we're in
+			int depth = 1;
+			while (depth > 0 && reader.hasNext()) {
+				XMLEvent e = reader.nextEvent();
+				if (e.isStartElement()) depth ++;
+				if (e.isEndElement()) depth --;
+			}
+		}
+		
+	}
+	
 	public class ClassNotRequestException 
 		extends Exception {
 		
@@ -125,6 +742,86 @@ public class WSFactory {
 		public String getMessage() { return "Operation not found. Please add."; }
 	
 	}
+	
+	public class OperationBusy 
+	extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		String _operationName;
+		int _maxConcurrent;
+		
+		public OperationBusy(String operationName, int maxConcurrent) {
+			_operationName = operationName;
+			_maxConcurrent = maxConcurrent;
+		}
+	
+		@Override
+		public String getMessage() { return "Operation " + _operationName + " already has its maximum of " + _maxConcurrent + " concurrent requests. Please try again later."; }
+		
+	}
+
+	public static class WSDL {
+		
+		// the finished, serialised wsdl for an operation and end point, with a strong entity tag for conditional gets
+		
+		private byte[] _bytes;
+		private String _eTag;
+		
+		public byte[] getBytes() { return _bytes; }
+		public String getETag() { return _eTag; }
+		
+		public String getETag(String contentEncoding) {
+			// compressed bytes are a different representation so need their own tag
+			if (contentEncoding == null) return _eTag;
+			return _eTag.substring(0, _eTag.length() - 1) + "-" + contentEncoding + "\"";
+		}
+		
+		public WSDL(byte[] bytes) {
+			
+			_bytes = bytes;
+			
+			try {
+				
+				byte[] digest = MessageDigest.getInstance("MD5").digest(bytes);
+				
+				StringBuilder eTag = new StringBuilder("\"");
+				
+				for (byte b : digest) eTag.append(String.format("%02x", b));
+				
+				_eTag = eTag.append("\"").toString();
+				
+			} catch (NoSuchAlgorithmException ex) {
+				
+				_eTag = "\"" + Integer.toHexString(Arrays.hashCode(bytes)) + "-" + bytes.length + "\"";
+				
+			}
+			
+		}
+		
+		public boolean matches(String ifNoneMatch) {
+			return matches(ifNoneMatch, null);
+		}
+		
+		public boolean matches(String ifNoneMatch, String contentEncoding) {
+			
+			if (ifNoneMatch == null) return false;
+			
+			String eTag = getETag(contentEncoding);
+			
+			for (String tag : ifNoneMatch.split(",")) {
+				
+				tag = tag.trim();
+				
+				if (tag.equals("*") || tag.equals(eTag)) return true;
+				
+			}
+			
+			return false;
+			
+		}
+		
+	}
 			
 	private static class ElementAttribute {
 		
@@ -172,11 +869,12 @@ public class WSFactory {
 	
 	private static boolean getIsSimpleSOAPType(Class c) {
 		
-		// is this a java class or any of the primitives
+		// is this a java class or any of the primitives, or binary
 		return c.getName().indexOf("java") == 0 || 
 				c.getName().equals("int") || 
 				c.getName().equals("boolean") || 
-				c.getName().equals("float") 
+				c.getName().equals("float") || 
+				c.equals(byte[].class) 
 				? true : false;
 		
 	}
@@ -190,20 +888,86 @@ public class WSFactory {
 		else if (c.getSimpleName().equals("Timestamp")) { type = "dateTime"; }
 		else if (c.getSimpleName().equals("float") || c.getSimpleName().equals("Float")) { type = "decimal"; }
 		else if (c.getSimpleName().equals("int") || c.getSimpleName().equals("Integer")) { type = "integer"; }
+		else if (c.equals(byte[].class) || InputStream.class.isAssignableFrom(c)) { type = "base64Binary"; }
 		 						
 		return type;
 		
 	}
 	
-	private static class SOAPClassElement {
+	private static Class<?> getSequenceComponentType(Class<?> c, Type type) {
 		
-		private Class _class;
-		private String _name;
-		private String _type;
-		private Boolean _complexType;
+		// a List<T>, or any other Iterable, an Iterator<T>, or a Stream<T> is an array of T, written as it's iterated so it needn't all be in memory at once
+		if ((Iterable.class.isAssignableFrom(c) || Iterator.class.isAssignableFrom(c) || Stream.class.isAssignableFrom(c)) && type instanceof ParameterizedType) {
+			
+			Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+			
+			if (arguments.length == 1 && arguments[0] instanceof Class) return (Class<?>) arguments[0];
+			
+		}
+		
+		return null;
+		
+	}
+	
+	private static Iterator<?> getArrayIterator(final Object v) {
+		
+		if (v instanceof Iterable) return ((Iterable<?>) v).iterator();
+		
+		if (v instanceof Iterator) return (Iterator<?>) v;
+		
+		if (v instanceof Stream) return ((Stream<?>) v).iterator();
+		
+		// arrays, including the primitive ones
+		return new Iterator<Object>() {
+			
+			private int _index;
+			
+			@Override
+			public boolean hasNext() { return _index < Array.getLength(v); }
+			
+			@Override
+			public Object next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return Array.get(v, _index++);
+			}
+			
+		};
+		
+	}
+	
+	private void closeArray(Object v) {
+		
+		// streams and iterators over result sets release their statements, and perhaps connections, once written
+		if (v instanceof AutoCloseable && !(v instanceof Collection)) {
+			
+			try {
+				
+				((AutoCloseable) v).close();
+				
+			} catch (Exception ex) {
+				
+				_logger.error("Error closing array value", ex);
+				
+			}
+			
+		}
+		
+	}
+	
+	private static class SOAPClassElement {
+		
+		private Class _class;
+		private String _name;
+		private String _type;
+		private Boolean _complexType;
 		private ElementAttributes _attributes;
 		private ElementAttributes _restrictions;
 		private String _arrayType;
+		private Class<?> _componentClass;
+		private Method _getter;
+		private Method _setter;
+		private Field _field;
+		private volatile SOAPClass _soapClass;
 		
 		public Class getMethodClass() { return _class; }
 		public String getName() { return _name; }
@@ -212,29 +976,38 @@ public class WSFactory {
 		public ElementAttributes getAttributes() { return _attributes; }
 		public ElementAttributes getRestrictions() { return _restrictions; }
 		public Boolean isComplexType() { return _complexType; }
-		public Boolean isArray() { return _class.isArray(); }
+		// a byte array is a single binary value, not an array of bytes, and lists, iterators, and streams are arrays of their type argument
+		public Boolean isArray() { return _componentClass != null; }
+		public Class<?> getComponentClass() { return _componentClass; }
+		// iterators and streams can only be read once
+		public boolean isSingleUse() { return Iterator.class.isAssignableFrom(_class) || Stream.class.isAssignableFrom(_class); }
+		public Boolean isBinary() { return "xs:base64Binary".equals(isArray() ? _arrayType : _type); }
+		// the metadata of the complex type, or array component type, linked when the registry is published
+		public SOAPClass getSOAPClass() { return _soapClass; }
+		public void setSOAPClass(SOAPClass soapClass) { _soapClass = soapClass; }
 		
-		private void init(Annotation[] annotations, Class c, String name) {
+		private void init(Annotation[] annotations, Class<?> c, Type genericType, String name) {
 			
 			_class = c;			
-			_name = name;			
+			_componentClass = c.isArray() && !c.equals(byte[].class) ? c.getComponentType() : getSequenceComponentType(c, genericType);
+			_name = name;
 			_attributes = new ElementAttributes();
 			_restrictions = new ElementAttributes();
 			
 			// get the type										
-			if (_class.isArray()) {
+			if (isArray()) {
 					
 				_type = "xsd:ArrayOf" + _name + "Type";
 				
-				if (getIsSimpleSOAPType(_class.getComponentType())) {
+				if (getIsSimpleSOAPType(_componentClass)) {
 					
 					_complexType = false;					
-					_arrayType = "xs:" + getSimpleSOAPType(_class.getComponentType());
+					_arrayType = "xs:" + getSimpleSOAPType(_componentClass);
 					
 				} else {
 					
 					_complexType = true;
-					_arrayType = "xsd:" + _class.getComponentType().getSimpleName();
+					_arrayType = "xsd:" + _componentClass.getSimpleName();
 					
 				}
 														
@@ -329,12 +1102,59 @@ public class WSFactory {
 			
 		}
 							
-		public SOAPClassElement(Method m, String name) {			
-			init(m.getAnnotations(), m.getReturnType(), name);			
+		public SOAPClassElement(Method getter, Method setter, String name) {			
+			init(getter.getAnnotations(), getter.getReturnType(), getter.getGenericReturnType(), name);
+			// the accessors are resolved here, once, rather than looked up for every value
+			_getter = getter;
+			_setter = setter;
+			try {
+				// skip the access checks on every invoke
+				_getter.setAccessible(true);
+				if (_setter != null) _setter.setAccessible(true);
+			} catch (SecurityException ex) {}
 		}
 		
 		public SOAPClassElement(Field f, String name) {			
-			init(f.getAnnotations(), f.getType(), name);			
+			init(f.getAnnotations(), f.getType(), f.getGenericType(), name);
+			_field = f;
+			try {
+				_field.setAccessible(true);
+			} catch (SecurityException ex) {}
+		}
+		
+		public Object getValue(Object o) throws IllegalAccessException, InvocationTargetException {
+			if (_field == null) {
+				return _getter.invoke(o);
+			} else {
+				return _field.get(o);
+			}
+		}
+		
+		public void setValue(Object o, Object value) throws IllegalAccessException, InvocationTargetException {
+			if (_field == null) {
+				if (_setter == null) throw new IllegalAccessException("No set method for " + _name + " in " + o.getClass().getName());
+				_setter.invoke(o, value);
+			} else {
+				_field.set(o, value);
+			}
+		}
+		
+		public Object getArrayValue(ArrayList<Object> values) throws InstantiationException, IllegalAccessException {
+			// the values of an array element as the type of the property
+			if (_class.isArray()) {
+				Object oa = Array.newInstance(_componentClass, values.size());
+				// set rather than copy so primitive arrays are unboxed
+				for (int i = 0; i < values.size(); i++) Array.set(oa, i, values.get(i));
+				return oa;
+			}
+			if (Stream.class.isAssignableFrom(_class)) return values.stream();
+			if (Iterator.class.isAssignableFrom(_class)) return values.iterator();
+			if (_class.isInstance(values)) return values;
+			// some other collection class, which can hold any object as far as we know
+			@SuppressWarnings("unchecked")
+			Collection<Object> collection = (Collection<Object>) _class.newInstance();
+			collection.addAll(values);
+			return collection;
 		}
 								
 	}
@@ -343,1393 +1163,4810 @@ public class WSFactory {
 
 		private Class _baseClass;
 		private ArrayList<SOAPClassElement> _SOAPClassElements;
+		private HashMap<String, SOAPClassElement> _SOAPClassElementNames;
+		private volatile Codec _codec;
+		private volatile boolean _codecChecked;
 		
 		public Class getBaseClass() { return _baseClass; }		
+		public Codec getCodec() { return _codec; }
+		public boolean isCodecChecked() { return _codecChecked; }
+		public void setCodec(Codec codec) { _codec = codec; _codecChecked = true; }
 		public ArrayList<SOAPClassElement> getSOAPClassElements() { return _SOAPClassElements; }
 		
 		public SOAPClass(Class baseClass) {
 			_baseClass = baseClass;
 			_SOAPClassElements = new ArrayList<SOAPClassElement>();
+			_SOAPClassElementNames = new HashMap<String, SOAPClassElement>();
+		}
+		
+		public void addSOAPClassElement(SOAPClassElement soapElement) {
+			_SOAPClassElements.add(soapElement);
+			// keep the first element with a name, as the scan this replaced did
+			if (!_SOAPClassElementNames.containsKey(soapElement.getName())) _SOAPClassElementNames.put(soapElement.getName(), soapElement);
 		}
 				
 		public SOAPClassElement getSOAPClassElement(String name) {
 			
-			SOAPClassElement returnElement = null;
-			
-			for (SOAPClassElement soapElement : _SOAPClassElements) {
-				// the key/class name is the same or the declared name is the same
-				if (soapElement.getName().equals(name)) {
-					returnElement = soapElement;
-					break;
-				}
-			}
-			
-			return returnElement;
+			// the declared name is the same
+			return _SOAPClassElementNames.get(name);
 			
 		}
 						
 	}
 	
-	private class SOAPClasses extends Hashtable<String, SOAPClass> {
-				
-		// this is just to prevent the same thing being added more than once
-		public boolean contains(String className) {
-			
-			boolean contains = false;
-			
-			for (String key : this.keySet()) {
-				
-				if (key.equals(className)) {
-					
-					contains = true;
-					break;
-					
+	private static class Registry {
+		
+		// the operations and everything made from them, this is never changed once published, instead a copy is changed and swapped in so requests can read it without locks
+		
+		private HashMap<String, SOAPClass> _operations;
+		private HashMap<String, SOAPClass> _soapClasses;
+		private ConcurrentHashMap<String, OperationSchema> _operationSchemas;
+		private ConcurrentHashMap<String, ConcurrentHashMap<String, WSDL>> _wsdls;
+		
+		public Set<String> getOperationNames() { return Collections.unmodifiableSet(_operations.keySet()); }
+		public SOAPClass getOperation(String operationName) { return _operations.get(operationName); }
+		public SOAPClass getSOAPClass(String className) { return _soapClasses.get(className); }
+		public ArrayList<SOAPClass> getSOAPClasses() { return new ArrayList<SOAPClass>(_soapClasses.values()); }
+		// schemas that failed to compile, and wsdls for new end points, are added to these as they're needed
+		public ConcurrentHashMap<String, OperationSchema> getOperationSchemas() { return _operationSchemas; }
+		public ConcurrentHashMap<String, ConcurrentHashMap<String, WSDL>> getWSDLs() { return _wsdls; }
+		
+		public Registry() {
+			_operations = new HashMap<String, SOAPClass>();
+			_soapClasses = new HashMap<String, SOAPClass>();
+			_operationSchemas = new ConcurrentHashMap<String, OperationSchema>();
+			_wsdls = new ConcurrentHashMap<String, ConcurrentHashMap<String, WSDL>>();
+		}
+		
+		public Registry(Registry registry) {
+			// start from a copy, what was compiled and generated is still good for the operations that don't change
+			_operations = new HashMap<String, SOAPClass>(registry._operations);
+			_soapClasses = new HashMap<String, SOAPClass>(registry._soapClasses);
+			_operationSchemas = new ConcurrentHashMap<String, OperationSchema>(registry._operationSchemas);
+			_wsdls = new ConcurrentHashMap<String, ConcurrentHashMap<String, WSDL>>(registry._wsdls);
+		}
+		
+		public void addOperation(String operationName, SOAPClass soapClass) {
+			_operations.put(operationName, soapClass);
+			// anything made for a previous class with this name is no longer any good
+			_operationSchemas.remove(operationName);
+			_wsdls.remove(operationName);
+		}
+		
+		public void addSOAPClass(String className, SOAPClass soapClass) {
+			// this is just to prevent the same thing being added more than once, a class that's been reloaded is a different class so replaces what was made for the old one
+			SOAPClass existing = _soapClasses.get(className);
+			if (existing == null || existing.getBaseClass() != soapClass.getBaseClass()) _soapClasses.put(className, soapClass);
+		}
+		
+		public void linkSOAPClasses() {
+			// link the elements to the metadata of their complex types in this registry, before it's published, so requests never look them up in another
+			ArrayList<SOAPClass> soapClasses = getSOAPClasses();
+			soapClasses.addAll(_operations.values());
+			for (SOAPClass soapClass : soapClasses) {
+				for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+					if (p.isComplexType() && p.getSOAPClass() == null) p.setSOAPClass(_soapClasses.get((p.isArray() ? p.getComponentClass() : p.getMethodClass()).getName()));
 				}
-				
 			}
-			
-			return contains;
-			
 		}
 		
-		@Override
-		public SOAPClass put(String key, SOAPClass soapClass) {
-			
-			if (contains(key)) {
-				return this.get(key);
-			} else {
-				return super.put(key, soapClass);
+	}
+	
+	private static class Bulkhead {
+		
+		// limits how many requests an operation makes responses for at once, so a slow one can't take every thread
+		
+		private Semaphore _semaphore;
+		private int _maxConcurrent;
+		private long _maxWait;
+		
+		public int getMaxConcurrent() { return _maxConcurrent; }
+		public int getAvailable() { return _semaphore.availablePermits(); }
+		
+		public Bulkhead(int maxConcurrent, long maxWait) {
+			_semaphore = new Semaphore(maxConcurrent, true);
+			_maxConcurrent = maxConcurrent;
+			_maxWait = maxWait;
+		}
+		
+		public boolean acquire() throws InterruptedException {
+			// wait up to the maximum for a permit
+			return _semaphore.tryAcquire(_maxWait, TimeUnit.MILLISECONDS);
+		}
+		
+		public boolean tryAcquire() {
+			// a permit if there's one free now, without barging ahead of any waiting for one
+			try {
+				return _semaphore.tryAcquire(0, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
-			
 		}
-				
+		
+		public void release() {
+			_semaphore.release();
+		}
+		
 	}
+	
+	public static class OperationMetrics {
 		
-	private static class ClassMethods extends ArrayList<Method> {
+		// counts and times requests without locks, durations are kept in microseconds in buckets an eighth of a power of two wide, so percentiles are within 12.5%
 		
-		public class MethodComparator implements Comparator<Method> {
-
-			private int getOrder(Method m) {
+		private static final int SUB_BUCKETS = 8;
+		private static final int BUCKETS = 2 * SUB_BUCKETS + 38 * SUB_BUCKETS;
+		
+		private LongAdder _requests;
+		private LongAdder _faults;
+		private LongAdder _validationFailures;
+		private LongAdder _inFlight;
+		private LongAdder _totalMicros;
+		private AtomicLongArray _buckets;
+		
+		public long getRequests() { return _requests.sum(); }
+		public long getFaults() { return _faults.sum(); }
+		public long getValidationFailures() { return _validationFailures.sum(); }
+		public long getInFlight() { return _inFlight.sum(); }
+		public long getTotalMicros() { return _totalMicros.sum(); }
+		
+		public OperationMetrics() {
+			_requests = new LongAdder();
+			_faults = new LongAdder();
+			_validationFailures = new LongAdder();
+			_inFlight = new LongAdder();
+			_totalMicros = new LongAdder();
+			_buckets = new AtomicLongArray(BUCKETS);
+		}
+		
+		private static int getBucket(long micros) {
+			// small values get a bucket each, after that each power of two is split into 8
+			if (micros < 2 * SUB_BUCKETS) return (int) Math.max(micros, 0);
+			int power = 63 - Long.numberOfLeadingZeros(micros);
+			int bucket = (power - 2) * SUB_BUCKETS + (int) ((micros >> (power - 3)) & (SUB_BUCKETS - 1));
+			return Math.min(bucket, BUCKETS - 1);
+		}
+		
+		private static long getBucketMicros(int bucket) {
+			// the largest duration in the bucket
+			if (bucket < 2 * SUB_BUCKETS) return bucket;
+			int power = bucket / SUB_BUCKETS + 2;
+			return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (power - 3)) - 1;
+		}
+		
+		public long start() {
+			_requests.increment();
+			_inFlight.increment();
+			return System.nanoTime();
+		}
+		
+		public void end(long start, boolean fault, boolean validationFailure) {
+			long micros = (System.nanoTime() - start) / 1000;
+			_inFlight.decrement();
+			if (fault) _faults.increment();
+			if (validationFailure) _validationFailures.increment();
+			_totalMicros.add(micros);
+			_buckets.incrementAndGet(getBucket(micros));
+		}
+		
+		public long getPercentileMicros(double percentile) {
+			// count the buckets, which may be changing, then walk them to the one holding the percentile
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = _buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += counts[i];
+				if (count >= rank) return getBucketMicros(i);
+			}
+			return getBucketMicros(BUCKETS - 1);
+		}
+		
+	}
+	
+	public static class ResponseCache {
+		
+		// marshalled responses by the hash of their request, the least recently used go once there are too many or they take too much memory,
+		// and requests that arrive while a response is being made wait for it rather than all making it at once, with no ttl that's all it does,
+		// a loader can complete with null for a response that can't be shared, which those waiting are given to make their own
+		
+		private static class Entry {
+			private CompletableFuture<byte[]> _future = new CompletableFuture<byte[]>();
+			private long _expires;
+			private int _size;
+		}
+		
+		private long _ttl;
+		private int _maxEntries;
+		private long _maxBytes;
+		private LinkedHashMap<String, Entry> _entries;
+		private long _bytes;
+		private LongAdder _hits;
+		private LongAdder _misses;
+		private LongAdder _evictions;
+		
+		public long getTTL() { return _ttl; }
+		public int getMaxEntries() { return _maxEntries; }
+		public long getMaxBytes() { return _maxBytes; }
+		public long getHits() { return _hits.sum(); }
+		public long getMisses() { return _misses.sum(); }
+		public long getEvictions() { return _evictions.sum(); }
+		public synchronized int getSize() { return _entries.size(); }
+		public synchronized long getBytes() { return _bytes; }
+		
+		public double getHitRate() {
+			long hits = getHits();
+			long total = hits + getMisses();
+			return total == 0 ? 0 : (double) hits / total;
+		}
+		
+		public ResponseCache(long ttl, int maxEntries, long maxBytes) {
+			_ttl = ttl;
+			_maxEntries = maxEntries;
+			_maxBytes = maxBytes;
+			// access order, so the eldest is the least recently used
+			_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+			_hits = new LongAdder();
+			_misses = new LongAdder();
+			_evictions = new LongAdder();
+		}
+		
+		public CompletableFuture<byte[]> get(String key, Callable<CompletionStage<byte[]>> loader) {
+			
+			Entry entry;
+			
+			synchronized (this) {
 				
-				int order = 0;
+				entry = _entries.get(key);
 				
-				for (Annotation a : m.getAnnotations()) {
-					if (a instanceof XSDorder) {
-						XSDorder o = (XSDorder) a;
-						order = o.value();
-						break;
-					}
+				// entries being made have no expiry yet
+				if (entry != null && entry._expires != 0 && entry._expires <= System.currentTimeMillis()) {
+					remove(key);
+					entry = null;
 				}
 				
-				return order;
+				if (entry != null) {
+					// a waiter only counts as a hit if it's given the response, not if it couldn't be shared so the waiter has to make its own
+					entry._future.whenComplete((bytes, ex) -> { if (bytes != null || ex != null) _hits.increment(); });
+					return entry._future;
+				}
+				
+				_misses.increment();
+				
+				entry = new Entry();
+				
+				_entries.put(key, entry);
+				
+				evict();
 				
 			}
 			
-			public int compare(Method m1, Method m2) {
+			// the response is made outside the lock, anyone else asking for it meanwhile gets the same future
+			final Entry loading = entry;
+			
+			try {
 				
-				int o = 0;
-				int o1 = getOrder(m1);
-				int o2 = getOrder(m2);
+				CompletionStage<byte[]> stage = loader.call();
 				
-				if (o1 > o2) {
-					o = 1;
-				} else if (o1 < o2) {
-					o = -1;
+				stage.whenComplete((bytes, ex) -> loaded(key, loading, bytes, ex));
+				
+			} catch (Exception ex) {
+				
+				loaded(key, loading, null, ex);
+				
+			}
+			
+			return loading._future;
+			
+		}
+		
+		private void loaded(String key, Entry entry, byte[] bytes, Throwable ex) {
+			
+			synchronized (this) {
+				
+				// it may have been invalidated, or evicted, while it was being made, in which case it's given to those waiting but not kept
+				if (_entries.get(key) == entry) {
+					
+					if (ex == null && bytes != null && _ttl > 0) {
+						entry._size = bytes.length;
+						entry._expires = System.currentTimeMillis() + _ttl;
+						_bytes += entry._size;
+						evict();
+					} else {
+						// faults aren't kept, the next request tries again, and nothing is kept once made without a ttl
+						_entries.remove(key);
+					}
+					
 				}
 				
-				return o;
 			}
 			
+			if (ex == null) entry._future.complete(bytes); else entry._future.completeExceptionally(ex);
+			
 		}
 		
-		public ClassMethods(Method[] methods) {
+		private void remove(String key) {
+			Entry entry = _entries.remove(key);
+			if (entry != null) _bytes -= entry._size;
+		}
+		
+		private void evict() {
+			// drop the least recently used until we're back within the limits
+			Iterator<Entry> entries = _entries.values().iterator();
+			while ((_entries.size() > _maxEntries || _bytes > _maxBytes) && entries.hasNext()) {
+				_bytes -= entries.next()._size;
+				entries.remove();
+				_evictions.increment();
+			}
+		}
+		
+		public synchronized void invalidate(String key) {
+			remove(key);
+		}
+		
+		public synchronized void invalidate() {
+			_entries.clear();
+			_bytes = 0;
+		}
+		
+	}
+	
+	private static class CachedResponse {
+		
+		// a response from the cache, shared with an identical request, or to a batch, already written as text xml
+		
+		private byte[] _bytes;
+		
+		public byte[] getBytes() { return _bytes; }
+		
+		public CachedResponse(byte[] bytes) {
+			_bytes = bytes;
+		}
+		
+	}
+	
+	private static class BatchCall {
+		
+		// one call in a batch, in an envelope of its own, or why it can't be made
+		
+		private String _operationName;
+		private byte[] _envelope;
+		private String _error;
+		
+		public String getOperationName() { return _operationName; }
+		public byte[] getEnvelope() { return _envelope; }
+		public void setEnvelope(byte[] envelope) { _envelope = envelope; }
+		public String getError() { return _error; }
+		public void setError(String error) { if (_error == null) _error = error; }
+		
+		public BatchCall(String operationName) {
+			_operationName = operationName;
+			if (operationName == null) _error = "A batch Call must have an operation attribute";
+		}
+		
+	}
+	
+	private static class OperationSchema {
+		
+		// the schema is compiled once and is thread-safe, validators are not so each request borrows its own
+		
+		private Schema _schema;
+		private ConcurrentLinkedQueue<Validator> _validators;
+		private ConcurrentLinkedQueue<ValidatorHandler> _validatorHandlers;
+		
+		public Schema getSchema() { return _schema; }
+		
+		public OperationSchema(Schema schema) {
+			_schema = schema;
+			_validators = new ConcurrentLinkedQueue<Validator>();
+			_validatorHandlers = new ConcurrentLinkedQueue<ValidatorHandler>();
+		}
+		
+		public Validator getValidator() {
 			
-			Arrays.sort(methods, new MethodComparator());
+			Validator validator = _validators.poll();
 			
-			for (Method m : methods) this.add(m);
+			if (validator == null) validator = _schema.newValidator();
+			
+			return validator;
 			
 		}
 		
-		public Boolean contains(String name) {
+		public void returnValidator(Validator validator) {
 			
-			Boolean contains = false;
+			// clear any handlers and state from the last use before it goes back in the pool
+			validator.reset();
 			
-			for (Method m : this) {
-				if (m.getName().endsWith(name)) {
-					contains = true;
-					break;
-				}
-			}
+			_validators.offer(validator);
 			
-			return contains;
+		}
+		
+		public ValidatorHandler getValidatorHandler() {
 			
-		}		
+			ValidatorHandler validatorHandler = _validatorHandlers.poll();
+			
+			if (validatorHandler == null) validatorHandler = _schema.newValidatorHandler();
+			
+			return validatorHandler;
+			
+		}
+		
+		public void returnValidatorHandler(ValidatorHandler validatorHandler) {
+			
+			// handlers reset themselves at the start of each document, so only return those that reached the end of one
+			validatorHandler.setErrorHandler(null);
+			
+			_validatorHandlers.offer(validatorHandler);
+			
+		}
 		
 	}
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD, ElementType.TYPE})
-	public @interface XSDchoice {}
+		
+	private static class ValidatingEventReader implements XMLEventReader {
+		
+		// reads the request element from the stream, passing each event to the validator before the binder gets it, so the body is only read once and the first failure stops the binding
+		
+		private XMLEventReader _reader;
+		private ContentHandler _validatorHandler;
+		private int _depth;
+		private boolean _started;
+		
+		public ValidatingEventReader(XMLEventReader reader, ContentHandler validatorHandler) {
+			_reader = reader;
+			_validatorHandler = validatorHandler;
+			_depth = 0;
+			_started = false;
+		}
+		
+		public boolean hasNext() { return (!_started || _depth > 0) && _reader.hasNext(); }
+		
+		public XMLEvent nextEvent() throws XMLStreamException {
 			
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDname { public String name(); }
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDtype { public String name(); }
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDorder { public int value(); }
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDminOccurs { public int value(); }
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDmaxOccurs { public int value(); }	
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDnillable { public boolean value(); }	
-		
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDminLength { public int value(); }	
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDmaxLength { public int value(); }	
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDpattern { public String value(); }
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDenumeration { public String value(); }
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDminInclusive{ public String value(); }	
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDmaxInclusive { public String value(); }
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDminExclusive{ public String value(); }	
-	
-	@Retention(RetentionPolicy.RUNTIME)
-	@Target({ElementType.METHOD, ElementType.FIELD})
-	public @interface XSDmaxExclusive { public String value(); }
-		
-	private static WSFactory _WSFactory;
-	private SOAPClasses _soapClasses;
-	private Hashtable<String, SOAPClass> _operations;
-	private ArrayList<String> _complexTypes;
-	private Hashtable<String,Document> _wsdls;			
-	private Hashtable<String, Validator> _validators;	
-	private Logger _logger; 
+			if (!hasNext()) throw new NoSuchElementException();
 			
-	private WSFactory() {
-		// initialise collections
-		_soapClasses = new SOAPClasses();
-		_operations = new Hashtable<String, SOAPClass>();
-		_complexTypes = new ArrayList<String>();
-		_wsdls = new Hashtable<String,Document>();				
-		_validators = new Hashtable<String, Validator>();
-		// initialise logger
-		_logger = Logger.getLogger(WSFactory.class);		
-	}
-		
-	public static WSFactory getWSFactory() {
-		// instantiate only if null (singleton pattern)
-		if (_WSFactory == null) _WSFactory = new WSFactory();
-		// return it
-		return _WSFactory;		
-	}
-	
-	private boolean isXSDAnnotation(Annotation a) {
-		
-		if (a instanceof XSDchoice || 
-				a instanceof XSDname || 
-				a instanceof XSDtype || 
-				a instanceof XSDorder || 
-				a instanceof XSDminOccurs || 
-				a instanceof XSDmaxOccurs || 
-				a instanceof XSDnillable || 
-				a instanceof XSDminLength || 
-				a instanceof XSDmaxLength|| 
-				a instanceof XSDpattern || 
-				a instanceof XSDenumeration || 
-				a instanceof XSDminInclusive || 
-				a instanceof XSDmaxInclusive || 
-				a instanceof XSDminExclusive || 
-				a instanceof XSDmaxExclusive ) {
+			XMLEvent e = _reader.nextEvent();
 			
-			return true;
+			_started = true;
 			
-		} else {
+			if (e.isStartElement()) _depth ++;
 			
-			return false;
+			if (e.isEndElement()) _depth --;
 			
-		}
+			try {
 				
-	}
-	
+				sendSAXEvent(_validatorHandler, e);
+				
+			} catch (SAXException ex) {
+				
+				throw new XMLStreamException(ex);
+				
+			}
 			
-	private SOAPClass getSOAPClass(Class c) {
-		
-		// create soapClass for return
-		SOAPClass soapClass = new SOAPClass(c);
+			return e;
+			
+		}
 		
-		// names of all class methods
-		ClassMethods methods = new ClassMethods(c.getMethods());	
+		public Object next() {
+			try {
+				return nextEvent();
+			} catch (XMLStreamException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
 		
-		// loop all retained method names looking for get/set pairs
-		for (Method m : methods) {
-			// work with the get methods as we need the return type for our class
-			if (m.getName().indexOf("get") == 0) {
-				// if we have a corresponding set method in the list
-				if (methods.contains("set" + m.getName().substring(3))) {
-					
-					// name
-					String name = m.getName().substring(3);
-
-					// make the property
-					SOAPClassElement p = new SOAPClassElement(m, name);
-
-					// put property in our collection
-					soapClass.getSOAPClassElements().add(p);
-					
-					// add any properties that are complex types in too
-					if (p.isComplexType() && !p.isArray()) {
-						
-						SOAPClass s = getSOAPClass(p.getMethodClass());
-						
-						addSoapClass(p.getMethodClass().getName(), s);
-						
-					}															
-				}
-			}						
+		public XMLEvent peek() throws XMLStreamException {
+			return hasNext() ? _reader.peek() : null;
 		}
 		
-		Field[] fields = c.getFields();
+		public String getElementText() throws XMLStreamException {
+			
+			StringBuilder text = new StringBuilder();
+			
+			while (hasNext()) {
+				
+				XMLEvent e = nextEvent();
+				
+				if (e.isEndElement()) break;
+				
+				if (e.isStartElement()) throw new XMLStreamException("Unexpected element " + e.asStartElement().getName() + " in text-only element");
+				
+				if (e.isCharacters()) text.append(e.asCharacters().getData());
+				
+			}
+			
+			return text.toString();
+			
+		}
 		
-		if (fields != null) {
+		public XMLEvent nextTag() throws XMLStreamException {
 			
-			for (Field f : fields) {
+			while (hasNext()) {
+				
+				XMLEvent e = nextEvent();
+				
+				if (e.isStartElement() || e.isEndElement()) return e;
+				
+				if (e.isCharacters() && !e.asCharacters().isWhiteSpace()) throw new XMLStreamException("Unexpected text where a tag was expected");
 				
-				Annotation[] annotations = f.getAnnotations();
-												
-				if (annotations != null) {
-					
-					boolean soaField = false;
-					
-					for (Annotation a : annotations) {
-						
-						if (isXSDAnnotation(a)) {
-							soaField = true;
-							break;
-						}
-						
-					}
-					
-					if (soaField) {
-						
-						// name
-						String name = f.getName();
-
-						// make the property
-						SOAPClassElement p = new SOAPClassElement(f, name);
-
-						// put property in our collection
-						soapClass.getSOAPClassElements().add(p);
-						
-						// add any properties that are complex types in too
-						if (p.isComplexType() && !p.isArray()) {
-							
-							SOAPClass s = getSOAPClass(p.getMethodClass());
-							
-							addSoapClass(p.getMethodClass().getName(), s);
-							
-						}
-						
-					}
-					
-				}
-								
 			}
-									
+			
+			throw new XMLStreamException("No more tags");
+			
 		}
 		
-		return soapClass;
+		public Object getProperty(String name) { return _reader.getProperty(name); }
+		
+		public void remove() { throw new UnsupportedOperationException(); }
+		
+		public void close() throws XMLStreamException { _reader.close(); }
 		
 	}
 	
-	public void addSoapClass(String name, SOAPClass soapClass) {
-		if (!_soapClasses.contains(name)) _soapClasses.put(name, soapClass);
-	}
-	
-	public void addSubClassSoapClasses(Class c) 
-			throws ClassNotDirectlyInstantiable {
+	private static class XOPInclude implements Characters {
 		
-		// check properties and add SOAPType if complex
-		// names of all class methods
-		ClassMethods methods = new ClassMethods(c.getMethods());	
+		// stands in for an xop:Include element, the validator sees empty text, which is valid base64, and the binder takes the attachment it referred to
 		
-		// loop all retained method names looking for get/set pairs
-		for (Method m : methods) {
-			// work with the get methods as we need the return type for our class
-			if (m.getName().indexOf("get") == 0) {
-				// if we have a corresponding set method in the list
-				if (methods.contains("set" + m.getName().substring(3))) {
-					
-					Class mc = m.getReturnType();
-					
-					if (!getIsSimpleSOAPType(mc)) {
-						
-						if (mc.isArray()) mc = mc.getComponentType();
-						
-						addSoapClass(mc.getName(), getSOAPClass(mc));
-						
-						addSubClassSoapClasses(mc);
-					
-					}
-										
-				}
-			}						
-		}
+		private Attachments _attachments;
+		private String _contentId;
+		private Location _location;
 		
-		// check fields for XSD annotations and add SOAPType if complex
-		Field[] fields = c.getFields();
+		public XOPInclude(Attachments attachments, String contentId, Location location) {
+			_attachments = attachments;
+			_contentId = contentId;
+			_location = location;
+		}
 		
-		if (fields != null) {
+		public Object getValue(boolean stream) throws XMLStreamException {
 			
-			for (Field f : fields) {
+			// a part that was spooled to disk is only read into memory if it's bound to a byte[]
+			try {
+				
+				return stream ? _attachments.getPartStream(_contentId) : _attachments.getPart(_contentId);
+				
+			} catch (IOException ex) {
+				
+				throw new XMLStreamException("Error reading attachment " + _contentId, _location, ex);
 				
-				Annotation[] annotations = f.getAnnotations();
-												
-				if (annotations != null) {
-					
-					boolean soaField = false;
-					
-					for (Annotation a : annotations) {
-						
-						if (isXSDAnnotation(a)) {
-							soaField = true;
-							break;
-						}
-						
-					}
-					
-					if (soaField) {
-						
-						Class fc = f.getType();
-						
-						if (!getIsSimpleSOAPType(fc)) {
-							
-							if (fc.isArray()) fc = fc.getComponentType();
-							
-							String name = fc.getName();
-							
-							SOAPClass soapClass = getSOAPClass(fc);
-						
-							addSoapClass(name, soapClass);
-							
-							addSubClassSoapClasses(fc);
-						
-						}
-						
-					}
-					
-				}
-								
 			}
-									
+			
 		}
 		
+		public String getData() { return ""; }
+		public boolean isWhiteSpace() { return false; }
+		public boolean isCData() { return false; }
+		public boolean isIgnorableWhiteSpace() { return false; }
+		public int getEventType() { return XMLStreamConstants.CHARACTERS; }
+		public Location getLocation() { return _location; }
+		public boolean isStartElement() { return false; }
+		public boolean isAttribute() { return false; }
+		public boolean isNamespace() { return false; }
+		public boolean isEndElement() { return false; }
+		public boolean isEntityReference() { return false; }
+		public boolean isProcessingInstruction() { return false; }
+		public boolean isCharacters() { return true; }
+		public boolean isStartDocument() { return false; }
+		public boolean isEndDocument() { return false; }
+		public StartElement asStartElement() { throw new ClassCastException("Not a start element"); }
+		public EndElement asEndElement() { throw new ClassCastException("Not an end element"); }
+		public Characters asCharacters() { return this; }
+		public QName getSchemaType() { return null; }
+		public void writeAsEncodedUnicode(Writer writer) {}
+		
 	}
+	
+	private static class XOPEventReader extends EventReaderDelegate {
 		
-	public void clearOperations() {
+		// swaps each xop:Include element in the envelope of an mtom request for the attachment it refers to
 		
-		_operations.clear();
-		_wsdls.clear();
-		_validators.clear();
-				
-	}
+		private Attachments _attachments;
+		private XMLEvent _peeked;
+		
+		public XOPEventReader(XMLEventReader reader, Attachments attachments) {
+			super(reader);
+			_attachments = attachments;
+		}
+		
+		private XMLEvent getEvent(XMLEvent e) throws XMLStreamException {
 			
-	public void addOperation(String operationName, String requestClassName) 
-			throws	ClassNotFoundException, 
-			ClassNotRequestException, 
-			SecurityException, 
-			UnrecognizedOperation, 
-			ParserConfigurationException, 
-			NoSuchMethodException, 
-			ClassNotDirectlyInstantiable {
-
-		Class c = Class.forName(requestClassName);		
-		
-		// make sure this class extends WSFactory.Request
-		if (c.getSuperclass().equals(Request.class)) {
+			if (e.isStartElement() && XOP_NAMESPACE.equals(e.asStartElement().getName().getNamespaceURI()) && "Include".equals(e.asStartElement().getName().getLocalPart())) {
+				
+				Attribute href = e.asStartElement().getAttributeByName(new QName("href"));
+				
+				String contentId = href == null ? null : getContentId(href.getValue());
+				
+				if (contentId == null || !_attachments.hasPart(contentId)) throw new XMLStreamException("No attachment found for xop:Include " + (href == null ? "without an href" : href.getValue()), e.getLocation());
+				
+				// the include has no content of its own
+				Codec.skipElement(getParent());
+				
+				return new XOPInclude(_attachments, contentId, e.getLocation());
+				
+			}
 			
-			// get the SOAPClass
-			SOAPClass s = getSOAPClass(c);
+			return e;
 			
-			// add the request class
-			addSoapClass(c.getName(), s);
-									
-			// add all sub classes
-			addSubClassSoapClasses(c);
+		}
+		
+		@Override
+		public boolean hasNext() { return _peeked != null || super.hasNext(); }
+		
+		@Override
+		public XMLEvent nextEvent() throws XMLStreamException {
 			
-			Method[] methods = c.getMethods();
+			if (_peeked == null) return getEvent(super.nextEvent());
 			
-			// locate and add the getResponse class
-			for (Method m : methods) {
-				
-				if (m.getName().equals("getResponse") && !m.getReturnType().getName().equals("java.lang.Object")) {
-					
-					Class rc = m.getReturnType();					
-					
-					// if it's not a simple type
-					if (!getIsSimpleSOAPType(rc)) {
-						
-						// create a soap type for it
-						addSoapClass(rc.getName(), getSOAPClass(rc));
-						
-						// add all sub classes
-						addSubClassSoapClasses(rc);
-						
-					}
-										
-					break;
-				}
-				
-			}
+			XMLEvent e = _peeked;
 			
-			// add the operation
-			_operations.put(operationName, s);
+			_peeked = null;
 			
-			// log it
-			_logger.debug("Operation " + operationName + " added");
+			return e;
 			
-		} else { throw new ClassNotRequestException(); }
-				
-	}		
-	
-	public void addOperation(String operationName, Class requestClass) 
-			throws	ClassNotFoundException, 
-			ClassNotRequestException, 
-			SecurityException, 
-			UnrecognizedOperation, 
-			ParserConfigurationException, 
-			NoSuchMethodException, 
-			ClassNotDirectlyInstantiable {
+		}
+		
+		@Override
+		public Object next() {
+			try {
+				return nextEvent();
+			} catch (XMLStreamException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
 		
-		addOperation(operationName, requestClass.getCanonicalName());
+		@Override
+		public XMLEvent peek() throws XMLStreamException {
+			if (_peeked == null && super.hasNext()) _peeked = getEvent(super.nextEvent());
+			return _peeked;
+		}
 		
 	}
 	
-	public Set<String> getOperations() { return _operations.keySet(); }
-	
-	private Element getElement(Document doc, SOAPClassElement p, Element schemaRoot) {
+	private static class MIMEReader {
 		
-		Element propertyelement = doc.createElement("xs:element");
-				
-		if (p.isArray()) {
+		// reads the parts of a multipart body one after another, straight from the stream
+		
+		private InputStream _in;
+		private byte[] _buffer;
+		private int _position;
+		private int _length;
+		private byte[] _delimiter;
+		private HashMap<String, String> _headers;
+		private boolean _started;
+		private boolean _finished;
+		
+		public MIMEReader(InputStream in, String boundary) throws UnsupportedEncodingException {
+			_in = in;
+			_buffer = new byte[8192];
+			_delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+		}
+		
+		// the header of the current part, by lower case name
+		public String getHeader(String name) { return _headers.get(name); }
+		
+		private boolean fill() throws IOException {
+			_position = 0;
+			_length = _in.read(_buffer);
+			if (_length < 0) _length = 0;
+			return _length > 0;
+		}
+		
+		private String readLine() throws IOException {
 			
-			//complex type for array
-			Element arrayComplexType = doc.createElement("xs:complexType");
-			arrayComplexType.setAttribute("name", "ArrayOf" + p.getName() + "Type");
+			StringBuilder line = new StringBuilder();
 			
-			Element arraySequence = doc.createElement("xs:sequence");
-			arrayComplexType.appendChild(arraySequence);
+			while (_position < _length || fill()) {
+				
+				byte b = _buffer[_position++];
+				
+				if (b == '\n') return line.toString();
+				
+				if (b != '\r') line.append((char) (b & 0xff));
+				
+			}
 			
-			Element arrayElement = doc.createElement("xs:element");
-			arraySequence.appendChild(arrayElement);
-			arrayElement.setAttribute("name", p.getName());		
+			return line.length() == 0 ? null : line.toString();
 			
-			// this is an array so maxOccours should be unbounded unless otherwise set
-			boolean maxOccursSet = false;
+		}
+		
+		private boolean readToDelimiter(OutputStream body, int matched) throws IOException {
 			
-			// set the attributes here			
-			for (ElementAttribute a : p.getAttributes()) {
+			// copies everything before the next delimiter to the body, if there is one, and leaves us just after it
+			
+			while (_position < _length || fill()) {
 				
-				// if minOccurs is zero make the whole array optional
-				if (a.getName().equals("minOccurs") && a.getValue().equals("0")) {
+				if (matched == 0) {
 					
-					propertyelement.setAttribute(a.getName(), a.getValue());
+					// the delimiter starts with the only carriage return in it, so everything up to the next one is body
+					int start = _position;
 					
-				} else if (a.getName().equals("maxOccurs")) {
+					while (_position < _length && _buffer[_position] != '\r') _position++;
 					
-					maxOccursSet = true;
-					propertyelement.setAttribute(a.getName(), a.getValue());
+					if (body != null) body.write(_buffer, start, _position - start);
+					
+					if (_position == _length) continue;
+					
+				}
+				
+				byte b = _buffer[_position++];
+				
+				if (b == _delimiter[matched]) {
+					
+					if (++matched == _delimiter.length) return true;
 					
 				} else {
 					
-					arrayElement.setAttribute(a.getName(), a.getValue());
+					// what looked like the delimiter was body, and only this byte could start it again
+					if (body != null) body.write(_delimiter, 0, matched);
 					
-				}				
+					matched = b == _delimiter[0] ? 1 : 0;
+					
+					if (matched == 0 && body != null) body.write(b);
+					
+				}
+				
 			}
-						
-			if (!maxOccursSet) arrayElement.setAttribute("maxOccurs","unbounded");
-						
-			schemaRoot.appendChild(arrayComplexType);
 			
-			// name
-			propertyelement.setAttribute("name", "ArrayOf" + p.getName());
+			return false;
 			
-			// type
-			propertyelement.setAttribute("type", p.getType());
+		}
+		
+		public boolean nextPart() throws IOException {
 			
+			if (!_started) {
+				
+				// skip any preamble, the first delimiter needn't have a line end before it
+				_started = true;
+				
+				if (!readToDelimiter(null, 2)) throw new IOException("No MIME boundary found");
+				
+			}
 			
-			//type
-			if (p.isComplexType()) {
+			if (_finished) return false;
+			
+			// the delimiter is followed by -- after the last part, and otherwise the rest of its line
+			String line = readLine();
+			
+			if (line == null || line.startsWith("--")) {
 				
-				// type
-				arrayElement.setAttribute("type", p.getArrayType());
-				// create a complex type for what the array is enclosing
-				Element complexType = getComplexType(doc, p.getMethodClass().getComponentType(), false, schemaRoot);
-				if (complexType != null) schemaRoot.appendChild(complexType);
+				_finished = true;
 				
-			} else {
+				return false;
 				
-				boolean gotRestrictions = false;
+			}
+			
+			_headers = new HashMap<String, String>();
+			
+			while ((line = readLine()) != null && line.length() > 0) {
 				
-				// any restrictions here
-				for (ElementAttribute r : p.getRestrictions()) {
-					
-					if (r.getName().equals("enumeration")) {
-						
-						// create the simple type
-						Element simpletypeElement = doc.createElement("xs:simpleType");					
-						arrayElement.appendChild(simpletypeElement);
-						
-						// create the restriction with the base as type
-						Element restrictionElement = doc.createElement("xs:restriction");
-						restrictionElement.setAttribute("base", p.getArrayType());
-						simpletypeElement.appendChild(restrictionElement);
-						
-						String[] values = r.getValue().split(",");
-						for (String v : values) {
-							Element re = doc.createElement("xs:enumeration");
-							re.setAttribute("value", v);
-							restrictionElement.appendChild(re);	
-						}
-						
-						gotRestrictions = true;
-						
-					}
-					
-				}
+				int colon = line.indexOf(':');
 				
-				// if no restrictions go simple
-				if (!gotRestrictions) arrayElement.setAttribute("type", p.getArrayType());
+				if (colon > 0) _headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
 				
 			}
-																							
 			
-		} else {
+			return true;
 			
-			// name
-			propertyelement.setAttribute("name", p.getName());	
-						
-			// create and append complex type
-			if (p.isComplexType()) {
+		}
+		
+		public void readBody(OutputStream body) throws IOException {
 			
-				Element complexType = getComplexType(doc, p.getMethodClass(), false, schemaRoot);
-				
-				propertyelement.setAttribute("type", p.getType());
+			if (!readToDelimiter(body, 0)) throw new IOException("MIME part was not ended by a boundary");
+			
+		}
+		
+	}
+	
+	private static String getContentTypeParameter(String contentType, String name) {
+		
+		for (String parameter : contentType.split(";")) {
+			
+			int equals = parameter.indexOf('=');
+			
+			if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase(name)) {
 				
-				if (complexType != null) schemaRoot.appendChild(complexType);
+				String value = parameter.substring(equals + 1).trim();
 				
-			} else {
+				if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) value = value.substring(1, value.length() - 1);
 				
-				if (p.getRestrictions().size() > 0) {
-					
-					// create the simple type
-					Element simpletypeElement = doc.createElement("xs:simpleType");					
-					propertyelement.appendChild(simpletypeElement);
-					
-					// create the restriction with the base as type
-					Element restrictionElement = doc.createElement("xs:restriction");
-					restrictionElement.setAttribute("base", p.getType());
-					simpletypeElement.appendChild(restrictionElement);
-					
-					// add any restrictions
-					for (ElementAttribute r : p.getRestrictions()) {
-						
-						if (r.getName().equals("enumeration")) {
-							
-							String[] values = r.getValue().split(",");
-							for (String v : values) {
-								Element re = doc.createElement("xs:enumeration");
-								re.setAttribute("value", v);
-								restrictionElement.appendChild(re);	
-							}
-							
-						} else {
-							
-							Element re = doc.createElement("xs:" + r.getName());
-							re.setAttribute("value", r.getValue());
-							restrictionElement.appendChild(re);	
-							
-						}
-																		
-					}
-					
-				} else {
-					
-					// just set the type
-					propertyelement.setAttribute("type", p.getType());
-					
-				}
+				return value;
 				
 			}
 			
-			// add remaining non-special attributes
-			for (ElementAttribute at : p.getAttributes()) {
-				propertyelement.setAttribute(at.getName(), at.getValue());
-			}						
-			
 		}
-									
-		return propertyelement;
+		
+		return null;
 		
 	}
 	
-	private Element getComplexType(Document doc, Class c, Boolean anonymous, Element schemaRoot) {
+	private static String getContentId(String contentId) {
 		
-		if (_complexTypes.contains(c.getSimpleName()) && !anonymous) {
+		// the same id from a Content-ID header, <id>, or an href, cid:id with any reserved characters escaped
+		
+		if (contentId == null) return null;
+		
+		contentId = contentId.trim();
+		
+		if (contentId.startsWith("<") && contentId.endsWith(">")) return contentId.substring(1, contentId.length() - 1);
+		
+		if (contentId.regionMatches(true, 0, "cid:", 0, 4)) {
+			try {
+				return URLDecoder.decode(contentId.substring(4).replace("+", "%2B"), "UTF-8");
+			} catch (UnsupportedEncodingException ex) {
+				return contentId.substring(4);
+			}
+		}
+		
+		return contentId;
+		
+	}
+	
+	private static class PartOutputStream extends OutputStream {
+		
+		// keeps a part in memory until it's bigger than the threshold, and then in a temporary file if it can be, failing once the request has more than the maximum
+		
+		private Attachments _attachments;
+		private boolean _spool;
+		private ByteArrayOutputStream _bytes;
+		private File _file;
+		private OutputStream _fileOut;
+		
+		public PartOutputStream(Attachments attachments, boolean spool) {
+			_attachments = attachments;
+			_spool = spool;
+			_bytes = new ByteArrayOutputStream();
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
 			
-			return null;
+			_attachments._size += len;
 			
-		} else {
+			if (_attachments._maxSize > 0 && _attachments._size > _attachments._maxSize) throw new IOException("MTOM request is larger than the maximum of " + _attachments._maxSize + " bytes");
+			
+			if (_spool && _file == null && _bytes.size() + len > _attachments._memoryThreshold) {
+				
+				// the attachments delete it when they're closed
+				_file = File.createTempFile("rapid-soa-", ".part", _attachments._directory);
+				
+				_attachments._files.add(_file);
+				
+				_fileOut = new BufferedOutputStream(new FileOutputStream(_file));
+				
+				_bytes.writeTo(_fileOut);
+				
+				_bytes = null;
+				
+			}
+			
+			if (_file == null) _bytes.write(b, off, len); else _fileOut.write(b, off, len);
+			
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (_fileOut != null) _fileOut.close();
+		}
+		
+		// the bytes, or the file they were spooled to
+		public Object getPart() { return _file == null ? _bytes.toByteArray() : _file; }
+		
+	}
+	
+	public static class Attachments implements AutoCloseable {
+		
+		// the parts of an mtom request, read from the stream as they come, the envelope is kept to be parsed and the rest by content id for the binding,
+		// parts bigger than the memory threshold are spooled to temporary files, rather than held on the heap, which are deleted when we're closed
+		
+		// the defaults, 1MB in memory and at most 100MB in a request
+		public final static int MEMORY_THRESHOLD = 1024 * 1024;
+		public final static long MAX_SIZE = 100L * 1024 * 1024;
+		
+		private byte[] _root;
+		private HashMap<String, Object> _parts;
+		private File _directory;
+		private int _memoryThreshold;
+		private long _maxSize;
+		private long _size;
+		private ArrayList<File> _files;
+		private ArrayList<InputStream> _streams;
+		
+		public Attachments(InputStream in, String contentType) throws IOException {
+			this(in, contentType, null, MEMORY_THRESHOLD, MAX_SIZE);
+		}
+		
+		public Attachments(InputStream in, String contentType, File directory, int memoryThreshold, long maxSize) throws IOException {
+			
+			String boundary = getContentTypeParameter(contentType, "boundary");
+			
+			if (boundary == null) throw new IOException("No boundary in content type " + contentType);
+			
+			// the envelope is the start part, or the first if there's no start
+			String start = getContentId(getContentTypeParameter(contentType, "start"));
+			
+			_parts = new HashMap<String, Object>();
+			_directory = directory;
+			_memoryThreshold = memoryThreshold;
+			_maxSize = maxSize;
+			_files = new ArrayList<File>();
+			_streams = new ArrayList<InputStream>();
+			
+			MIMEReader reader = new MIMEReader(in, boundary);
+			
+			try {
+				
+				while (reader.nextPart()) {
+					
+					String contentId = getContentId(reader.getHeader("content-id"));
+					
+					boolean root = _root == null && (start == null || start.equals(contentId));
+					
+					// the envelope is always kept in memory to be parsed, but still counts towards the maximum
+					PartOutputStream body = new PartOutputStream(this, !root);
+					
+					try {
+						
+						reader.readBody(body);
+						
+					} finally {
+						
+						body.close();
+						
+					}
+					
+					if (root) {
+						_root = (byte[]) body.getPart();
+					} else if (contentId != null) {
+						_parts.put(contentId, body.getPart());
+					}
+					
+				}
+				
+				if (_root == null) throw new IOException("No root part found in MTOM request");
+				
+			} catch (IOException | RuntimeException ex) {
+				
+				close();
+				
+				throw ex;
+				
+			}
+			
+		}
+		
+		public InputStream getRootPart() { return new ByteArrayInputStream(_root); }
+		
+		public boolean hasPart(String contentId) { return _parts.containsKey(contentId); }
+		
+		public byte[] getPart(String contentId) throws IOException {
+			
+			Object part = _parts.get(contentId);
+			
+			return part instanceof File ? Files.readAllBytes(((File) part).toPath()) : (byte[]) part;
+			
+		}
+		
+		public synchronized InputStream getPartStream(String contentId) throws IOException {
+			
+			// the calls of a batch can bind the same part at once, each gets its own stream, closed with us if it hasn't been already
+			
+			Object part = _parts.get(contentId);
+			
+			if (part == null) return null;
+			
+			if (part instanceof byte[]) return new ByteArrayInputStream((byte[]) part);
+			
+			InputStream stream = new FileInputStream((File) part);
+			
+			_streams.add(stream);
+			
+			return stream;
+			
+		}
+		
+		@Override
+		public synchronized void close() {
+			
+			// once the response has been written, as the request's input streams may be read by it
+			
+			for (InputStream stream : _streams) {
+				try {
+					stream.close();
+				} catch (IOException ex) {}
+			}
+			
+			_streams.clear();
+			
+			for (File file : _files) {
+				if (!file.delete() && file.exists()) Logger.getLogger(WSFactory.class).warn("Could not delete MTOM part file " + file);
+			}
+			
+			_files.clear();
+			
+		}
+		
+	}
+		
+	private static class ClassMethods extends ArrayList<Method> {
+		
+		public class MethodComparator implements Comparator<Method> {
+
+			private int getOrder(Method m) {
+				
+				int order = 0;
+				
+				for (Annotation a : m.getAnnotations()) {
+					if (a instanceof XSDorder) {
+						XSDorder o = (XSDorder) a;
+						order = o.value();
+						break;
+					}
+				}
+				
+				return order;
+				
+			}
+			
+			public int compare(Method m1, Method m2) {
+				
+				int o = 0;
+				int o1 = getOrder(m1);
+				int o2 = getOrder(m2);
+				
+				if (o1 > o2) {
+					o = 1;
+				} else if (o1 < o2) {
+					o = -1;
+				}
+				
+				return o;
+			}
+			
+		}
+		
+		public ClassMethods(Method[] methods) {
+			
+			Arrays.sort(methods, new MethodComparator());
+			
+			for (Method m : methods) this.add(m);
+			
+		}
+		
+		public Boolean contains(String name) {
+			
+			Boolean contains = false;
+			
+			for (Method m : this) {
+				if (m.getName().endsWith(name)) {
+					contains = true;
+					break;
+				}
+			}
+			
+			return contains;
+			
+		}		
+		
+	}
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD, ElementType.TYPE})
+	public @interface XSDchoice {}
+			
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDname { public String name(); }
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDtype { public String name(); }
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDorder { public int value(); }
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDminOccurs { public int value(); }
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDmaxOccurs { public int value(); }	
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDnillable { public boolean value(); }	
+		
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDminLength { public int value(); }	
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDmaxLength { public int value(); }	
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDpattern { public String value(); }
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDenumeration { public String value(); }
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDminInclusive{ public String value(); }	
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDmaxInclusive { public String value(); }
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDminExclusive{ public String value(); }	
+	
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.METHOD, ElementType.FIELD})
+	public @interface XSDmaxExclusive { public String value(); }
+	
+	// responses to requests of this class are cached for ttl seconds, only use on operations that don't change anything
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface WScacheable { public int ttl(); public int maxEntries() default 1000; public long maxBytes() default 16777216; }
+	
+	// requests of this class that are the same as one being answered wait for its response rather than making their own, nothing is cached
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface WScoalesced {}
+			
+	private static volatile WSFactory _WSFactory;
+	private volatile Registry _registry;
+	private ArrayList<String> _complexTypes;
+	private ConcurrentHashMap<String, Bulkhead> _bulkheads;
+	private ConcurrentHashMap<String, OperationMetrics> _metrics;
+	private ConcurrentHashMap<String, ResponseCache> _caches;
+	private volatile ExecutorService _executor;
+	private ExecutorService _batchExecutor;
+	private volatile int _batchMaxCalls;
+	private volatile int _batchParallelism;
+	private XMLInputFactory _xmlInputFactory;
+	private XMLOutputFactory _xmlOutputFactory;
+	private Logger _logger; 
+			
+	private WSFactory() {
+		// initialise collections
+		_registry = new Registry();
+		_complexTypes = new ArrayList<String>();
+		_bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+		_metrics = new ConcurrentHashMap<String, OperationMetrics>();
+		_caches = new ConcurrentHashMap<String, ResponseCache>();
+		_batchMaxCalls = 1000;
+		_batchParallelism = 4;
+		// initialise the streaming parser, coalescing so text arrives in one piece, and with no dtds like SAAJ
+		_xmlInputFactory = XMLInputFactory.newInstance();
+		_xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		_xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		_xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		_xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		_xmlOutputFactory = XMLOutputFactory.newInstance();
+		// initialise logger
+		_logger = Logger.getLogger(WSFactory.class);		
+	}
+		
+	public static WSFactory getWSFactory() {
+		// instantiate only if null (singleton pattern), and only lock when we have to
+		if (_WSFactory == null) {
+			synchronized (WSFactory.class) {
+				if (_WSFactory == null) _WSFactory = new WSFactory();
+			}
+		}
+		// return it
+		return _WSFactory;		
+	}
+	
+	private boolean isXSDAnnotation(Annotation a) {
+		
+		if (a instanceof XSDchoice || 
+				a instanceof XSDname || 
+				a instanceof XSDtype || 
+				a instanceof XSDorder || 
+				a instanceof XSDminOccurs || 
+				a instanceof XSDmaxOccurs || 
+				a instanceof XSDnillable || 
+				a instanceof XSDminLength || 
+				a instanceof XSDmaxLength|| 
+				a instanceof XSDpattern || 
+				a instanceof XSDenumeration || 
+				a instanceof XSDminInclusive || 
+				a instanceof XSDmaxInclusive || 
+				a instanceof XSDminExclusive || 
+				a instanceof XSDmaxExclusive ) {
+			
+			return true;
+			
+		} else {
+			
+			return false;
+			
+		}
+				
+	}
+	
+			
+	private SOAPClass getSOAPClass(Class<?> c, Registry registry) {
+		
+		// create soapClass for return
+		SOAPClass soapClass = new SOAPClass(c);
+		
+		// names of all class methods
+		ClassMethods methods = new ClassMethods(c.getMethods());	
+		
+		// loop all retained method names looking for get/set pairs
+		for (Method m : methods) {
+			// work with the get methods as we need the return type for our class
+			if (m.getName().indexOf("get") == 0) {
+				// if we have a corresponding set method in the list
+				if (methods.contains("set" + m.getName().substring(3))) {
+					
+					// name
+					String name = m.getName().substring(3);
+					
+					// the setter that takes what the getter returns, or any other with one argument, say a primitive for a boxed getter, which reflection unboxes into
+					Method setter = null;
+					try {
+						setter = c.getMethod("set" + name, m.getReturnType());
+					} catch (NoSuchMethodException ex) {
+						for (Method sm : c.getMethods()) {
+							if (sm.getName().equals("set" + name) && sm.getParameterCount() == 1) {
+								setter = sm;
+								break;
+							}
+						}
+					}
+
+					// make the property
+					SOAPClassElement p = new SOAPClassElement(m, setter, name);
+
+					// put property in our collection
+					soapClass.addSOAPClassElement(p);
+					
+					// add any properties that are complex types in too
+					if (p.isComplexType() && !p.isArray()) {
+						
+						SOAPClass s = getSOAPClass(p.getMethodClass(), registry);
+						
+						registry.addSOAPClass(p.getMethodClass().getName(), s);
+						
+					}															
+				}
+			}						
+		}
+		
+		Field[] fields = c.getFields();
+		
+		if (fields != null) {
+			
+			for (Field f : fields) {
+				
+				Annotation[] annotations = f.getAnnotations();
+												
+				if (annotations != null) {
+					
+					boolean soaField = false;
+					
+					for (Annotation a : annotations) {
+						
+						if (isXSDAnnotation(a)) {
+							soaField = true;
+							break;
+						}
+						
+					}
+					
+					if (soaField) {
+						
+						// name
+						String name = f.getName();
+
+						// make the property
+						SOAPClassElement p = new SOAPClassElement(f, name);
+
+						// put property in our collection
+						soapClass.addSOAPClassElement(p);
+						
+						// add any properties that are complex types in too
+						if (p.isComplexType() && !p.isArray()) {
+							
+							SOAPClass s = getSOAPClass(p.getMethodClass(), registry);
+							
+							registry.addSOAPClass(p.getMethodClass().getName(), s);
+							
+						}
+						
+					}
+					
+				}
+								
+			}
+									
+		}
+		
+		return soapClass;
+		
+	}
+	
+	public void addSubClassSoapClasses(Class<?> c) 
+			throws ClassNotDirectlyInstantiable {
+		
+		// writers take turns, copying what's published, and publishing their copy
+		synchronized (this) {
+			
+			Registry registry = new Registry(_registry);
+			
+			addSubClassSoapClasses(c, registry);
+			
+			registry.linkSOAPClasses();
+			
+			_registry = registry;
+			
+		}
+		
+	}
+	
+	private void addSubClassSoapClasses(Class<?> c, Registry registry) 
+			throws ClassNotDirectlyInstantiable {
+		
+		// check properties and add SOAPType if complex
+		// names of all class methods
+		ClassMethods methods = new ClassMethods(c.getMethods());	
+		
+		// loop all retained method names looking for get/set pairs
+		for (Method m : methods) {
+			// work with the get methods as we need the return type for our class
+			if (m.getName().indexOf("get") == 0) {
+				// if we have a corresponding set method in the list
+				if (methods.contains("set" + m.getName().substring(3))) {
+					
+					Class mc = m.getReturnType();
+					
+					Class<?> sc = getSequenceComponentType(mc, m.getGenericReturnType());
+					
+					if (sc != null) mc = sc;
+					
+					if (!getIsSimpleSOAPType(mc)) {
+						
+						if (mc.isArray()) mc = mc.getComponentType();
+						
+						registry.addSOAPClass(mc.getName(), getSOAPClass(mc, registry));
+						
+						addSubClassSoapClasses(mc, registry);
+					
+					}
+										
+				}
+			}						
+		}
+		
+		// check fields for XSD annotations and add SOAPType if complex
+		Field[] fields = c.getFields();
+		
+		if (fields != null) {
+			
+			for (Field f : fields) {
+				
+				Annotation[] annotations = f.getAnnotations();
+												
+				if (annotations != null) {
+					
+					boolean soaField = false;
+					
+					for (Annotation a : annotations) {
+						
+						if (isXSDAnnotation(a)) {
+							soaField = true;
+							break;
+						}
+						
+					}
+					
+					if (soaField) {
+						
+						Class fc = f.getType();
+						
+						Class<?> sc = getSequenceComponentType(fc, f.getGenericType());
+						
+						if (sc != null) fc = sc;
+						
+						if (!getIsSimpleSOAPType(fc)) {
+							
+							if (fc.isArray()) fc = fc.getComponentType();
+							
+							String name = fc.getName();
+							
+							SOAPClass soapClass = getSOAPClass(fc, registry);
+						
+							registry.addSOAPClass(name, soapClass);
+							
+							addSubClassSoapClasses(fc, registry);
+						
+						}
+						
+					}
+					
+				}
+								
+			}
+									
+		}
+		
+	}
+		
+	private static Class<?> getResponseClass(Class<?> c) {
+		
+		Method[] methods = c.getMethods();
+		
+		// the getResponse method that returns something more specific than Object
+		for (Method m : methods) {
+			if (m.getName().equals("getResponse") && !m.getReturnType().getName().equals("java.lang.Object")) return m.getReturnType();
+		}
+		
+		// otherwise, for async requests, the type of the stage from getResponseAsync
+		for (Method m : methods) {
+			if (m.getName().equals("getResponseAsync") && m.getGenericReturnType() instanceof ParameterizedType) {
+				Type t = ((ParameterizedType) m.getGenericReturnType()).getActualTypeArguments()[0];
+				if (t instanceof Class && !t.equals(Object.class)) return (Class<?>) t;
+			}
+		}
+		
+		return null;
+		
+	}
+	
+	private static Exception getStageException(Throwable t) {
+		
+		// stages wrap what went wrong when they're chained
+		if ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) t = t.getCause();
+		
+		return t instanceof Exception ? (Exception) t : new Exception(t);
+		
+	}
+	
+	public void clearOperations() {
+		
+		// requests already under way carry on with what they have
+		synchronized (this) {
+			
+			_registry = new Registry();
+			
+		}
+				
+	}
+	
+	public void setOperations(Map<String, Class<?>> operations) 
+			throws	ClassNotFoundException, 
+			ClassNotRequestException, 
+			SecurityException, 
+			UnrecognizedOperation, 
+			ParserConfigurationException, 
+			NoSuchMethodException, 
+			ClassNotDirectlyInstantiable {
+		
+		// replaces all of the operations at once, requests see either the old ones or the new ones, and if any fail to add the old ones are kept
+		synchronized (this) {
+			
+			Registry registry = new Registry();
+			
+			for (Map.Entry<String, Class<?>> operation : operations.entrySet()) addOperation(registry, operation.getKey(), operation.getValue());
+			
+			_registry = registry;
+			
+		}
+		
+		_logger.debug("Operations set to " + operations.keySet());
+		
+	}
+			
+	public void addOperation(String operationName, String requestClassName) 
+			throws	ClassNotFoundException, 
+			ClassNotRequestException, 
+			SecurityException, 
+			UnrecognizedOperation, 
+			ParserConfigurationException, 
+			NoSuchMethodException, 
+			ClassNotDirectlyInstantiable {
+
+		Class c = Class.forName(requestClassName);		
+		
+		addOperation(operationName, c);
+		
+	}
+	
+	private void addOperation(Registry registry, String operationName, Class<?> c) 
+			throws	ClassNotRequestException, 
+			SecurityException, 
+			UnrecognizedOperation, 
+			ParserConfigurationException, 
+			NoSuchMethodException, 
+			ClassNotDirectlyInstantiable {
+		
+		// make sure this class extends WSFactory.Request, or WSFactory.AsyncRequest
+		if (c.getSuperclass().equals(Request.class) || c.getSuperclass().equals(AsyncRequest.class)) {
+			
+			// get the SOAPClass
+			SOAPClass s = getSOAPClass(c, registry);
+			
+			// add the request class
+			registry.addSOAPClass(c.getName(), s);
+									
+			// add all sub classes
+			addSubClassSoapClasses(c, registry);
+			
+			// locate and add the getResponse class
+			Class<?> rc = getResponseClass(c);
+			
+			// if there is one and it's not a simple type
+			if (rc != null && !getIsSimpleSOAPType(rc)) {
+				
+				// create a soap type for it
+				registry.addSOAPClass(rc.getName(), getSOAPClass(rc, registry));
+				
+				// add all sub classes
+				addSubClassSoapClasses(rc, registry);
+				
+			}
+			
+			// add the operation, removing any schema compiled, or wsdls generated, for a previous class with this name
+			registry.addOperation(operationName, s);
+			
+			// start counting, carrying on from before if the operation is being replaced
+			_metrics.putIfAbsent(operationName, new OperationMetrics());
+			
+			// link the elements to the metadata of their complex types now so requests don't have to look them up
+			registry.linkSOAPClasses();
+			
+			// cache, or just coalesce, the responses if the class asks for it, anything cached for a previous class with this name is dropped
+			WScacheable cacheable = c.getAnnotation(WScacheable.class);
+			
+			if (cacheable != null) {
+				_caches.put(operationName, new ResponseCache(cacheable.ttl() * 1000L, cacheable.maxEntries(), cacheable.maxBytes()));
+			} else if (c.isAnnotationPresent(WScoalesced.class) && rc != null && !getIsSimpleSOAPType(rc) && hasStreamedValues(registry.getSOAPClass(rc.getName()), new HashSet<SOAPClass>())) {
+				// sharing a streamed or binary response means buffering all of it, which is worse than making it again
+				_logger.warn("Operation " + operationName + " is not coalesced as its response has values that are streamed or binary");
+				_caches.remove(operationName);
+			} else if (c.isAnnotationPresent(WScoalesced.class)) {
+				// a cache with no ttl only holds the responses being made, which are all shared however many there are
+				_caches.put(operationName, new ResponseCache(0, Integer.MAX_VALUE, Long.MAX_VALUE));
+			} else {
+				_caches.remove(operationName);
+			}
+						
+			// compile the request schema now so requests don't have to
+			try {
+				
+				getOperationSchema(registry, operationName);
+				
+			} catch (Exception ex) {
+				
+				// leave it to be compiled, and the error reported, on the first request
+				_logger.error("Error compiling request schema for operation " + operationName, ex);
+				
+			}
+			
+			// pick up any generated codecs for the request, response, and their classes
+			getCodec(s);
+			for (SOAPClass soapClass : registry.getSOAPClasses()) getCodec(soapClass);
+			
+			// log it
+			_logger.debug("Operation " + operationName + " added");
+			
+		} else { throw new ClassNotRequestException(); }
+				
+	}		
+	
+	public void addOperation(String operationName, Class requestClass) 
+			throws	ClassNotFoundException, 
+			ClassNotRequestException, 
+			SecurityException, 
+			UnrecognizedOperation, 
+			ParserConfigurationException, 
+			NoSuchMethodException, 
+			ClassNotDirectlyInstantiable {
+		
+		// writers take turns, copying what's published, adding to their copy, and publishing it, so requests never see an operation half added
+		synchronized (this) {
+			
+			Registry registry = new Registry(_registry);
+			
+			// the class itself, rather than its name, so one reloaded by another class loader replaces the old one
+			addOperation(registry, operationName, requestClass);
+			
+			_registry = registry;
+			
+		}
+		
+	}
+	
+	public Set<String> getOperations() { return _registry.getOperationNames(); }
+	
+	public boolean isAsyncOperation(String operationName) {
+		
+		SOAPClass s = _registry.getOperation(operationName);
+		
+		// unrecognised operations aren't async so their fault is made in the usual way, all others are if they have an executor to run on
+		return s != null && (_executor != null || AsyncRequest.class.isAssignableFrom(s.getBaseClass()));
+		
+	}
+	
+	public OperationMetrics getOperationMetrics(String operationName) { return _metrics.get(operationName); }
+	
+	public String getMetrics() {
+		
+		// the metrics for all of the current operations in the Prometheus text format
+		
+		StringBuilder metrics = new StringBuilder();
+		
+		ArrayList<String> operationNames = new ArrayList<String>(_registry.getOperationNames());
+		
+		Collections.sort(operationNames);
+		
+		String[][] counters = {
+			{"soa_requests_total", "counter", "Requests received"},
+			{"soa_faults_total", "counter", "Requests that were answered with a fault, including validation failures"},
+			{"soa_validation_failures_total", "counter", "Requests that failed schema validation"},
+			{"soa_requests_in_flight", "gauge", "Requests being answered now"}
+		};
+		
+		for (int i = 0; i < counters.length; i++) {
+			
+			metrics.append("# HELP " + counters[i][0] + " " + counters[i][2] + "\n");
+			metrics.append("# TYPE " + counters[i][0] + " " + counters[i][1] + "\n");
+			
+			for (String operationName : operationNames) {
+				
+				OperationMetrics m = _metrics.get(operationName);
+				
+				if (m != null) {
+					
+					long value = i == 0 ? m.getRequests() : i == 1 ? m.getFaults() : i == 2 ? m.getValidationFailures() : m.getInFlight();
+					
+					metrics.append(counters[i][0] + "{operation=\"" + getLabelValue(operationName) + "\"} " + value + "\n");
+					
+				}
+				
+			}
+			
+		}
+		
+		metrics.append("# HELP soa_request_duration_seconds Time taken to make the response, or fault\n");
+		metrics.append("# TYPE soa_request_duration_seconds summary\n");
+		
+		for (String operationName : operationNames) {
+			
+			OperationMetrics m = _metrics.get(operationName);
+			
+			if (m != null) {
+				
+				for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+					metrics.append("soa_request_duration_seconds{operation=\"" + getLabelValue(operationName) + "\",quantile=\"" + quantile + "\"} " + m.getPercentileMicros(Double.parseDouble(quantile) * 100) / 1e6 + "\n");
+				}
+				
+				// the count is of completed requests, which is the requests less those in flight
+				metrics.append("soa_request_duration_seconds_sum{operation=\"" + getLabelValue(operationName) + "\"} " + m.getTotalMicros() / 1e6 + "\n");
+				metrics.append("soa_request_duration_seconds_count{operation=\"" + getLabelValue(operationName) + "\"} " + (m.getRequests() - m.getInFlight()) + "\n");
+				
+			}
+			
+		}
+		
+		String[][] cacheCounters = {
+			{"soa_cache_hits_total", "counter", "Requests answered from the response cache, including those that waited for another to make it"},
+			{"soa_cache_misses_total", "counter", "Requests whose response was made and cached"},
+			{"soa_cache_evictions_total", "counter", "Cached responses dropped to stay within the cache's limits"},
+			{"soa_cache_entries", "gauge", "Responses in the cache"},
+			{"soa_cache_bytes", "gauge", "Size of the responses in the cache"},
+			// coalesced operations have a cache with no ttl, which only counts requests sharing, and making, responses
+			{"soa_coalesced_total", "counter", "Requests that waited for the response to an identical request rather than making their own"},
+			{"soa_coalesce_leaders_total", "counter", "Requests whose response was made, and shared with any identical requests that arrived meanwhile unless it was streamed"}
+		};
+		
+		for (int i = 0; i < cacheCounters.length; i++) {
+			
+			boolean header = false;
+			
+			for (String operationName : operationNames) {
+				
+				ResponseCache c = _caches.get(operationName);
+				
+				// only operations that are cached, or coalesced, have these
+				if (c != null && (c.getTTL() == 0) == (i >= 5)) {
+					
+					if (!header) {
+						metrics.append("# HELP " + cacheCounters[i][0] + " " + cacheCounters[i][2] + "\n");
+						metrics.append("# TYPE " + cacheCounters[i][0] + " " + cacheCounters[i][1] + "\n");
+						header = true;
+					}
+					
+					long value = i == 0 || i == 5 ? c.getHits() : i == 1 || i == 6 ? c.getMisses() : i == 2 ? c.getEvictions() : i == 3 ? c.getSize() : c.getBytes();
+					
+					metrics.append(cacheCounters[i][0] + "{operation=\"" + getLabelValue(operationName) + "\"} " + value + "\n");
+					
+				}
+				
+			}
+			
+		}
+		
+		return metrics.toString();
+		
+	}
+	
+	private static String getLabelValue(String value) {
+		
+		// backslashes, double quotes, and new lines are escaped in Prometheus label values
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		
+	}
+	
+	public void setOperationLimit(String operationName, int maxConcurrent, long maxWait) {
+		
+		// at most maxConcurrent requests for this operation make their responses at once, others wait up to maxWait milliseconds before a fault, 0 or less removes the limit
+		if (maxConcurrent > 0) {
+			_bulkheads.put(operationName, new Bulkhead(maxConcurrent, maxWait));
+		} else {
+			_bulkheads.remove(operationName);
+		}
+		
+	}
+	
+	public int getBatchMaxCalls() { return _batchMaxCalls; }
+	public int getBatchParallelism() { return _batchParallelism; }
+	
+	public void setBatchLimit(int maxCalls, int parallelism) {
+		
+		// batches can have at most maxCalls calls, of which up to parallelism are made at once
+		_batchMaxCalls = maxCalls;
+		_batchParallelism = Math.max(parallelism, 1);
+		
+	}
+	
+	public ResponseCache getResponseCache(String operationName) { return _caches.get(operationName); }
+	
+	public void invalidateCache(String operationName) {
+		
+		// drops all of the cached responses for an operation, for when what they were made from has changed
+		ResponseCache cache = _caches.get(operationName);
+		
+		if (cache != null) cache.invalidate();
+		
+	}
+	
+	public void invalidateCache(String operationName, Request request) throws Exception {
+		
+		// drops the cached response to a request equal to this one
+		ResponseCache cache = _caches.get(operationName);
+		
+		if (cache != null) {
+			
+			String key = getRequestKey(request);
+			
+			if (key != null) cache.invalidate(key);
+			
+		}
+		
+	}
+	
+	public ExecutorService getExecutor() { return _executor; }
+	
+	public void setExecutor(ExecutorService executor) {
+		
+		// when set, all operations are served asynchronously with getResponse run on this, rather than the container's thread
+		_executor = executor;
+		
+	}
+	
+	public static ExecutorService newVirtualThreadExecutor() {
+		
+		return newVirtualThreadExecutor(EXECUTOR_MAX_THREADS, EXECUTOR_QUEUE_SIZE);
+		
+	}
+	
+	public static ExecutorService newVirtualThreadExecutor(int maxThreads, int queueSize) {
+		
+		// virtual threads are cheap to block, which our operations mostly do on jdbc, but need Java 21 so are found by reflection
+		try {
+			
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			
+			Logger.getLogger(WSFactory.class).info("Operations will run on virtual threads");
+			
+			return executor;
+			
+		} catch (Exception ex) {
+			
+			Logger.getLogger(WSFactory.class).info("Virtual threads are not available, operations will run on a pool of at most " + maxThreads + " threads");
+			
+			// an older JVM so use a pool of daemon threads instead, bounded so a rush of requests can't make a thread each, once all are busy tasks
+			// are queued, and once the queue is full they're rejected, which fails the request rather than the server
+			final AtomicInteger count = new AtomicInteger();
+			
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "WSFactory-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+				
+			});
+			
+			// the threads go once they've been idle for a minute, as a cached pool's do
+			executor.allowCoreThreadTimeOut(true);
+			
+			return executor;
+			
+		}
+		
+	}
+	
+	public static boolean isFastInfosetSupported() { return _fastInfosetInputFactory != null; }
+	
+	private XMLEventReader getXMLEventReader(InputStream in, boolean fastInfoset) throws XMLStreamException {
+		
+		if (!fastInfoset) return _xmlInputFactory.createXMLEventReader(in);
+		
+		if (_fastInfosetInputFactory == null) throw new XMLStreamException("Fast Infoset is not available");
+		
+		return _fastInfosetInputFactory.createXMLEventReader(in);
+		
+	}
+	
+	private XMLStreamWriter getXMLStreamWriter(OutputStream out, boolean fastInfoset) throws XMLStreamException {
+		
+		if (!fastInfoset) return _xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+		
+		if (_fastInfosetOutputFactory == null) throw new XMLStreamException("Fast Infoset is not available");
+		
+		return _fastInfosetOutputFactory.createXMLStreamWriter(out);
+		
+	}
+	
+	private Object getResponse(String operationName, Request r, ServletContext servletContext) throws Exception {
+		
+		// the response object, or a cached or shared one if the operation has a cache and the request can be hashed
+		
+		ResponseCache cache = _caches.get(operationName);
+		
+		String key = cache == null ? null : getRequestKey(r);
+		
+		if (key == null) return getUncachedResponse(operationName, r, servletContext);
+		
+		// a response that can't be shared is given straight back to the request that made it
+		AtomicReference<Object> made = new AtomicReference<Object>();
+		
+		byte[] bytes;
+		
+		try {
+			
+			bytes = cache.get(key, () -> CompletableFuture.completedFuture(getSharedResponseBytes(operationName, cache, key, getUncachedResponse(operationName, r, servletContext), made))).get();
+			
+		} catch (ExecutionException ex) {
+			
+			throw getStageException(ex);
+			
+		}
+		
+		if (bytes != null) return new CachedResponse(bytes);
+		
+		// anyone who waited for it makes their own
+		return made.get() != null ? made.get() : getUncachedResponse(operationName, r, servletContext);
+		
+	}
+	
+	private Object getUncachedResponse(String operationName, Request r, ServletContext servletContext) throws Exception {
+		
+		Bulkhead bulkhead = _bulkheads.get(operationName);
+		
+		if (bulkhead == null) return r.getResponse(servletContext);
+		
+		if (!bulkhead.acquire()) throw new OperationBusy(operationName, bulkhead.getMaxConcurrent());
+		
+		try {
+			
+			return r.getResponse(servletContext);
+			
+		} finally {
+			
+			bulkhead.release();
+			
+		}
+		
+	}
+
+	private CompletionStage<?> getResponseStage(String operationName, Request r, ServletContext servletContext) throws Exception {
+		
+		CompletionStage<?> stage;
+		
+		if (r instanceof AsyncRequest) {
+			
+			final Bulkhead bulkhead = _bulkheads.get(operationName);
+			
+			if (bulkhead == null || bulkhead.tryAcquire()) {
+				
+				stage = getAsyncResponseStage(operationName, (AsyncRequest) r, servletContext, bulkhead);
+				
+			} else {
+				
+				// a busy operation is waited for on an executor, not the container thread, which serving it asynchronously is meant to free
+				final CompletableFuture<Object> future = new CompletableFuture<Object>();
+				
+				getBatchExecutor().execute(() -> {
+					
+					try {
+						
+						if (!bulkhead.acquire()) throw new OperationBusy(operationName, bulkhead.getMaxConcurrent());
+						
+						getAsyncResponseStage(operationName, (AsyncRequest) r, servletContext, bulkhead).whenComplete((o, ex) -> {
+							if (ex == null) {
+								future.complete(o);
+							} else {
+								future.completeExceptionally(ex);
+							}
+						});
+						
+					} catch (Throwable ex) {
+						
+						future.completeExceptionally(ex);
+						
+					}
+					
+				});
+				
+				stage = future;
+				
+			}
+			
+		} else if (_executor != null) {
+			
+			// the response is made on the executor, where waiting for the bulkhead, or the database, doesn't hold a container thread
+			final CompletableFuture<Object> future = new CompletableFuture<Object>();
+			
+			_executor.execute(() -> {
+				
+				try {
+					
+					future.complete(getUncachedResponse(operationName, r, servletContext));
+					
+				} catch (Throwable ex) {
+					
+					future.completeExceptionally(ex);
+					
+				}
+				
+			});
+			
+			stage = future;
+			
+		} else {
+			
+			// otherwise the response is made now
+			stage = CompletableFuture.completedFuture(getUncachedResponse(operationName, r, servletContext));
+			
+		}
+		
+		return stage;
+		
+	}
+	
+	private CompletionStage<?> getAsyncResponseStage(String operationName, AsyncRequest r, ServletContext servletContext, final Bulkhead bulkhead) throws Exception {
+		
+		// async requests hold their permit, already acquired, until their stage completes
+		
+		CompletionStage<?> stage;
+		
+		try {
+			
+			stage = r.getResponseAsync(servletContext);
+			
+			if (stage == null) throw new NullPointerException("The response stage for operation " + operationName + " is null");
+			
+		} catch (Exception ex) {
+			
+			if (bulkhead != null) bulkhead.release();
+			
+			throw ex;
+			
+		}
+		
+		if (bulkhead != null) stage = stage.whenComplete((o, ex) -> bulkhead.release());
+		
+		return stage;
+		
+	}
+	
+	private String getRequestKey(Request r) throws Exception {
+		
+		// a hash of the request as it would be written, so equal requests have equal keys, null if it can't be cached
+		
+		SOAPClass soapClass = _registry.getSOAPClass(r.getClass().getName());
+		
+		// writing iterators or streams would use them up before the operation could
+		if (soapClass == null || hasSingleUseValues(soapClass, new HashSet<SOAPClass>())) return null;
+		
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		
+		XMLStreamWriter writer = _xmlOutputFactory.createXMLStreamWriter(new OutputStream() {
+			
+			@Override
+			public void write(int b) { digest.update((byte) b); }
+			
+			@Override
+			public void write(byte[] b, int off, int len) { digest.update(b, off, len); }
+			
+		}, "UTF-8");
+		
+		// binary values are left as includes so they're hashed without being encoded
+		ArrayList<Object> attachments = new ArrayList<Object>();
+		
+		writer.writeStartElement(r.getClass().getSimpleName());
+		
+		writeObjectElements(writer, soapClass, r, attachments);
+		
+		writer.writeEndElement();
+		
+		writer.flush();
+		
+		for (Object attachment : attachments) {
+			
+			// an input stream can only be read once, by the operation
+			if (!(attachment instanceof byte[])) return null;
+			
+			byte[] bytes = (byte[]) attachment;
+			
+			// the length goes first so values can't run into each other
+			digest.update(Integer.toString(bytes.length).getBytes("ISO-8859-1"));
+			digest.update((byte) ':');
+			digest.update(bytes);
+			
+		}
+		
+		return Base64.getEncoder().encodeToString(digest.digest());
+		
+	}
+	
+	private boolean hasSingleUseValues(SOAPClass soapClass, Set<SOAPClass> checked) {
+		
+		if (!checked.add(soapClass)) return false;
+		
+		for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+			
+			if (p.isSingleUse() || (p.isComplexType() && hasSingleUseValues(getElementSOAPClass(p), checked))) return true;
+			
+		}
+		
+		return false;
+		
+	}
+	
+	private boolean hasStreamedValues(Object o) {
+		
+		if (o instanceof byte[] || o instanceof InputStream) return true;
+		
+		SOAPClass soapClass = o == null ? null : _registry.getSOAPClass(o.getClass().getName());
+		
+		return soapClass != null && hasStreamedValues(soapClass, new HashSet<SOAPClass>());
+		
+	}
+	
+	private boolean hasStreamedValues(SOAPClass soapClass, Set<SOAPClass> checked) {
+		
+		// iterators and streams, or binary values, which are best written straight from where they are
+		
+		if (soapClass == null || !checked.add(soapClass)) return false;
+		
+		for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+			
+			if (p.isSingleUse() || p.isBinary() || (p.isComplexType() && hasStreamedValues(getElementSOAPClass(p), checked))) return true;
+			
+		}
+		
+		return false;
+		
+	}
+	
+	private void closeSingleUseValues(Object o) {
+		
+		// closes what marshalling closes once it gets to them, so an error before then, or a client that's gone, doesn't leave a result set,
+		// and perhaps a pooled connection, open, closing them again after they've been written does nothing
+		
+		SOAPClass soapClass = o == null ? null : _registry.getSOAPClass(o.getClass().getName());
+		
+		if (soapClass != null && hasSingleUseValues(soapClass, new HashSet<SOAPClass>())) {
+			
+			closeSingleUseValues(soapClass, o, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+			
+		}
+		
+	}
+	
+	private void closeSingleUseValues(SOAPClass soapClass, Object o, Set<Object> closed) {
+		
+		if (!closed.add(o)) return;
+		
+		for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+			
+			Object v;
+			
+			try {
+				
+				v = p.getValue(o);
+				
+			} catch (Exception ex) {
+				
+				_logger.error("Error getting " + p.getName() + " to close it", ex);
+				
+				continue;
+				
+			}
+			
+			if (v == null) continue;
+			
+			// the items of lists and arrays aren't looked in as there could be any number of them
+			if (p.isSingleUse()) {
+				
+				closeArray(v);
+				
+			} else if (p.isComplexType() && !p.isArray()) {
+				
+				closeSingleUseValues(getElementSOAPClass(p), v, closed);
+				
+			}
+			
+		}
+		
+	}
+	
+	private byte[] getSharedResponseBytes(String operationName, ResponseCache cache, String key, Object o, AtomicReference<Object> made) throws Exception {
+		
+		// the response written for the cache, or null if it can't be shared, in which case it's kept in made for the request that made it
+		
+		// streamed and binary responses are only coalesced if their class didn't say they would be, and are sent as they are rather than buffered
+		if (o instanceof SOAPMessage || (cache.getTTL() == 0 && hasStreamedValues(o))) {
+			
+			made.set(o);
+			
+			return null;
+			
+		}
+		
+		byte[] bytes = getResponseBytes(operationName, o);
+		
+		// an error response is given to those waiting for it, as a fault would be, but dropping it now means it isn't kept for anyone after them
+		if (isErrorResponse(o)) cache.invalidate(key);
+		
+		return bytes;
+		
+	}
+	
+	private boolean isErrorResponse(Object o) throws Exception {
+		
+		// an ErrorResponse, or a response with one in it, as the application errors that are returned rather than thrown are
+		
+		if (o instanceof ErrorResponse) return true;
+		
+		SOAPClass soapClass = o == null ? null : _registry.getSOAPClass(o.getClass().getName());
+		
+		if (soapClass != null) {
+			
+			for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+				
+				if (ErrorResponse.class.isAssignableFrom(p.getMethodClass()) && p.getValue(o) != null) return true;
+				
+			}
+			
+		}
+		
+		return false;
+		
+	}
+	
+	private byte[] getResponseBytes(String operationName, Object o) throws Exception {
+		
+		// cached responses are kept as text, and converted if they're wanted in anything else
+		
+		if (o == null) throw new NullPointerException("The response object for operation " + operationName + " is null");
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		writeSOAPMessage(o, bytes, false);
+		
+		return bytes.toByteArray();
+		
+	}
+	
+	private void writeCachedResponse(CachedResponse response, OutputStream out, boolean fastInfoset, String mtomBoundary) throws Exception {
+		
+		if (fastInfoset) {
+			
+			// as with faults, the text is copied across, this is still quicker than making the response again
+			XMLStreamWriter writer = getXMLStreamWriter(out, true);
+			
+			TransformerFactory.newInstance().newTransformer().transform(new StreamSource(new ByteArrayInputStream(response.getBytes())), new StAXResult(writer));
+			
+			writer.flush();
+			
+		} else if (mtomBoundary != null) {
+			
+			// the binary values are inline so it's all in the root part
+			writeMIMEPartStart(out, mtomBoundary, XOP_CONTENT_TYPE + "; charset=UTF-8; type=\"text/xml\"", MTOM_ROOT_ID);
+			
+			out.write(response.getBytes());
+			
+			out.write(("\r\n--" + mtomBoundary + "--\r\n").getBytes("ISO-8859-1"));
+			
+		} else {
+			
+			out.write(response.getBytes());
+			
+		}
+		
+	}
+	
+	private OperationSchema getOperationSchema(Registry registry, String operationName) 
+			throws UnrecognizedOperation, 
+			ParserConfigurationException, 
+			SAXException {
+		
+		OperationSchema operationSchema = registry.getOperationSchemas().get(operationName);
+		
+		// compile only once, and only lock when we have to
+		if (operationSchema == null) {
+			
+			synchronized (this) {
+				
+				operationSchema = registry.getOperationSchemas().get(operationName);
+				
+				if (operationSchema == null) {
+					
+					SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+				    
+				    Source schemaSource = new DOMSource(getRequestSchema(registry, operationName));
+		
+				    StringReader schemaStringReader = new StringReader(getXMLString(schemaSource)); 
+			
+				    SAXSource schemaSAXSource = new SAXSource(new InputSource(schemaStringReader));
+				    
+				    operationSchema = new OperationSchema(schemaFactory.newSchema(schemaSAXSource));
+				    
+				    registry.getOperationSchemas().put(operationName, operationSchema);
+					
+				}
+				
+			}
+			
+		}
+		
+		return operationSchema;
+		
+	}
+	
+	private Element getElement(Document doc, SOAPClassElement p, Element schemaRoot, Registry registry) {
+		
+		Element propertyelement = doc.createElement("xs:element");
+				
+		if (p.isArray()) {
+			
+			//complex type for array
+			Element arrayComplexType = doc.createElement("xs:complexType");
+			arrayComplexType.setAttribute("name", "ArrayOf" + p.getName() + "Type");
+			
+			Element arraySequence = doc.createElement("xs:sequence");
+			arrayComplexType.appendChild(arraySequence);
+			
+			Element arrayElement = doc.createElement("xs:element");
+			arraySequence.appendChild(arrayElement);
+			arrayElement.setAttribute("name", p.getName());		
+			
+			// this is an array so maxOccours should be unbounded unless otherwise set
+			boolean maxOccursSet = false;
+			
+			// set the attributes here			
+			for (ElementAttribute a : p.getAttributes()) {
+				
+				// if minOccurs is zero make the whole array optional
+				if (a.getName().equals("minOccurs") && a.getValue().equals("0")) {
+					
+					propertyelement.setAttribute(a.getName(), a.getValue());
+					
+				} else if (a.getName().equals("maxOccurs")) {
+					
+					maxOccursSet = true;
+					propertyelement.setAttribute(a.getName(), a.getValue());
+					
+				} else {
+					
+					arrayElement.setAttribute(a.getName(), a.getValue());
+					
+				}				
+			}
+						
+			if (!maxOccursSet) arrayElement.setAttribute("maxOccurs","unbounded");
+			
+			// binary values can be sent as mtom attachments
+			if (p.isBinary()) {
+				schemaRoot.setAttribute("xmlns:xmime", XMIME_NAMESPACE);
+				arrayElement.setAttribute("xmime:expectedContentTypes", "application/octet-stream");
+			}
+						
+			schemaRoot.appendChild(arrayComplexType);
+			
+			// name
+			propertyelement.setAttribute("name", "ArrayOf" + p.getName());
+			
+			// type
+			propertyelement.setAttribute("type", p.getType());
+			
+			
+			//type
+			if (p.isComplexType()) {
+				
+				// type
+				arrayElement.setAttribute("type", p.getArrayType());
+				// create a complex type for what the array is enclosing
+				Element complexType = getComplexType(doc, p.getComponentClass(), false, schemaRoot, registry);
+				if (complexType != null) schemaRoot.appendChild(complexType);
+				
+			} else {
+				
+				boolean gotRestrictions = false;
+				
+				// any restrictions here
+				for (ElementAttribute r : p.getRestrictions()) {
+					
+					if (r.getName().equals("enumeration")) {
+						
+						// create the simple type
+						Element simpletypeElement = doc.createElement("xs:simpleType");					
+						arrayElement.appendChild(simpletypeElement);
+						
+						// create the restriction with the base as type
+						Element restrictionElement = doc.createElement("xs:restriction");
+						restrictionElement.setAttribute("base", p.getArrayType());
+						simpletypeElement.appendChild(restrictionElement);
+						
+						String[] values = r.getValue().split(",");
+						for (String v : values) {
+							Element re = doc.createElement("xs:enumeration");
+							re.setAttribute("value", v);
+							restrictionElement.appendChild(re);	
+						}
+						
+						gotRestrictions = true;
+						
+					}
+					
+				}
+				
+				// if no restrictions go simple
+				if (!gotRestrictions) arrayElement.setAttribute("type", p.getArrayType());
+				
+			}
+																							
+			
+		} else {
+			
+			// name
+			propertyelement.setAttribute("name", p.getName());	
+						
+			// create and append complex type
+			if (p.isComplexType()) {
+			
+				Element complexType = getComplexType(doc, p.getMethodClass(), false, schemaRoot, registry);
+				
+				propertyelement.setAttribute("type", p.getType());
+				
+				if (complexType != null) schemaRoot.appendChild(complexType);
+				
+			} else {
+				
+				if (p.getRestrictions().size() > 0) {
+					
+					// create the simple type
+					Element simpletypeElement = doc.createElement("xs:simpleType");					
+					propertyelement.appendChild(simpletypeElement);
+					
+					// create the restriction with the base as type
+					Element restrictionElement = doc.createElement("xs:restriction");
+					restrictionElement.setAttribute("base", p.getType());
+					simpletypeElement.appendChild(restrictionElement);
+					
+					// add any restrictions
+					for (ElementAttribute r : p.getRestrictions()) {
+						
+						if (r.getName().equals("enumeration")) {
+							
+							String[] values = r.getValue().split(",");
+							for (String v : values) {
+								Element re = doc.createElement("xs:enumeration");
+								re.setAttribute("value", v);
+								restrictionElement.appendChild(re);	
+							}
+							
+						} else {
+							
+							Element re = doc.createElement("xs:" + r.getName());
+							re.setAttribute("value", r.getValue());
+							restrictionElement.appendChild(re);	
+							
+						}
+																		
+					}
+					
+				} else {
+					
+					// just set the type
+					propertyelement.setAttribute("type", p.getType());
+					
+				}
+				
+			}
+			
+			// add remaining non-special attributes
+			for (ElementAttribute at : p.getAttributes()) {
+				propertyelement.setAttribute(at.getName(), at.getValue());
+			}						
+			
+			// binary values can be sent as mtom attachments
+			if (p.isBinary()) {
+				schemaRoot.setAttribute("xmlns:xmime", XMIME_NAMESPACE);
+				propertyelement.setAttribute("xmime:expectedContentTypes", "application/octet-stream");
+			}
+			
+		}
+									
+		return propertyelement;
+		
+	}
+	
+	private Element getComplexType(Document doc, Class<?> c, Boolean anonymous, Element schemaRoot, Registry registry) {
+		
+		if (_complexTypes.contains(c.getSimpleName()) && !anonymous) {
+			
+			return null;
+			
+		} else {
+		
+			Element complextype = doc.createElement("xs:complexType");
+	        if (!anonymous) complextype.setAttribute("name", c.getSimpleName());
+	        
+	        SOAPClass soapClass = registry.getSOAPClass(c.getName());
+	            
+	        // assume this is a sequence
+	        boolean choice = false;
+	        
+	        // check the annotation on the class and set to choice
+	        if (c.getAnnotations() != null ) {
+	        	for (Annotation a : c.getAnnotations()) {
+	        		if (a instanceof XSDchoice) choice = true;
+	        	}
+	        }
+	        // check the properties if not yet choice
+	        if (!choice) {
+	        	int choiceCount = 0;
+		        int propertyCount = 0;
+		        ArrayList<String> methods = new ArrayList<String>();
+		        // check get/set
+		        for (Method m : c.getMethods()) {
+		        	String methodName = m.getName();
+		        	if (methodName.startsWith("get") || methodName.startsWith("set")) {
+		        		methodName = methodName.substring(3);
+		        		if (methods.contains(methodName)) {
+		        			propertyCount ++;
+		        		} else {
+		        			methods.add(methodName);
+		        		}
+			        	for (Annotation a : m.getAnnotations()) {
+			        		if (a instanceof XSDchoice) choiceCount ++;	        			        		
+			        	}
+		        	}	        				
+				}
+		        // check fields
+		        for (Field f : c.getFields()) {
+		        	boolean countedProperty = false;
+		        	for (Annotation fa : f.getAnnotations()) {
+		        		// count whether choice
+		        		if (fa instanceof XSDchoice) choiceCount ++;		        		
+		        		// count whether XSD
+		        		if (isXSDAnnotation(fa) && !countedProperty) {
+		        			propertyCount ++;
+		        			countedProperty = true;
+		        		}
+		        	}
+		        }
+		        if (choiceCount > 0 && choiceCount == propertyCount) choice = true;
+	        }
+	        
+	        // create the element accordingly
+	        Element e;	        
+	        if (choice) {
+	        	e = doc.createElement("xs:choice");	        	
+	        } else {
+	        	e = doc.createElement("xs:sequence");
+	        }	        
+	        complextype.appendChild(e);
+	        
+	        // add it's children
+			for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+																
+				e.appendChild(getElement(doc, p, schemaRoot, registry));
+				
+			}
+			
+			_complexTypes.add(c.getSimpleName());
+			
+			return complextype;
+						
+		}
+        		
+	}
+			
+	private Document getRequestSchemaPrivate(Registry registry, String operationName) 
+			throws UnrecognizedOperation, 
+			ParserConfigurationException {
+				 					
+		SOAPClass sReq = registry.getOperation(operationName);
+		
+		if (sReq == null) throw new UnrecognizedOperation();
+		
+		DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
+		
+		dbfac.setNamespaceAware(true);
+		
+        DocumentBuilder db = dbfac.newDocumentBuilder();
+        
+        DOMImplementation di = db.getDOMImplementation();
+        
+        Document doc = di.createDocument("http://www.w3.org/2001/XMLSchema", "xs:schema", null);
+        
+        Element schemaRoot = doc.getDocumentElement();
+        schemaRoot.setAttribute("targetNamespace", NAMESPACE);
+        schemaRoot.setAttribute("xmlns:xsd", NAMESPACE);
+        schemaRoot.setAttribute("xmlns:xs", "http://www.w3.org/2001/XMLSchema");        
+        schemaRoot.setAttribute("elementFormDefault", "qualified");
+        //schemaRoot.setAttribute("attributeFormDefault", "unqualified");
+        
+        // create element for class
+        Element request = doc.createElement("xs:element");
+        request.setAttribute("name", sReq.getBaseClass().getSimpleName());
+        request.appendChild(getComplexType(doc, sReq.getBaseClass(), true, schemaRoot, registry));
+        
+        schemaRoot.appendChild(request);
+                                                           
+        return doc;
+		
+	}
+	
+	public Document getRequestSchema(String operationName) 
+			throws UnrecognizedOperation, 
+			ParserConfigurationException {
+				
+		return getRequestSchema(_registry, operationName);
+					
+	}
+	
+	private Document getRequestSchema(Registry registry, String operationName) 
+			throws UnrecognizedOperation, 
+			ParserConfigurationException {
+		
+		// generation shares the complex types list with the wsdls
+		synchronized (this) {
+				
+			_complexTypes.clear();
+			
+			Document requestSchema = getRequestSchemaPrivate(registry, operationName);
+			
+			return requestSchema;
+			
+		}
+					
+	}
+	
+ 	private Element getWSDLSchema(Document document, Class<?> c, Registry registry) 
+			throws ParserConfigurationException, 
+			SecurityException, 
+			NoSuchMethodException, 
+			ClassNotFoundException {
+		
+		Element schemaRoot = document.createElement("xs:schema");
+		
+		schemaRoot.setAttribute("targetNamespace", NAMESPACE);
+		schemaRoot.setAttribute("xmlns:xs", "http://www.w3.org/2001/XMLSchema");
+		schemaRoot.setAttribute("elementFormDefault", "qualified");
+        				
+        // create element for request
+        Element request = document.createElement("xs:element");
+        request.setAttribute("name", c.getSimpleName());
+        request.appendChild(getComplexType(document, c, true, schemaRoot, registry));
+        schemaRoot.appendChild(request);
+                                               
+        // find the response class
+        Class<?> resClass = getResponseClass(c);
+                
+        // create an element for the response
+        Element response = document.createElement("xs:element");
+        // set the name
+        response.setAttribute("name", resClass.getSimpleName());
+        // only create an element if complex type
+        if (getIsSimpleSOAPType(resClass)) {            	
+        	// set the type
+        	response.setAttribute("type", "xs:" + getSimpleSOAPType(resClass));
+        } else {        	
+        	// add the complex type
+        	response.appendChild(getComplexType(document, resClass, true, schemaRoot, registry));  
+        }
+        
+        // add the element
+        schemaRoot.appendChild(response);
+        
+		return schemaRoot;
+		
+	}
+	
+ 	private Object getElementObject(SOAPClassElement p, Node n) 
+ 			throws SecurityException, 
+ 			IllegalArgumentException, 
+ 			DOMException, 
+ 			ClassNotFoundException, 
+ 			InstantiationException, 
+ 			IllegalAccessException, 
+ 			NoSuchMethodException,
+ 			NoSuchFieldException, 
+ 			InvocationTargetException, 
+ 			ParseException {
+ 		
+ 		Object j = null;
+ 		
+ 		if (p.isArray() && p.isComplexType()) {
+ 			
+			// make an object from component type and add as child
+			j = getObject(n, getElementSOAPClass(p));
+ 				 		
+ 		} else {
+ 		 					
+			if (p.isComplexType()) {
+				
+				// make an object and add as child
+				j = getObject(n, getElementSOAPClass(p));
+				
+			} else if (p.isBinary()) {
+				
+				j = getBinaryObject(p, Codec.parseBase64(n.getTextContent()));
+				
+			} else {
+				
+				j = getSimpleObject(p.isArray() ? p.getArrayType() : p.getType(), n.getTextContent());
+			
+			}
+		
+ 		}
+ 		 		
+		return j;
+ 		
+ 	}
+ 	
+ 	private Object getSimpleObject(String elementType, String text) throws ParseException {
+ 		
+ 		Object j = null;
+ 		
+		// check for casting into int, dateTime, date, etc	
+		if (elementType.equals("xs:boolean")) {
+			
+			j = Codec.parseBoolean(text);
+			
+		} else if (elementType.equals("xs:date")) {
+												
+			j = Codec.parseDate(text);						
+			
+		} else if (elementType.equals("xs:dateTime")) {
+			
+			j = new java.sql.Date(Codec.parseDateTime(text).getTime());							
+			
+		} else if (elementType.equals("xs:decimal")) {
+			
+			j = Codec.parseDecimal(text);
+			
+		} else if (elementType.equals("xs:integer")) {
+			
+			j = Codec.parseInteger(text);
+			
+		} else if (elementType.equals("xs:base64Binary")) {
+			
+			j = Codec.parseBase64(text);
+			
+		} else {
+			
+			j = text;
+			
+		}
+		
+		return j;
+ 		
+ 	}
+ 	
+ 	private Object getBinaryObject(SOAPClassElement p, byte[] bytes) {
+ 		
+ 		// input stream properties get a stream of the bytes
+ 		Class<?> c = p.isArray() ? p.getComponentClass() : p.getMethodClass();
+ 		
+ 		return InputStream.class.isAssignableFrom(c) ? new ByteArrayInputStream(bytes) : bytes;
+ 		
+ 	}
+ 	
+ 	private SOAPClass getElementSOAPClass(SOAPClassElement p) {
+ 		
+ 		// linked when the registry the element is in was published, not looked up in whatever's been published since, which may have a reloaded class of the same name
+ 		SOAPClass soapClass = p.getSOAPClass();
+ 		
+ 		if (soapClass == null) throw new IllegalStateException("The complex type of element " + p.getName() + " is not in the registry");
+ 		
+ 		return soapClass;
+ 		
+ 	}
+ 	
+ 	private Codec getCodec(SOAPClass soapClass) {
+ 		
+ 		if (!soapClass.isCodecChecked()) {
+ 			
+ 			Class<?> c = soapClass.getBaseClass();
+ 			
+ 			// the codec is generated in the same package, named after the class (with any outer classes)
+ 			String codecName = c.getName().replace('$', '_') + "_WSCodec";
+ 			
+ 			Codec codec = null;
+ 			
+ 			try {
+ 				
+ 				codec = (Codec) Class.forName(codecName, true, c.getClassLoader()).newInstance();
+ 				
+ 				// the codec must write the same elements, in the same order, and of the same types, as the metadata does
+ 				ArrayList<String> elementNames = new ArrayList<String>();
+ 				ArrayList<String> elementTypes = new ArrayList<String>();
+ 				
+ 				for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+ 					elementNames.add(p.getName());
+ 					elementTypes.add(p.getType());
+ 				}
+ 				
+ 				if (!Arrays.asList(codec.getElementNames()).equals(elementNames)) {
+ 					
+ 					_logger.warn("Generated codec " + codecName + " has elements " + Arrays.asList(codec.getElementNames()) + " but " + c.getName() + " has " + elementNames + ", it will not be used");
+ 					
+ 					codec = null;
+ 					
+ 				} else if (codec.getElementTypes() == null || !Arrays.asList(codec.getElementTypes()).equals(elementTypes)) {
+ 					
+ 					_logger.warn("Generated codec " + codecName + " has types " + (codec.getElementTypes() == null ? null : Arrays.asList(codec.getElementTypes())) + " but " + c.getName() + " has " + elementTypes + ", it will not be used");
+ 					
+ 					codec = null;
+ 					
+ 				} else {
+ 					
+ 					_logger.debug("Using generated codec " + codecName);
+ 					
+ 				}
+ 				
+ 			} catch (ClassNotFoundException ex) {
+ 				
+ 				// no codec has been generated, so we reflect
+ 				
+ 			} catch (Exception ex) {
+ 				
+ 				_logger.error("Error loading generated codec " + codecName, ex);
+ 				
+ 			}
+ 			
+ 			soapClass.setCodec(codec);
+ 			
+ 		}
+ 		
+ 		return soapClass.getCodec();
+ 		
+ 	}
+ 	
+ 	private Object getElementObject(SOAPClassElement p, XMLEventReader reader) 
+ 			throws XMLStreamException, 
+ 			InstantiationException, 
+ 			IllegalAccessException, 
+ 			IllegalArgumentException, 
+ 			NoSuchFieldException, 
+ 			InvocationTargetException, 
+ 			ParseException {
+ 		
+ 		// the reader is just past the start of this element and will be left just past its end
+ 		
+ 		if (p.isComplexType()) {
+ 			
+ 			return getObject(reader, getElementSOAPClass(p));
+ 			
+ 		} else if (p.isBinary()) {
+ 			
+ 			// either base64 text, or an attachment that was included in its place
+ 			StringBuilder text = new StringBuilder();
+ 			
+ 			XOPInclude include = null;
+ 			
+ 			while (reader.hasNext()) {
+ 				
+ 				XMLEvent e = reader.nextEvent();
+ 				
+ 				if (e.isEndElement()) break;
+ 				
+ 				if (e instanceof XOPInclude) {
+ 					
+ 					include = (XOPInclude) e;
+ 					
+ 				} else if (e.isCharacters()) {
+ 					
+ 					text.append(e.asCharacters().getData());
+ 					
+ 				} else if (e.isStartElement()) {
+ 					
+ 					// not allowed, which the validator will say when this element ends
+ 					Codec.skipElement(reader);
+ 					
+ 				}
+ 				
+ 			}
+ 			
+ 			if (include == null) return getBinaryObject(p, Codec.parseBase64(text.toString()));
+ 			
+ 			// input stream properties read the attachment from wherever it was kept
+ 			return include.getValue(InputStream.class.isAssignableFrom(p.isArray() ? p.getComponentClass() : p.getMethodClass()));
+ 			
+ 		} else {
+ 			
+ 			return getSimpleObject(p.isArray() ? p.getArrayType() : p.getType(), reader.getElementText());
+ 			
+ 		}
+ 		
+ 	}
+ 	
+ 	private Object getObject(XMLEventReader reader, SOAPClass soapClass) 
+ 			throws XMLStreamException, 
+ 			InstantiationException, 
+ 			IllegalAccessException, 
+ 			IllegalArgumentException, 
+ 			NoSuchFieldException, 
+ 			InvocationTargetException, 
+ 			ParseException {
+ 		
+ 		Codec codec = getCodec(soapClass);
+ 		
+ 		if (codec != null) return codec.read(reader);
+ 		
+ 		Object o = soapClass.getBaseClass().newInstance();
+ 		
+ 		while (reader.hasNext()) {
+ 			
+ 			XMLEvent e = reader.nextEvent();
+ 			
+ 			// the end of our own element
+ 			if (e.isEndElement()) break;
+ 			
+ 			if (e.isStartElement()) {
+ 				
+ 				String elementName = e.asStartElement().getName().getLocalPart();
+ 				
+ 				if (elementName.indexOf("ArrayOf") == 0) {
+ 					
+ 					elementName = elementName.substring(7);
+ 					
+ 					SOAPClassElement p = soapClass.getSOAPClassElement(elementName);
+ 					
+ 					ArrayList<Object> l = new ArrayList<Object>();
+ 					
+ 					// like the dom, an array element without any content at all is left as null
+ 					boolean content = false;
+ 					
+ 					while (reader.hasNext()) {
+ 						
+ 						XMLEvent ce = reader.nextEvent();
+ 						
+ 						if (ce.isEndElement()) break;
+ 						
+ 						if (ce.isStartElement()) l.add(getElementObject(p, reader));
+ 						
+ 						content = true;
+ 						
+ 					}
+ 					
+ 					if (content) p.setValue(o, p.getArrayValue(l));
+ 					
+ 				} else {
+ 					
+ 					SOAPClassElement p = soapClass.getSOAPClassElement(elementName);
+ 					
+ 					p.setValue(o, getElementObject(p, reader));
+ 					
+ 				}
+ 				
+ 			}
+ 			
+ 		}
+ 		
+ 		return o;
+ 		
+ 	}
+ 	
+ 	private static String getQualifiedName(QName name) {
+ 		return name.getPrefix() == null || name.getPrefix().length() == 0 ? name.getLocalPart() : name.getPrefix() + ":" + name.getLocalPart();
+ 	}
+ 	
+ 	private static void sendSAXEvent(ContentHandler handler, XMLEvent e) throws SAXException {
+ 		
+ 		// passes a pulled event on to a sax handler, which is how we get a validator to check the stream
+ 		
+ 		if (e.isStartElement()) {
+ 			
+ 			StartElement se = e.asStartElement();
+ 			
+ 			for (Iterator<?> i = se.getNamespaces(); i.hasNext();) {
+ 				Namespace n = (Namespace) i.next();
+ 				handler.startPrefixMapping(n.getPrefix(), n.getNamespaceURI());
+ 			}
+ 			
+ 			AttributesImpl attributes = new AttributesImpl();
+ 			
+ 			for (Iterator<?> i = se.getAttributes(); i.hasNext();) {
+ 				Attribute a = (Attribute) i.next();
+ 				attributes.addAttribute(a.getName().getNamespaceURI(), a.getName().getLocalPart(), getQualifiedName(a.getName()), "CDATA", a.getValue());
+ 			}
+ 			
+ 			handler.startElement(se.getName().getNamespaceURI(), se.getName().getLocalPart(), getQualifiedName(se.getName()), attributes);
+ 			
+ 		} else if (e.isEndElement()) {
+ 			
+ 			QName name = e.asEndElement().getName();
+ 			
+ 			handler.endElement(name.getNamespaceURI(), name.getLocalPart(), getQualifiedName(name));
+ 			
+ 			for (Iterator<?> i = e.asEndElement().getNamespaces(); i.hasNext();) {
+ 				Namespace n = (Namespace) i.next();
+ 				handler.endPrefixMapping(n.getPrefix());
+ 			}
+ 			
+ 		} else if (e.isCharacters()) {
+ 			
+ 			char[] text = e.asCharacters().getData().toCharArray();
+ 			
+ 			handler.characters(text, 0, text.length);
+ 			
+ 		}
+ 		
+ 	}
+ 	
+ 	private XMLEventReader getSOAPBodyReader(InputStream soapRequest, boolean fastInfoset, Attachments attachments) throws XMLStreamException, SOAPException {
+ 		
+ 		// pull the envelope up to the first element in the body, which is the next event read
+ 		XMLEventReader reader = getXMLEventReader(soapRequest, fastInfoset);
+ 		
+ 		// the envelope of an mtom request has its attachments put back where they were included
+ 		if (attachments != null) reader = new XOPEventReader(reader, attachments);
+ 		
+ 		boolean inBody = false;
+ 		
+ 		while (reader.hasNext()) {
+ 			
+ 			XMLEvent e = reader.peek();
+ 			
+ 			if (e.isStartElement()) {
+ 				
+ 				// we've got to the request element
+ 				if (inBody) return reader;
+ 				
+ 				if (SOAP_ENVELOPE_NAMESPACE.equals(e.asStartElement().getName().getNamespaceURI()) && "Body".equals(e.asStartElement().getName().getLocalPart())) inBody = true;
+ 				
+ 			} else if (e.isEndElement() && inBody) {
+ 				
+ 				// the body ended without any request element
+ 				break;
+ 				
+ 			}
+ 			
+ 			reader.nextEvent();
+ 			
+ 		}
+ 		
+ 		reader.close();
+ 		
+ 		throw new SOAPException("No request element found in the SOAP body");
+ 		
+ 	}
+ 	
+	private Object getObject(Node node, SOAPClass soapClass) 
+			throws ClassNotFoundException, 
+			InstantiationException, 
+			IllegalAccessException, 
+			SecurityException, 
+			IllegalArgumentException, 
+			DOMException, 
+			NoSuchMethodException,
+			NoSuchFieldException,
+			InvocationTargetException, 
+			ParseException {
+		
+		Class c = soapClass.getBaseClass();
+		
+		Object o = c.newInstance();
+						
+		NodeList nodes = node.getChildNodes();
+		
+		for (int i = 0; i < nodes.getLength(); i++) {
+			
+			Node n = nodes.item(i);
+			
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+																
+				String elementName = n.getLocalName();
+												
+				if (elementName.indexOf("ArrayOf") == 0) {
+					
+					NodeList cnodes = n.getChildNodes();
+					
+					if (cnodes.getLength() > 0) {
+						
+						elementName = elementName.substring(7);
+						
+						SOAPClassElement p = soapClass.getSOAPClassElement(elementName);
+						
+						ArrayList<Object> l = new ArrayList<Object>();						
+													
+						for (int j = 0; j < cnodes.getLength(); j ++) {
+							
+							Node cn = cnodes.item(j);
+							
+							if (cn.getNodeType() == Node.ELEMENT_NODE) {
+								
+								l.add(getElementObject(p, cn));
+								
+							}
+							
+						}
+						
+						p.setValue(o, p.getArrayValue(l));
+						
+					}
+					
+				} else {
+					
+					SOAPClassElement p = soapClass.getSOAPClassElement(elementName);
+					
+					p.setValue(o, getElementObject(p, n));
+					
+				} // array or not
+				
+			}
+			
+		}
+		
+		return o;
+		
+	}
+
+	private String getXMLValue(SOAPClassElement p, Object o) throws SOAPException {
+		
+		// get the type of this SOAPClassElement
+		String elementType = p.getType();
+		
+		// promote the type if this is an array
+		if (p.isArray()) elementType = p.getArrayType();
+		
+		// do checks for special formats
+		if (elementType.equals("xs:date")) {
+			
+			return Codec.formatDate(o);						
+			
+		} else if (elementType.equals("xs:dateTime")) {
+			
+			return Codec.formatDateTime(o);						
+								
+		} else if (o instanceof byte[] || o instanceof InputStream) {
+			
+			try {
+				
+				return Codec.formatBase64(o);
+				
+			} catch (IOException ex) {
+				
+				throw new SOAPException(ex);
+				
+			}
+			
+		} else {
+			
+			return o.toString();
+			
+		}
+		
+	}
+	
+	private void writeXMLValue(XMLStreamWriter writer, SOAPClassElement p, Object o, ArrayList<Object> attachments) throws XMLStreamException {
+		
+		// as getXMLValue, but the common types are written straight from the codec's buffer without making a string, and binary values are 
+		// added to the attachments, if we're making them, with only an include of them written here
+		
+		String elementType = p.isArray() ? p.getArrayType() : p.getType();
+		
+		if ((o instanceof byte[] || o instanceof InputStream) && attachments != null) {
+			
+			attachments.add(o);
+			
+			writer.writeStartElement("xop", "Include", XOP_NAMESPACE);
+			writer.writeNamespace("xop", XOP_NAMESPACE);
+			writer.writeAttribute("href", "cid:" + getAttachmentId(attachments.size()));
+			writer.writeEndElement();
+			
+		} else if (o instanceof byte[] || o instanceof InputStream) {
+			
+			Codec.writeBase64(writer, o);
+			
+		} else if (elementType.equals("xs:date")) {
+			
+			Codec.writeDate(writer, o);
+			
+		} else if (elementType.equals("xs:dateTime")) {
+			
+			Codec.writeDateTime(writer, o);
+			
+		} else if (o instanceof Integer) {
+			
+			Codec.writeInteger(writer, (Integer) o);
+			
+		} else if (o instanceof Float) {
+			
+			Codec.writeDecimal(writer, (Float) o);
+			
+		} else {
+			
+			writer.writeCharacters(o.toString());
+			
+		}
+		
+	}
+	
+	private void addObjectElement(SOAPElement parentElement, SOAPClassElement p, Object o) 
+	throws SOAPException, 
+	SecurityException, 
+	NoSuchMethodException, 
+	NoSuchFieldException,
+	IllegalArgumentException, 
+	IllegalAccessException, 
+	InvocationTargetException {
+		
+		// the value we want				
+		Object v = p.getValue(o);
+							
+		// check if array
+		if (p.isArray()) {
+												
+			if (v != null) {
+				
+				SOAPElement arrayElement = parentElement.addChildElement("ArrayOf" + p.getName(), "", NAMESPACE);
+				
+				try {
+					
+					Iterator<?> values = getArrayIterator(v);
+					
+					while (values.hasNext()) {
+						
+						SOAPElement childElement = arrayElement.addChildElement(p.getName(), "", NAMESPACE);
+						
+						Object w = values.next();
+						
+						if (p.isComplexType()) {
+							
+							// the enclosed class
+							SOAPClass soapClass = getElementSOAPClass(p);
+							
+							for (SOAPClassElement childClassElement : soapClass.getSOAPClassElements()) {
+								
+								addObjectElement(childElement, childClassElement, w);
+								
+							}
+							
+						} else {
+							
+							childElement.setTextContent(getXMLValue(p, w));
+							
+						}
+						
+					}
+					
+				} finally {
+					
+					closeArray(v);
+					
+				}
+				
+			}
+												
+		} else {
+														
+			if (p.isComplexType()) {
+													
+				if (v != null) {
+					
+					SOAPElement childElement = parentElement.addChildElement(p.getName(), "", NAMESPACE);
+					
+					SOAPClass soapClass = getElementSOAPClass(p);
+					
+					for (SOAPClassElement childClassElement : soapClass.getSOAPClassElements()) {
+						
+						addObjectElement(childElement, childClassElement, v);
+						
+					}
+					
+				}
+														
+			} else {
+																								
+				if (v != null) {
+					
+					SOAPElement childElement = parentElement.addChildElement(p.getName(), "", NAMESPACE);
+					
+					childElement.setTextContent(getXMLValue(p, v));
+					
+				}
+										
+			}
+			
+		}
+		
+	}
+	
+	private void writeObjectElements(XMLStreamWriter writer, SOAPClass soapClass, Object o, ArrayList<Object> attachments) 
+			throws XMLStreamException, 
+			NoSuchFieldException, 
+			IllegalArgumentException, 
+			IllegalAccessException, 
+			InvocationTargetException {
+		
+		// classes with binary values never have codecs, so their attachments are always made here
+		
+		Codec codec = getCodec(soapClass);
+		
+		if (codec == null) {
+			
+			for (SOAPClassElement p : soapClass.getSOAPClassElements()) writeObjectElement(writer, p, o, attachments);
+			
+		} else {
+			
+			codec.write(writer, o);
+			
+		}
+		
+	}
+	
+	private void writeObjectElement(XMLStreamWriter writer, SOAPClassElement p, Object o, ArrayList<Object> attachments) 
+			throws XMLStreamException, 
+			NoSuchFieldException, 
+			IllegalArgumentException, 
+			IllegalAccessException, 
+			InvocationTargetException {
+		
+		// the streaming equivalent of addObjectElement, nothing is kept once written
+		
+		Object v = p.getValue(o);
+		
+		if (v == null) return;
+		
+		if (p.isArray()) {
+			
+			writer.writeStartElement("", "ArrayOf" + p.getName(), NAMESPACE);
+			
+			SOAPClass soapClass = p.isComplexType() ? getElementSOAPClass(p) : null;
+			
+			try {
+				
+				// lists, iterators and streams are written as they're iterated
+				Iterator<?> values = getArrayIterator(v);
+				
+				while (values.hasNext()) {
+					
+					writer.writeStartElement("", p.getName(), NAMESPACE);
+					
+					Object w = values.next();
+					
+					if (p.isComplexType()) {
+						
+						writeObjectElements(writer, soapClass, w, attachments);
+						
+					} else {
+						
+						writeXMLValue(writer, p, w, attachments);
+						
+					}
+					
+					writer.writeEndElement();
+					
+				}
+				
+			} finally {
+				
+				closeArray(v);
+				
+			}
+			
+			writer.writeEndElement();
+			
+		} else {
+			
+			writer.writeStartElement("", p.getName(), NAMESPACE);
+			
+			if (p.isComplexType()) {
+				
+				SOAPClass soapClass = getElementSOAPClass(p);
+				
+				writeObjectElements(writer, soapClass, v, attachments);
+				
+			} else {
+				
+				writeXMLValue(writer, p, v, attachments);
+				
+			}
+			
+			writer.writeEndElement();
+			
+		}
+		
+	}
+	
+	// package private for the benchmarks
+	void writeSOAPMessage(Object o, OutputStream out) 
+			throws XMLStreamException, 
+			NoSuchFieldException, 
+			IllegalArgumentException, 
+			IllegalAccessException, 
+			InvocationTargetException {
+		
+		writeSOAPMessage(o, out, false);
+		
+	}
+	
+	// package private for the benchmarks
+	void writeSOAPMessage(Object o, OutputStream out, boolean fastInfoset) 
+			throws XMLStreamException, 
+			NoSuchFieldException, 
+			IllegalArgumentException, 
+			IllegalAccessException, 
+			InvocationTargetException {
+		
+		writeSOAPMessage(o, out, fastInfoset, null);
+		
+	}
+	
+	private void writeSOAPMessage(Object o, OutputStream out, boolean fastInfoset, ArrayList<Object> attachments) 
+			throws XMLStreamException, 
+			NoSuchFieldException, 
+			IllegalArgumentException, 
+			IllegalAccessException, 
+			InvocationTargetException {
+		
+		// writes the same envelope as getSOAPMessage, but straight to the stream, binary values go in the attachments if we're making them
+		
+		Class<?> responseClass = o.getClass();
+		
+		XMLStreamWriter writer = getXMLStreamWriter(out, fastInfoset);
+		
+		// fast infoset documents must start with their header, text ones are left without an xml declaration as they always have been
+		if (fastInfoset) writer.writeStartDocument();
+				
+		writer.writeStartElement("SOAP-ENV", "Envelope", SOAP_ENVELOPE_NAMESPACE);
+		writer.writeNamespace("SOAP-ENV", SOAP_ENVELOPE_NAMESPACE);
+		writer.writeNamespace(NAMESPACE_PREFIX, NAMESPACE);
+		
+		writer.writeStartElement("SOAP-ENV", "Body", SOAP_ENVELOPE_NAMESPACE);
+		
+		writer.writeStartElement("", responseClass.getSimpleName(), NAMESPACE);
+		writer.writeDefaultNamespace(NAMESPACE);
+		
+		if (getIsSimpleSOAPType(responseClass)) {
+			
+			writer.writeCharacters(o.toString());
+			
+		} else {
+			
+			SOAPClass soapClass = _registry.getSOAPClass(responseClass.getName());
+			
+			if (soapClass != null) {
+				
+				writeObjectElements(writer, soapClass, o, attachments);
+				
+			}
+			
+		}
+		
+		// the response, body, and envelope are closed ourselves as Fast Infoset doesn't finish the document properly otherwise
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.writeEndElement();
+		
+		writer.writeEndDocument();
+		
+		writer.flush();
+		
+		writer.close();
+		
+	}
+	
+	private static String getAttachmentId(int number) {
+		return "attachment" + number + "@rapid-is.co.uk";
+	}
+	
+	public static String getMTOMContentType(String boundary) {
+		// the content type of an mtom message written with this boundary
+		return MTOM_CONTENT_TYPE + "; type=\"" + XOP_CONTENT_TYPE + "\"; boundary=\"" + boundary + "\"; start=\"<" + MTOM_ROOT_ID + ">\"; start-info=\"text/xml\"";
+	}
+	
+	private static void writeMIMEPartStart(OutputStream out, String boundary, String contentType, String contentId) throws IOException {
+		
+		// every delimiter but the first has a line end before it, which isn't part of the previous part
+		String header = "--" + boundary + "\r\n" +
+				"Content-Type: " + contentType + "\r\n" +
+				"Content-Transfer-Encoding: binary\r\n" + 
+				"Content-ID: <" + contentId + ">\r\n\r\n";
+		
+		out.write(MTOM_ROOT_ID.equals(contentId) ? header.getBytes("ISO-8859-1") : ("\r\n" + header).getBytes("ISO-8859-1"));
+		
+	}
+	
+	private static void writeAttachment(OutputStream out, Object value) throws IOException {
+		
+		// the raw bytes of a binary value, an input stream is copied across as it's read and closed at its end
+		
+		if (value instanceof byte[]) {
+			
+			out.write((byte[]) value);
+			
+		} else {
+			
+			InputStream in = (InputStream) value;
+			
+			try {
+				
+				byte[] buffer = new byte[8192];
+				
+				int length;
+				
+				while ((length = in.read(buffer)) != -1) out.write(buffer, 0, length);
+				
+			} finally {
+				
+				in.close();
+				
+			}
+			
+		}
+		
+	}
+	
+	private void writeMTOMMessage(Object o, OutputStream out, String boundary) 
+			throws XMLStreamException, 
+			NoSuchFieldException, 
+			IllegalArgumentException, 
+			IllegalAccessException, 
+			InvocationTargetException, 
+			SOAPException, 
+			IOException {
+		
+		// the envelope first, with includes of the binary values, and then each of them in its own part, straight from where they are to the stream
+		
+		ArrayList<Object> attachments = new ArrayList<Object>();
+		
+		writeMIMEPartStart(out, boundary, XOP_CONTENT_TYPE + "; charset=UTF-8; type=\"text/xml\"", MTOM_ROOT_ID);
+		
+		if (o instanceof SOAPMessage) {
+			
+			((SOAPMessage) o).writeTo(out);
+			
+		} else {
+			
+			writeSOAPMessage(o, out, false, attachments);
+			
+		}
+		
+		for (int i = 0; i < attachments.size(); i++) {
+			
+			writeMIMEPartStart(out, boundary, "application/octet-stream", getAttachmentId(i + 1));
+			
+			writeAttachment(out, attachments.get(i));
+			
+		}
+		
+		out.write(("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1"));
+		
+	}
+	
+	// package private for the benchmarks
+	SOAPMessage getSOAPMessage(Object o) 
+			throws SOAPException, 
+			SecurityException, 
+			NoSuchMethodException,
+			NoSuchFieldException, 
+			IllegalArgumentException, 
+			IllegalAccessException, 
+			InvocationTargetException {
 		
-			Element complextype = doc.createElement("xs:complexType");
-	        if (!anonymous) complextype.setAttribute("name", c.getSimpleName());
-	        
-	        SOAPClass soapClass = _soapClasses.get(c.getName());
-	            
-	        // assume this is a sequence
-	        boolean choice = false;
-	        
-	        // check the annotation on the class and set to choice
-	        if (c.getAnnotations() != null ) {
-	        	for (Annotation a : c.getAnnotations()) {
-	        		if (a instanceof XSDchoice) choice = true;
-	        	}
-	        }
-	        // check the properties if not yet choice
-	        if (!choice) {
-	        	int choiceCount = 0;
-		        int propertyCount = 0;
-		        ArrayList<String> methods = new ArrayList<String>();
-		        // check get/set
-		        for (Method m : c.getMethods()) {
-		        	String methodName = m.getName();
-		        	if (methodName.startsWith("get") || methodName.startsWith("set")) {
-		        		methodName = methodName.substring(3);
-		        		if (methods.contains(methodName)) {
-		        			propertyCount ++;
-		        		} else {
-		        			methods.add(methodName);
-		        		}
-			        	for (Annotation a : m.getAnnotations()) {
-			        		if (a instanceof XSDchoice) choiceCount ++;	        			        		
-			        	}
-		        	}	        				
+		MessageFactory WSFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
+		
+		if (o instanceof CachedResponse) {
+			
+			// cached responses are parsed back from their text
+			MimeHeaders headers = new MimeHeaders();
+			
+			headers.addHeader("Content-Type", "text/xml; charset=UTF-8");
+			
+			try {
+				
+				return WSFactory.createMessage(headers, new ByteArrayInputStream(((CachedResponse) o).getBytes()));
+				
+			} catch (IOException ex) {
+				
+				throw new SOAPException(ex);
+				
+			}
+			
+		}
+		
+		SOAPMessage soapMessage = WSFactory.createMessage();
+		
+		SOAPEnvelope soapEnvelope = soapMessage.getSOAPPart().getEnvelope();	
+		
+		soapEnvelope.removeChild(soapMessage.getSOAPHeader());
+		
+		soapEnvelope.addNamespaceDeclaration(NAMESPACE_PREFIX, NAMESPACE);
+		
+		SOAPBody soapBody = soapMessage.getSOAPBody();
+		
+		SOAPElement soapElement = soapBody.addChildElement(o.getClass().getSimpleName(), "", NAMESPACE);
+		
+		Class responseClass = o.getClass();
+						
+		if (getIsSimpleSOAPType(responseClass)) {
+			
+			soapElement.setTextContent(o.toString());
+			
+		} else {
+			
+			SOAPClass soapClass = _registry.getSOAPClass(o.getClass().getName());
+			
+			if (soapClass != null) {
+				
+				try {
+					
+					for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+						
+						addObjectElement(soapElement, p, o);
+						
+					}
+					
+				} finally {
+					
+					closeSingleUseValues(o);
+					
 				}
-		        // check fields
-		        for (Field f : c.getFields()) {
-		        	boolean countedProperty = false;
-		        	for (Annotation fa : f.getAnnotations()) {
-		        		// count whether choice
-		        		if (fa instanceof XSDchoice) choiceCount ++;		        		
-		        		// count whether XSD
-		        		if (isXSDAnnotation(fa) && !countedProperty) {
-		        			propertyCount ++;
-		        			countedProperty = true;
-		        		}
-		        	}
-		        }
-		        if (choiceCount > 0 && choiceCount == propertyCount) choice = true;
-	        }
-	        
-	        // create the element accordingly
-	        Element e;	        
-	        if (choice) {
-	        	e = doc.createElement("xs:choice");	        	
-	        } else {
-	        	e = doc.createElement("xs:sequence");
-	        }	        
-	        complextype.appendChild(e);
-	        
-	        // add it's children
-			for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
-																
-				e.appendChild(getElement(doc, p, schemaRoot));
 				
 			}
 			
-			_complexTypes.add(c.getSimpleName());
+		}
+		
+		return soapMessage;
+		
+	}
+	
+	private SOAPMessage getFaultSOAPMessage(String fault, boolean client) throws SOAPException {
+		
+		MessageFactory WSFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
+		
+		SOAPMessage soapMessage = WSFactory.createMessage();
+		
+		SOAPEnvelope soapEnvelope = soapMessage.getSOAPPart().getEnvelope();	
+		
+		soapEnvelope.addNamespaceDeclaration(NAMESPACE_PREFIX, NAMESPACE);
+		
+		SOAPBody soapBody = soapMessage.getSOAPBody();
+		
+		SOAPElement soapFault = soapBody.addChildElement("Fault", "SOAP-ENV");
+		
+		SOAPElement faultCode = soapBody.addChildElement("faultcode");
+		if (client) {
+			faultCode.setTextContent("SOAP-ENV:Client");
+		} else {
+			faultCode.setTextContent("SOAP-ENV:Server");
+		}
+		
+		SOAPElement faultMessage = soapBody.addChildElement("faultstring");
+				
+		faultMessage.setTextContent(fault);
+		
+		soapFault.appendChild(faultCode);
+		soapFault.appendChild(faultMessage);
+		
+		return soapMessage;
+		
+	}
+	
+	public SOAPMessage getSOAPFault(Exception ex) throws SOAPException {
+				
+		return getFaultSOAPMessage(ex.getClass().getSimpleName() + " : " + ex.getMessage(), false);
+		
+	}
+	
+	public SOAPMessage getSOAPFault(ArrayList<String> faults) throws SOAPException {
+						
+			String faultString = "";
+			
+			for (String fault : faults) {
+				
+				faultString = faultString + fault + "\n";
+				
+			}
+			
+			return getFaultSOAPMessage(faultString, true);
+		
+	}
+	
+	public SOAPMessage getSOAPResponse(String operationName, SOAPMessage soapRequest, ServletContext servletContext) throws SOAPException {
+		
+		if (isBatch(operationName)) {
+			
+			// batches are read by the streaming parser, whichever the calls in them are answered with
+			ByteArrayOutputStream request = new ByteArrayOutputStream();
+			
+			try {
+				
+				soapRequest.writeTo(request);
+				
+			} catch (IOException ex) {
+				
+				throw new SOAPException(ex);
+				
+			}
+			
+			return getBatchSOAPMessage(new ByteArrayInputStream(request.toByteArray()), servletContext);
+			
+		}
+		
+		SOAPMessage response;
+		
+		OperationMetrics metrics = _metrics.get(operationName);
+		
+		long start = metrics == null ? 0 : metrics.start();
+		
+		boolean fault = true, validationFailure = false;
+	
+		try {
+			
+			if (_logger.isDebugEnabled()) {
+												
+				_logger.debug("SOAP request:\n" + getXMLString(new DOMSource(soapRequest.getSOAPPart().getEnvelope())));
+				
+			}
+			
+									
+			// the operations as they are now, for the whole of this request
+			Registry registry = _registry;
+			
+			SOAPClass s = registry.getOperation(operationName);
+			
+			if (s == null) throw new UnrecognizedOperation();
+			
+		    Document body = soapRequest.getSOAPBody().extractContentAsDocument();  
+		    
+		    Source bodySource = new DOMSource(body);
+		        
+		    OperationSchema operationSchema = getOperationSchema(registry, operationName);
+		    
+		    Validator validator = operationSchema.getValidator();
+		    
+		    ValidationHandler handler = new ValidationHandler();
+		    
+		    try {
+		    
+			    validator.setErrorHandler(handler);
+			    
+			    validator.validate(bodySource);
+			    
+		    } finally {
+		    	
+		    	operationSchema.returnValidator(validator);
+		    	
+		    }
+		    
+		    if (handler.getFailures().size() > 0) {
+		    	
+		    	validationFailure = true;
+		    	
+		    	response = getSOAPFault(handler.getFailures());
+		    			    	
+		    } else {
+		    	
+		    	WSFactory.Request r = (WSFactory.Request) getObject(body.getFirstChild(), s);
+				
+				Object o = getResponse(operationName, r, servletContext);
+				
+				response = getSOAPMessage(o);
+				
+				fault = false;
+		    	
+		    }
+		    		    		    			    			    		    		    	    	    				    
+	    } catch (Exception ex) {
+	    	
+	    	response = getExceptionSOAPMessage(ex);
+	    		    		    
+	    } finally {
+	    	
+	    	if (metrics != null) metrics.end(start, fault, validationFailure);
+	    	
+	    }
+		
+		if (_logger.isDebugEnabled()) {
+    					
+			_logger.debug("SOAP response:\n" + getXMLString(new DOMSource(response.getSOAPPart().getEnvelope())));
+			
+		}
+		
+		return response;
+		    		    	        		
+	}
+	
+	// package private for the benchmarks
+	Request getRequestObject(String operationName, Node requestNode) throws Exception {
+		
+		// binds a request element from a dom, without validating it
+		
+		SOAPClass s = _registry.getOperation(operationName);
+		
+		if (s == null) throw new UnrecognizedOperation();
+		
+		return (Request) getObject(requestNode, s);
+		
+	}
+	
+	// package private for the benchmarks
+	Request getRequestObject(String operationName, InputStream soapRequest, ArrayList<String> failures) throws Exception {
+		
+		return getRequestObject(operationName, soapRequest, failures, false);
+		
+	}
+	
+	// package private for the benchmarks
+	Request getRequestObject(String operationName, InputStream soapRequest, ArrayList<String> failures, boolean fastInfoset) throws Exception {
+		
+		return getRequestObject(operationName, soapRequest, failures, fastInfoset, null);
+		
+	}
+	
+	Request getRequestObject(String operationName, InputStream soapRequest, ArrayList<String> failures, boolean fastInfoset, Attachments attachments) throws Exception {
+
+		// the request is pulled straight from the stream and only the body is kept, any validation failures are added to the list and null returned
+		
+		if (_logger.isDebugEnabled() && fastInfoset) {
+			
+			_logger.debug("SOAP request in Fast Infoset");
+			
+		} else if (_logger.isDebugEnabled()) {
+			
+			// we have to buffer the request to log it
+			ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+			
+			byte[] buffer = new byte[4096];
+			
+			int length;
+			
+			while ((length = soapRequest.read(buffer)) != -1) requestBytes.write(buffer, 0, length);
+			
+			_logger.debug("SOAP request:\n" + requestBytes.toString("UTF-8"));
+			
+			soapRequest = new ByteArrayInputStream(requestBytes.toByteArray());
 			
-			return complextype;
-						
 		}
-        		
+		
+		// the operations as they are now, for the whole of this request
+		Registry registry = _registry;
+		
+		SOAPClass s = registry.getOperation(operationName);
+		
+		if (s == null) throw new UnrecognizedOperation();
+		
+		OperationSchema operationSchema = getOperationSchema(registry, operationName);
+	    
+	    ValidatorHandler validatorHandler = operationSchema.getValidatorHandler();
+	    
+	    // stops at the first failure rather than collecting them all
+	    ValidationHandler handler = new ValidationHandler(true);
+	    
+	    validatorHandler.setErrorHandler(handler);
+	    
+	    XMLEventReader reader = new ValidatingEventReader(getSOAPBodyReader(soapRequest, fastInfoset, attachments), validatorHandler);
+	    
+	    try {
+	    	
+	    	validatorHandler.startDocument();
+	    	
+	    	// move past the start of the request element
+	    	reader.nextEvent();
+	    	
+	    	Request r = (WSFactory.Request) getObject(reader, s);
+	    	
+	    	// anything the binder didn't need still has to be validated
+	    	while (reader.hasNext()) reader.nextEvent();
+	    	
+	    	validatorHandler.endDocument();
+	    	
+	    	operationSchema.returnValidatorHandler(validatorHandler);
+	    	
+	    	return r;
+	    	
+	    } catch (Exception ex) {
+	    	
+	    	// if the validator stopped us this is a validation failure, otherwise it's a problem binding a valid request, the handler isn't returned as it's part way through a document
+	    	if (handler.getFailures().size() > 0) {
+	    		
+	    		failures.addAll(handler.getFailures());
+	    		
+	    		return null;
+	    		
+	    	}
+	    	
+	    	throw ex;
+	    	
+	    } finally {
+	    	
+	    	reader.close();
+	    	
+	    }
+		
+	}
+	
+	private Object getResponseObject(String operationName, InputStream soapRequest, ServletContext servletContext, ArrayList<String> failures, boolean fastInfoset, Attachments attachments) throws Exception {
+		
+		Request r = getRequestObject(operationName, soapRequest, failures, fastInfoset, attachments);
+		
+		if (r == null) return null;
+		
+		return getResponse(operationName, r, servletContext);
+		
 	}
+	
+	public SOAPMessage getSOAPResponse(String operationName, InputStream soapRequest, ServletContext servletContext) throws SOAPException {
+		
+		// this is the streaming alternative to the above
+		
+		if (isBatch(operationName)) return getBatchSOAPMessage(soapRequest, servletContext);
+		
+		SOAPMessage response;
+		
+		OperationMetrics metrics = _metrics.get(operationName);
+		
+		long start = metrics == null ? 0 : metrics.start();
+		
+		ArrayList<String> failures = new ArrayList<String>();
+		
+		boolean fault = true;
+		
+		try {
 			
-	private Document getRequestSchemaPrivate(String operationName) 
-			throws UnrecognizedOperation, 
-			ParserConfigurationException {
-				 					
-		SOAPClass sReq = _operations.get(operationName);
+			Object o = getResponseObject(operationName, soapRequest, servletContext, failures, false, null);
+			
+			if (failures.size() > 0) {
+				
+				response = getSOAPFault(failures);
+				
+			} else {
+				
+				response = getSOAPMessage(o);
+				
+				fault = false;
+				
+			}
+			
+		} catch (Exception ex) {
+	    	
+	    	response = getExceptionSOAPMessage(ex);
+	    		    		    
+	    } finally {
+	    	
+	    	if (metrics != null) metrics.end(start, fault, failures.size() > 0);
+	    	
+	    }
 		
-		if (sReq == null) throw new UnrecognizedOperation();
+		if (_logger.isDebugEnabled()) {
+    					
+			_logger.debug("SOAP response:\n" + getXMLString(new DOMSource(response.getSOAPPart().getEnvelope())));
+			
+		}
 		
-		DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
+		return response;
 		
-		dbfac.setNamespaceAware(true);
+	}
+	
+	public void writeSOAPResponse(String operationName, InputStream soapRequest, ServletContext servletContext, OutputStream out) throws SOAPException, IOException {
 		
-        DocumentBuilder db = dbfac.newDocumentBuilder();
-        
-        DOMImplementation di = db.getDOMImplementation();
-        
-        Document doc = di.createDocument("http://www.w3.org/2001/XMLSchema", "xs:schema", null);
-        
-        Element schemaRoot = doc.getDocumentElement();
-        schemaRoot.setAttribute("targetNamespace", NAMESPACE);
-        schemaRoot.setAttribute("xmlns:xsd", NAMESPACE);
-        schemaRoot.setAttribute("xmlns:xs", "http://www.w3.org/2001/XMLSchema");        
-        schemaRoot.setAttribute("elementFormDefault", "qualified");
-        //schemaRoot.setAttribute("attributeFormDefault", "unqualified");
-        
-        // create element for class
-        Element request = doc.createElement("xs:element");
-        request.setAttribute("name", sReq.getBaseClass().getSimpleName());
-        request.appendChild(getComplexType(doc, sReq.getBaseClass(), true, schemaRoot));
-        
-        schemaRoot.appendChild(request);
-                                                           
-        return doc;
+		writeSOAPResponse(operationName, soapRequest, servletContext, out, false, false);
 		
 	}
 	
-	public Document getRequestSchema(String operationName) 
-			throws UnrecognizedOperation, 
-			ParserConfigurationException {
+	public void writeSOAPResponse(String operationName, InputStream soapRequest, ServletContext servletContext, OutputStream out, boolean fastInfosetRequest, boolean fastInfosetResponse) throws SOAPException, IOException {
+		
+		writeSOAPResponse(operationName, soapRequest, servletContext, out, fastInfosetRequest, fastInfosetResponse, null, null);
+		
+	}
+	
+	public void writeSOAPResponse(String operationName, InputStream soapRequest, ServletContext servletContext, OutputStream out, boolean fastInfosetRequest, boolean fastInfosetResponse, Attachments attachments, String mtomBoundary) throws SOAPException, IOException {
+		
+		// streams the request in and the response out, no SAAJ message, DOM, or string is made unless there is a fault, either can be in Fast Infoset rather than text,
+		// and an mtom request has its attachments, the response is mtom if given a boundary
+		
+		if (isBatch(operationName)) {
+			
+			Object batch;
+			
+			try {
+				
+				batch = new CachedResponse(getBatchResponse(soapRequest, servletContext, fastInfosetRequest, attachments));
 				
-		_complexTypes.clear();
+			} catch (Exception ex) {
+				
+				batch = getExceptionSOAPMessage(ex);
+				
+			}
+			
+			writeSOAPResponse(operationName, batch, out, fastInfosetResponse, mtomBoundary);
+			
+			return;
+			
+		}
 		
-		Document requestSchema = getRequestSchemaPrivate(operationName);
+		Object o = null;
+		
+		OperationMetrics metrics = _metrics.get(operationName);
+		
+		long start = metrics == null ? 0 : metrics.start();
+		
+		ArrayList<String> failures = new ArrayList<String>();
+		
+		try {
+			
+			o = getResponseObject(operationName, soapRequest, servletContext, failures, fastInfosetRequest, attachments);
+			
+			if (failures.size() > 0) o = getSOAPFault(failures);
+						
+		} catch (Exception ex) {
+	    	
+	    	o = getExceptionSOAPMessage(ex);
+	    		    		    
+	    } finally {
+	    	
+	    	// the time to make the response, as with the methods above, not to send it
+	    	if (metrics != null) metrics.end(start, o == null || o instanceof SOAPMessage, failures.size() > 0);
+	    	
+	    }
+		
+		writeSOAPResponse(operationName, o, out, fastInfosetResponse, mtomBoundary);
 		
-		return requestSchema;
-					
 	}
 	
- 	private Element getWSDLSchema(Document document, Class c) 
-			throws ParserConfigurationException, 
-			SecurityException, 
-			NoSuchMethodException, 
-			ClassNotFoundException {
+	public CompletionStage<Object> getSOAPResponseAsync(final String operationName, InputStream soapRequest, final ServletContext servletContext) throws SOAPException {
 		
-		Element schemaRoot = document.createElement("xs:schema");
+		return getSOAPResponseAsync(operationName, soapRequest, servletContext, false);
 		
-		schemaRoot.setAttribute("targetNamespace", NAMESPACE);
-		schemaRoot.setAttribute("xmlns:xs", "http://www.w3.org/2001/XMLSchema");
-		schemaRoot.setAttribute("elementFormDefault", "qualified");
-        				
-        // create element for request
-        Element request = document.createElement("xs:element");
-        request.setAttribute("name", c.getSimpleName());
-        request.appendChild(getComplexType(document, c, true, schemaRoot));
-        schemaRoot.appendChild(request);
-                                               
-        // find the request element
-        Method[] requestMethods = c.getDeclaredMethods();
-        Method requestMethod = null;
-        for (Method m : requestMethods) {
-        	if (m.getName().equals("getResponse") && !m.getReturnType().getName().equals("java.lang.Object")) {
-        		requestMethod = m;
-        		break;
-        	}
-        }
-                
-        // create an element for the response
-        Element response = document.createElement("xs:element");
-        // set the name
-        response.setAttribute("name", requestMethod.getReturnType().getSimpleName());
-        // check for simple / complex return type
-        Class resClass = requestMethod.getReturnType();
-        // only create an element if complex type
-        if (getIsSimpleSOAPType(resClass)) {            	
-        	// set the type
-        	response.setAttribute("type", "xs:" + getSimpleSOAPType(resClass));
-        } else {        	
-        	// add the complex type
-        	response.appendChild(getComplexType(document, resClass, true, schemaRoot));  
-        }
-        
-        // add the element
-        schemaRoot.appendChild(response);
-        
-		return schemaRoot;
+	}
+	
+	public CompletionStage<Object> getSOAPResponseAsync(final String operationName, InputStream soapRequest, final ServletContext servletContext, boolean fastInfoset) throws SOAPException {
+		
+		return getSOAPResponseAsync(operationName, soapRequest, servletContext, fastInfoset, null);
 		
 	}
 	
- 	private Object getElementObject(SOAPClassElement p, Node n) 
- 			throws SecurityException, 
- 			IllegalArgumentException, 
- 			DOMException, 
- 			ClassNotFoundException, 
- 			InstantiationException, 
- 			IllegalAccessException, 
- 			NoSuchMethodException,
- 			NoSuchFieldException, 
- 			InvocationTargetException, 
- 			ParseException {
- 		
- 		Object j = null;
- 		
- 		if (p.isArray() && p.isComplexType()) {
- 			
-			// make an object from component type and add as child
-			j = getObject(n, p.getMethodClass().getComponentType().getName());
- 				 		
- 		} else {
- 		 					
-			if (p.isComplexType()) {
+	public CompletionStage<Object> getSOAPResponseAsync(final String operationName, InputStream soapRequest, final ServletContext servletContext, boolean fastInfoset, Attachments attachments) throws SOAPException {
+				
+		// the request is read and bound now, the stage completes with the response object, or the fault message, once the operation has made it 
+		
+		final OperationMetrics metrics = _metrics.get(operationName);
+		
+		final long start = metrics == null ? 0 : metrics.start();
+		
+		try {
+			
+			ArrayList<String> failures = new ArrayList<String>();
+			
+			final Request r = getRequestObject(operationName, soapRequest, failures, fastInfoset, attachments);
+			
+			if (failures.size() > 0) {
+				
+				if (metrics != null) metrics.end(start, true, true);
+				
+				return CompletableFuture.completedFuture((Object) getSOAPFault(failures));
+				
+			}
+			
+			CompletionStage<?> stage;
+			
+			ResponseCache cache = _caches.get(operationName);
+			
+			String key = cache == null ? null : getRequestKey(r);
+			
+			if (key == null) {
+				
+				stage = getResponseStage(operationName, r, servletContext);
+				
+			} else {
+				
+				// a response that can't be shared is given straight back to the request that made it
+				final AtomicReference<Object> made = new AtomicReference<Object>();
+				
+				// a cached response is ready straight away, otherwise it's made, once, as usual and written for the cache when it's done
+				stage = cache.get(key, () -> getResponseStage(operationName, r, servletContext).thenApply(o -> {
+					
+					try {
+						
+						return getSharedResponseBytes(operationName, cache, key, o, made);
+						
+					} catch (Exception ex) {
+						
+						throw new CompletionException(ex);
+					
+					}
+				
+				})).thenCompose(bytes -> {
+					
+					if (bytes != null) return CompletableFuture.completedFuture((Object) new CachedResponse(bytes));
+					
+					if (made.get() != null) return CompletableFuture.completedFuture(made.get());
+					
+					// anyone who waited for it makes their own, on an executor rather than the thread that made the one they waited for
+					return CompletableFuture.supplyAsync(() -> {
+						
+						try {
+							
+							return getResponseStage(operationName, r, servletContext);
+							
+						} catch (Exception ex) {
+							
+							throw new CompletionException(ex);
+							
+						}
+						
+					}, getBatchExecutor()).thenCompose(s -> s.thenApply(o -> (Object) o));
+					
+				});
+				
+			}
+			
+			return stage.handle((o, ex) -> {
+				
+				if (metrics != null) metrics.end(start, ex != null, false);
+				
+				if (ex == null) return o;
+				
+				try {
+					
+					return getExceptionSOAPMessage(getStageException(ex));
+					
+				} catch (SOAPException ex2) {
+					
+					throw new CompletionException(ex2);
+					
+				}
+				
+			});
+			
+		} catch (Exception ex) {
+			
+			if (metrics != null) metrics.end(start, true, false);
+	    	
+			return CompletableFuture.completedFuture((Object) getExceptionSOAPMessage(ex));
+	    		    		    
+	    }
+		
+	}
+	
+	public void writeSOAPResponse(String operationName, Object response, OutputStream out) throws SOAPException, IOException {
+		
+		writeSOAPResponse(operationName, response, out, false);
+		
+	}
+	
+	public void writeSOAPResponse(String operationName, Object response, OutputStream out, boolean fastInfoset) throws SOAPException, IOException {
+		
+		writeSOAPResponse(operationName, response, out, fastInfoset, null);
+		
+	}
+	
+	public void writeSOAPResponse(String operationName, Object response, OutputStream out, boolean fastInfoset, String mtomBoundary) throws SOAPException, IOException {
+		
+		// writes a response object, or fault message, as made by the methods above, in Fast Infoset, or as an mtom message if there's a boundary for it
 				
-				// make an object and add as child
-				j = getObject(n, p.getMethodClass().getName());
+		// a null response can't be written so is a fault, as it is with getSOAPMessage
+		if (response == null) response = getExceptionSOAPMessage(new NullPointerException("The response object for operation " + operationName + " is null"));
+		
+		if (response instanceof SOAPMessage) {
+			
+			SOAPMessage fault = (SOAPMessage) response;
+			
+			if (_logger.isDebugEnabled()) _logger.debug("SOAP response:\n" + getXMLString(new DOMSource(fault.getSOAPPart().getEnvelope())));
+			
+			if (fastInfoset) {
 				
-			} else {
+				try {
+					
+					// faults are rare enough to just copy the dom across
+					XMLStreamWriter writer = getXMLStreamWriter(out, true);
+					
+					TransformerFactory.newInstance().newTransformer().transform(new DOMSource(fault.getSOAPPart()), new StAXResult(writer));
+					
+					writer.flush();
+					
+				} catch (Exception ex) {
+					
+					throw new SOAPException(ex);
+					
+				}
 				
-				// check for casting into int, dateTime, date, etc	
-				if (p.getType().equals("xs:boolean")) {
+			} else if (mtomBoundary != null) {
+				
+				try {
 					
-					j = Boolean.parseBoolean(n.getTextContent());
+					writeMTOMMessage(fault, out, mtomBoundary);
 					
-				} else if (p.getType().equals("xs:date")) {
-														
-					SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+				} catch (IOException | SOAPException ex) {
+					
+					throw ex;
+					
+				} catch (Exception ex) {
+					
+					throw new SOAPException(ex);
+					
+				}
+				
+			} else {
+			
+				fault.writeTo(out);
+				
+			}
+			
+		} else if (response instanceof CachedResponse) {
+			
+			CachedResponse cached = (CachedResponse) response;
+			
+			if (_logger.isDebugEnabled()) _logger.debug("SOAP response:\n" + new String(cached.getBytes(), "UTF-8"));
+			
+			try {
+				
+				writeCachedResponse(cached, out, fastInfoset, mtomBoundary);
+				
+			} catch (IOException ex) {
+				
+				throw ex;
+				
+			} catch (Exception ex) {
+				
+				throw new SOAPException(ex);
+				
+			}
+			
+		} else {
+			
+			try {
+				
+				if (_logger.isDebugEnabled() && (fastInfoset || mtomBoundary != null)) {
 					
-					java.util.Date d = df.parse(n.getTextContent());
+					SOAPClass soapClass = _registry.getSOAPClass(response.getClass().getName());
 					
-					j = new java.sql.Date(d.getTime());						
+					if (soapClass != null && hasSingleUseValues(soapClass, new HashSet<SOAPClass>())) {
+						
+						// writing the text version would use up the iterators or streams before the binary one is sent
+						_logger.debug("SOAP response in " + (fastInfoset ? "Fast Infoset" : "MTOM") + " for operation " + operationName + " not logged as it has values that can only be read once");
+						
+					} else {
+						
+						// log the text version, but send the binary one, any binary values are logged as includes as input streams can only be read once
+						ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+						
+						writeSOAPMessage(response, responseBytes, false, new ArrayList<Object>());
+						
+						_logger.debug("SOAP response in " + (fastInfoset ? "Fast Infoset" : "MTOM") + ":\n" + responseBytes.toString("UTF-8"));
+						
+					}
 					
-				} else if (p.getType().equals("xs:dateTime")) {
+					if (fastInfoset) writeSOAPMessage(response, out, true); else writeMTOMMessage(response, out, mtomBoundary);
 					
-					SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+				} else if (_logger.isDebugEnabled()) {
 					
-					java.util.Date d = df.parse(n.getTextContent());
+					// we have to buffer the response to log it
+					ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
 					
-					j = new java.sql.Date(d.getTime());							
+					writeSOAPMessage(response, responseBytes);
 					
-				} else if (p.getType().equals("xs:decimal")) {
+					_logger.debug("SOAP response:\n" + responseBytes.toString("UTF-8"));
 					
-					j = Float.parseFloat(n.getTextContent());
+					responseBytes.writeTo(out);
 					
-				} else if (p.getType().equals("xs:integer")) {
+				} else if (mtomBoundary != null && !fastInfoset) {
 					
-					j = Integer.parseInt(n.getTextContent());
+					writeMTOMMessage(response, out, mtomBoundary);
 					
 				} else {
-					
-					j = n.getTextContent();
+				
+					writeSOAPMessage(response, out, fastInfoset);
 					
 				}
+				
+			} catch (IOException ex) {
+				
+				throw ex;
+				
+			} catch (Exception ex) {
+				
+				// some of the response may have been sent already so all we can do is report this
+				_logger.error("Error writing SOAP response for operation " + operationName, ex);
+				
+				throw new SOAPException(ex);
+				
+			} finally {
+				
+				closeSingleUseValues(response);
+				
+			}
+			
+		}
+		
+	}
+	
+	private boolean isBatch(String operationName) {
+		return BATCH_OPERATION.equals(operationName) && _registry.getOperation(operationName) == null;
+	}
+	
+	private ExecutorService getBatchExecutor() {
+		
+		// batches, and async requests waiting for a permit, use the operations' executor if there is one, otherwise one of their own
+		ExecutorService executor = _executor;
+		
+		if (executor != null) return executor;
+		
+		synchronized (this) {
+			
+			if (_batchExecutor == null) _batchExecutor = newVirtualThreadExecutor();
+			
+			return _batchExecutor;
+			
+		}
+		
+	}
+	
+	public void shutdown() {
+		
+		// for when the web application stops, so the threads we made for batches don't outlive it, more are made if we're used again
+		ExecutorService batchExecutor;
+		
+		synchronized (this) {
+			
+			batchExecutor = _batchExecutor;
+			
+			_batchExecutor = null;
+			
+		}
+		
+		if (batchExecutor != null) batchExecutor.shutdown();
+		
+	}
+	
+	private static void addNamespaces(Map<String, String> namespaces, StartElement se) {
+		
+		for (Iterator<?> i = se.getNamespaces(); i.hasNext();) {
+			Namespace n = (Namespace) i.next();
+			namespaces.put(n.getPrefix() == null ? "" : n.getPrefix(), n.getNamespaceURI());
+		}
+		
+	}
+	
+	private static void writeEvent(XMLStreamWriter writer, XMLEvent e, Map<String, String> namespaces) throws XMLStreamException {
+		
+		// writes a pulled event, a start element also declares the namespaces given, as it's being moved out from where they were declared
+		
+		if (e.isStartElement()) {
+			
+			StartElement se = e.asStartElement();
+			
+			QName name = se.getName();
+			
+			writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+			
+			LinkedHashMap<String, String> declarations = new LinkedHashMap<String, String>();
+			
+			if (namespaces != null) declarations.putAll(namespaces);
+			
+			addNamespaces(declarations, se);
+			
+			for (Map.Entry<String, String> n : declarations.entrySet()) {
+				if (n.getKey().length() == 0) writer.writeDefaultNamespace(n.getValue()); else writer.writeNamespace(n.getKey(), n.getValue());
+			}
 			
+			for (Iterator<?> i = se.getAttributes(); i.hasNext();) {
+				Attribute a = (Attribute) i.next();
+				if (a.getName().getNamespaceURI() == null || a.getName().getNamespaceURI().length() == 0) {
+					writer.writeAttribute(a.getName().getLocalPart(), a.getValue());
+				} else {
+					writer.writeAttribute(a.getName().getPrefix(), a.getName().getNamespaceURI(), a.getName().getLocalPart(), a.getValue());
+				}
 			}
+			
+		} else if (e.isEndElement()) {
+			
+			writer.writeEndElement();
+			
+		} else if (e.isCharacters()) {
+			
+			if (e.asCharacters().isCData()) writer.writeCData(e.asCharacters().getData()); else writer.writeCharacters(e.asCharacters().getData());
+			
+		} else if (e.getEventType() == XMLStreamConstants.COMMENT) {
+			
+			writer.writeComment(((Comment) e).getText());
+			
+		}
 		
- 		}
- 		 		
-		return j;
- 		
- 	}
- 	
-	private Object getObject(Node node, String className) 
-			throws ClassNotFoundException, 
-			InstantiationException, 
-			IllegalAccessException, 
-			SecurityException, 
-			IllegalArgumentException, 
-			DOMException, 
-			NoSuchMethodException,
-			NoSuchFieldException,
-			InvocationTargetException, 
-			ParseException {
+	}
+	
+	private ArrayList<BatchCall> getBatchCalls(InputStream soapRequest, boolean fastInfoset) throws XMLStreamException, SOAPException {
 		
-		SOAPClass soapClass = _soapClasses.get(className);
+		// each call is copied into an envelope of its own, declaring the namespaces from around it, so it can be answered as if it was sent alone
 		
-		Class c = soapClass.getBaseClass();
+		ArrayList<BatchCall> calls = new ArrayList<BatchCall>();
 		
-		Object o = c.newInstance();
-						
-		NodeList nodes = node.getChildNodes();
+		LinkedHashMap<String, String> namespaces = new LinkedHashMap<String, String>();
 		
-		for (int i = 0; i < nodes.getLength(); i++) {
+		LinkedHashMap<String, String> callNamespaces = null;
+		
+		XMLEventReader reader = getXMLEventReader(soapRequest, fastInfoset);
+		
+		try {
 			
-			Node n = nodes.item(i);
+			int depth = 0;
 			
-			if (n.getNodeType() == Node.ELEMENT_NODE) {
-																
-				String elementName = n.getLocalName();
-				
-				SOAPClassElement p = soapClass.getSOAPClassElement(elementName);
+			boolean inBody = false, inBatch = false;
+			
+			BatchCall call = null;
+			
+			ByteArrayOutputStream envelope = null;
+			
+			XMLStreamWriter writer = null;
+			
+			while (reader.hasNext()) {
 				
-				// look for setter method
+				XMLEvent e = reader.nextEvent();
 				
-				Method[] methods = o.getClass().getMethods();
-				Method method = null;
-								
-				if (elementName.indexOf("ArrayOf") == 0) {
+				if (e.isStartElement()) {
 					
-					NodeList cnodes = n.getChildNodes();
+					StartElement se = e.asStartElement();
 					
-					if (cnodes.getLength() > 0) {
+					QName name = se.getName();
+					
+					depth++;
+					
+					if (writer != null) {
 						
-						elementName = elementName.substring(7);
+						// inside the request of a call
+						writeEvent(writer, e, null);
 						
-						// search for the modified setter name here
-						for (Method m : methods) {
-							if (("set" + elementName).equals(m.getName())) {
-								if (m.getReturnType().equals(p.getMethodClass())) {
-									method = m;
-									break;
-								}							
-							}
-						}
+					} else if (depth == 1) {
 						
-						p = soapClass.getSOAPClassElement(elementName);
+						addNamespaces(namespaces, se);
 						
-						ArrayList l = new ArrayList();						
-													
-						for (int j = 0; j < cnodes.getLength(); j ++) {
-							
-							Node cn = cnodes.item(j);
-							
-							if (cn.getNodeType() == Node.ELEMENT_NODE) {
-								
-								l.add(getElementObject(p, cn));
-								
-							}
-							
-						}
+					} else if (depth == 2) {
+						
+						// anything in the header is ignored
+						inBody = SOAP_ENVELOPE_NAMESPACE.equals(name.getNamespaceURI()) && "Body".equals(name.getLocalPart());
+						
+						if (inBody) addNamespaces(namespaces, se);
+						
+					} else if (depth == 3 && inBody) {
+						
+						if (inBatch || !NAMESPACE.equals(name.getNamespaceURI()) || !"Batch".equals(name.getLocalPart())) throw new SOAPException("The body of a batch request must be a single Batch element");
+						
+						inBatch = true;
+						
+						addNamespaces(namespaces, se);
 						
-						Object oa = Array.newInstance(p.getMethodClass().getComponentType(), l.size());	
+					} else if (depth == 4 && inBatch) {
 						
-						System.arraycopy(l.toArray(), 0, oa, 0, l.size());
+						if (!NAMESPACE.equals(name.getNamespaceURI()) || !"Call".equals(name.getLocalPart())) throw new SOAPException("A Batch can only contain Call elements, not " + name);
 						
-						if (method == null) {
+						if (calls.size() >= _batchMaxCalls) throw new SOAPException("A Batch can have at most " + _batchMaxCalls + " calls");
+						
+						Attribute operation = se.getAttributeByName(new QName("operation"));
+						
+						call = new BatchCall(operation == null ? null : operation.getValue());
+						
+						calls.add(call);
+						
+						callNamespaces = new LinkedHashMap<String, String>(namespaces);
+						
+						addNamespaces(callNamespaces, se);
+						
+					} else if (depth == 5 && call != null) {
+						
+						if (call.getEnvelope() != null) {
 							
-							o.getClass().getField(elementName).set(o, oa);
+							call.setError("A batch Call can only contain one request");
 							
 						} else {
-												
-							method.invoke(o, oa);
+							
+							// start the call's envelope, with the request as its body
+							envelope = new ByteArrayOutputStream();
+							
+							writer = _xmlOutputFactory.createXMLStreamWriter(envelope, "UTF-8");
+							
+							writer.writeStartElement("SOAP-ENV", "Envelope", SOAP_ENVELOPE_NAMESPACE);
+							writer.writeNamespace("SOAP-ENV", SOAP_ENVELOPE_NAMESPACE);
+							
+							for (Map.Entry<String, String> n : callNamespaces.entrySet()) {
+								if (n.getKey().length() == 0) writer.writeDefaultNamespace(n.getValue()); else if (!"SOAP-ENV".equals(n.getKey())) writer.writeNamespace(n.getKey(), n.getValue());
+							}
+							
+							writer.writeStartElement("SOAP-ENV", "Body", SOAP_ENVELOPE_NAMESPACE);
+							
+							writeEvent(writer, e, null);
 							
 						}
 						
 					}
 					
-				} else {
+				} else if (e.isEndElement()) {
 					
-					for (Method m : methods) {
-						if (("set" + elementName).equals(m.getName())) {
-							method = m;
-							break;							
+					if (writer != null) {
+						
+						writeEvent(writer, e, null);
+						
+						if (depth == 5) {
+							
+							// the end of the request so close its body and envelope
+							writer.writeEndElement();
+							writer.writeEndElement();
+							writer.writeEndDocument();
+							writer.close();
+							
+							call.setEnvelope(envelope.toByteArray());
+							
+							writer = null;
+							
 						}
-					}
-														
-					if (method == null) {
 						
-						o.getClass().getField(elementName).set(o, getElementObject(p, n));
+					} else if (depth == 4 && call != null) {
 						
-					} else {
+						if (call.getEnvelope() == null) call.setError("A batch Call must contain a request");
 						
-						method.invoke(o, getElementObject(p, n));
+						call = null;
 						
 					}
 					
-				} // array or not
+					depth--;
+					
+				} else if (writer != null) {
+					
+					writeEvent(writer, e, null);
+					
+				}
 				
 			}
 			
+			if (!inBatch) throw new SOAPException("No Batch element found in the SOAP body");
+			
+		} finally {
+			
+			reader.close();
+			
 		}
 		
-		return o;
+		return calls;
 		
 	}
-
-	private String getXMLValue(SOAPClassElement p, Object o) {
+	
+	private byte[] getBatchResult(BatchCall call, ServletContext servletContext, Attachments attachments) throws SOAPException, IOException {
 		
-		// get the type of this SOAPClassElement
-		String elementType = p.getType();
+		// the response envelope for one call, which is a fault if it went wrong, just as it would have been had it been sent alone
 		
-		// promote the type if this is an array
-		if (p.isArray()) elementType = p.getArrayType();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
 		
-		// do checks for special formats
-		if (elementType.equals("xs:date")) {
-			
-			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-			
-			return df.format(o);						
-			
-		} else if (elementType.equals("xs:dateTime")) {
+		if (call.getError() == null && isBatch(call.getOperationName())) call.setError("A batch can't contain another batch");
+		
+		if (call.getError() == null) {
 			
-			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+			writeSOAPResponse(call.getOperationName(), new ByteArrayInputStream(call.getEnvelope()), servletContext, result, false, false, attachments, null);
 			
-			return df.format(o);						
-								
 		} else {
 			
-			return o.toString();
+			getSOAPFault(new SOAPException(call.getError())).writeTo(result);
 			
 		}
 		
+		return result.toByteArray();
+		
 	}
 	
-	private void addObjectElement(SOAPElement parentElement, SOAPClassElement p, Object o) 
-	throws SOAPException, 
-	SecurityException, 
-	NoSuchMethodException, 
-	NoSuchFieldException,
-	IllegalArgumentException, 
-	IllegalAccessException, 
-	InvocationTargetException {
-		
-		// look for getter method		
-		Method[] methods = o.getClass().getMethods();
-		Method method = null;
-		for (Method m : methods) {
-			if (("get" + p.getName()).equals(m.getName())) {
-				method = m;
-				break;												
-			}
-		}
-		
-		// the value we want				
-		Object v = null;
+	private void writeBatchResult(XMLStreamWriter writer, byte[] result) throws XMLStreamException {
 		
-		// the name of return type class
-		String returnTypeClassName = null;
-		
-		// get the value object using the field if we couldn't find the method
-		if (method == null) {
-			Field f = o.getClass().getField(p.getName());
-			v = f.get(o);
-			returnTypeClassName = f.getType().getName();
-		} else {
-			v = method.invoke(o);
-			returnTypeClassName = method.getReturnType().getName();
-		}
-							
-		// check if array
-		if (p.isArray()) {
-												
-			if (v != null) {
+		// copies the element in the body of a result, declaring the namespaces it used from around it, other than those the batch response has already
+		
+		LinkedHashMap<String, String> namespaces = new LinkedHashMap<String, String>();
+		
+		XMLEventReader reader = _xmlInputFactory.createXMLEventReader(new ByteArrayInputStream(result));
+		
+		try {
+			
+			int depth = 0;
+			
+			boolean inBody = false, copying = false, copied = false;
+			
+			while (reader.hasNext()) {
 				
-				SOAPElement arrayElement = parentElement.addChildElement("ArrayOf" + p.getName(), "", NAMESPACE);
+				XMLEvent e = reader.nextEvent();
 				
-				for (int i = 0; i < Array.getLength(v); i++) {
+				if (e.isStartElement()) {
 					
-					SOAPElement childElement = arrayElement.addChildElement(p.getName(), "", NAMESPACE);
+					StartElement se = e.asStartElement();
 					
-					Object w = Array.get(v, i);
-
-					if (p.isComplexType()) {
+					depth++;
+					
+					if (copying) {
 						
-						// modify the name to be the enclosed class
-						returnTypeClassName = p.getMethodClass().getComponentType().getName();
-																														
-						SOAPClass soapClass = _soapClasses.get(returnTypeClassName);
+						writeEvent(writer, e, null);
 						
-						for (SOAPClassElement childClassElement : soapClass.getSOAPClassElements()) {
-							
-							addObjectElement(childElement, childClassElement, w);
-							
-						}
-																		
-					} else {
-																
-						childElement.setTextContent(getXMLValue(p, w));
+					} else if (depth == 1 || depth == 2) {
+						
+						inBody = depth == 2 && SOAP_ENVELOPE_NAMESPACE.equals(se.getName().getNamespaceURI()) && "Body".equals(se.getName().getLocalPart());
+						
+						if (depth == 1 || inBody) addNamespaces(namespaces, se);
+						
+					} else if (depth == 3 && inBody && !copied) {
+						
+						// faults are unqualified so mustn't pick up the batch response's default namespace
+						if (!namespaces.containsKey("")) namespaces.put("", "");
+						
+						namespaces.remove("SOAP-ENV", SOAP_ENVELOPE_NAMESPACE);
+						namespaces.remove(NAMESPACE_PREFIX, NAMESPACE);
+						namespaces.remove("", NAMESPACE);
+						
+						writeEvent(writer, e, namespaces);
+						
+						copying = true;
 						
 					}
 					
-				}
-				
-			}
-												
-		} else {
-														
-			if (p.isComplexType()) {
-													
-				if (v != null) {
-					
-					SOAPElement childElement = parentElement.addChildElement(p.getName(), "", NAMESPACE);
-					
-					SOAPClass soapClass = _soapClasses.get(returnTypeClassName);
+				} else if (e.isEndElement()) {
 					
-					for (SOAPClassElement childClassElement : soapClass.getSOAPClassElements()) {
+					if (copying) {
 						
-						addObjectElement(childElement, childClassElement, v);
+						writeEvent(writer, e, null);
+						
+						if (depth == 3) {
+							copying = false;
+							copied = true;
+						}
 						
 					}
 					
-				}
-														
-			} else {
-																								
-				if (v != null) {
+					depth--;
 					
-					SOAPElement childElement = parentElement.addChildElement(p.getName(), "", NAMESPACE);
+				} else if (copying) {
 					
-					childElement.setTextContent(getXMLValue(p, v));
+					writeEvent(writer, e, null);
 					
 				}
-										
+				
 			}
 			
+		} finally {
+			
+			reader.close();
+			
 		}
 		
 	}
 	
-	private SOAPMessage getSOAPMessage(Object o) 
-			throws SOAPException, 
-			SecurityException, 
-			NoSuchMethodException,
-			NoSuchFieldException, 
-			IllegalArgumentException, 
-			IllegalAccessException, 
-			InvocationTargetException {
-		
-		MessageFactory WSFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
+	private byte[] getBatchResponse(InputStream soapRequest, final ServletContext servletContext, boolean fastInfoset, final Attachments attachments) throws Exception {
 		
-		SOAPMessage soapMessage = WSFactory.createMessage();
-		
-		SOAPEnvelope soapEnvelope = soapMessage.getSOAPPart().getEnvelope();	
+		// the calls are made in parallel, but no more than the limit at once, each with its own validation, metrics, and faults, and their results kept in order
 		
-		soapEnvelope.removeChild(soapMessage.getSOAPHeader());
+		final ArrayList<BatchCall> calls = getBatchCalls(soapRequest, fastInfoset);
 		
-		soapEnvelope.addNamespaceDeclaration(NAMESPACE_PREFIX, NAMESPACE);
+		final byte[][] results = new byte[calls.size()][];
 		
-		SOAPBody soapBody = soapMessage.getSOAPBody();
+		final AtomicInteger next = new AtomicInteger();
 		
-		SOAPElement soapElement = soapBody.addChildElement(o.getClass().getSimpleName(), "", NAMESPACE);
+		// calls that fail are faults in their results, anything else fails the batch, so the calls not yet started are skipped
+		final AtomicBoolean failed = new AtomicBoolean();
 		
-		Class responseClass = o.getClass();
-						
-		if (getIsSimpleSOAPType(responseClass)) {
-			
-			soapElement.setTextContent(o.toString());
+		Runnable worker = () -> {
 			
-		} else {
-			
-			SOAPClass soapClass = _soapClasses.get(o.getClass().getName());
-			
-			if (soapClass != null) {
-												
-				for (SOAPClassElement p : soapClass.getSOAPClassElements()) {
+			for (int i = next.getAndIncrement(); i < calls.size() && !failed.get(); i = next.getAndIncrement()) {
+				
+				try {
+					
+					results[i] = getBatchResult(calls.get(i), servletContext, attachments);
+					
+				} catch (Exception ex) {
+					
+					failed.set(true);
+					
+					throw new CompletionException(ex);
 					
-					addObjectElement(soapElement, p, o);
-														
 				}
 				
 			}
 			
-		}
+		};
 		
-		return soapMessage;
+		// this thread is one of the workers, the rest are on the executor
+		ArrayList<CompletableFuture<Void>> workers = new ArrayList<CompletableFuture<Void>>();
 		
-	}
-	
-	private SOAPMessage getFaultSOAPMessage(String fault, boolean client) throws SOAPException {
+		int parallelism = Math.min(_batchParallelism, calls.size());
 		
-		MessageFactory WSFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);
+		if (parallelism > 1) {
+			
+			ExecutorService executor = getBatchExecutor();
+			
+			try {
+				
+				for (int i = 1; i < parallelism; i++) workers.add(CompletableFuture.runAsync(worker, executor));
+				
+			} catch (RejectedExecutionException ex) {
+				
+				// the executor is shutting down, those we have will do
+				_logger.debug("Batch running with " + (workers.size() + 1) + " workers as the executor rejected more");
+				
+			}
+			
+		}
 		
-		SOAPMessage soapMessage = WSFactory.createMessage();
+		try {
+			
+			worker.run();
+			
+			CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[workers.size()])).join();
+			
+		} catch (CompletionException ex) {
+			
+			throw getStageException(ex);
+			
+		}
 		
-		SOAPEnvelope soapEnvelope = soapMessage.getSOAPPart().getEnvelope();	
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
 		
-		soapEnvelope.addNamespaceDeclaration(NAMESPACE_PREFIX, NAMESPACE);
+		XMLStreamWriter writer = _xmlOutputFactory.createXMLStreamWriter(response, "UTF-8");
 		
-		SOAPBody soapBody = soapMessage.getSOAPBody();
+		writer.writeStartElement("SOAP-ENV", "Envelope", SOAP_ENVELOPE_NAMESPACE);
+		writer.writeNamespace("SOAP-ENV", SOAP_ENVELOPE_NAMESPACE);
+		writer.writeNamespace(NAMESPACE_PREFIX, NAMESPACE);
 		
-		SOAPElement soapFault = soapBody.addChildElement("Fault", "SOAP-ENV");
+		writer.writeStartElement("SOAP-ENV", "Body", SOAP_ENVELOPE_NAMESPACE);
 		
-		SOAPElement faultCode = soapBody.addChildElement("faultcode");
-		if (client) {
-			faultCode.setTextContent("SOAP-ENV:Client");
-		} else {
-			faultCode.setTextContent("SOAP-ENV:Server");
-		}
+		writer.writeStartElement("", "BatchResponse", NAMESPACE);
+		writer.writeDefaultNamespace(NAMESPACE);
 		
-		SOAPElement faultMessage = soapBody.addChildElement("faultstring");
-				
-		faultMessage.setTextContent(fault);
+		for (int i = 0; i < calls.size(); i++) {
+			
+			writer.writeStartElement("", "Result", NAMESPACE);
+			
+			if (calls.get(i).getOperationName() != null) writer.writeAttribute("operation", calls.get(i).getOperationName());
+			
+			writeBatchResult(writer, results[i]);
+			
+			writer.writeEndElement();
+			
+		}
 		
-		soapFault.appendChild(faultCode);
-		soapFault.appendChild(faultMessage);
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.writeEndElement();
 		
-		return soapMessage;
+		writer.writeEndDocument();
 		
-	}
-	
-	public SOAPMessage getSOAPFault(Exception ex) throws SOAPException {
-				
-		return getFaultSOAPMessage(ex.getClass().getSimpleName() + " : " + ex.getMessage(), false);
+		writer.close();
 		
-	}
-	
-	public SOAPMessage getSOAPFault(ArrayList<String> faults) throws SOAPException {
-						
-			String faultString = "";
-			
-			for (String fault : faults) {
-				
-				faultString = faultString + fault + "\n";
-				
-			}
-			
-			return getFaultSOAPMessage(faultString, true);
+		return response.toByteArray();
 		
 	}
 	
-	public SOAPMessage getSOAPResponse(String operationName, SOAPMessage soapRequest, ServletContext servletContext) throws SOAPException {
+	private SOAPMessage getBatchSOAPMessage(InputStream soapRequest, ServletContext servletContext) throws SOAPException {
 		
-		SOAPMessage response;
-	
 		try {
 			
-			if (_logger.isDebugEnabled()) {
-												
-				_logger.debug("SOAP request:\n" + getXMLString(new DOMSource(soapRequest.getSOAPPart().getEnvelope())));
-				
-			}
+			return getSOAPMessage(new CachedResponse(getBatchResponse(soapRequest, servletContext, false, null)));
 			
-									
-			SOAPClass s = _operations.get(operationName);
+		} catch (Exception ex) {
 			
-			if (s == null) throw new UnrecognizedOperation();
+			return getExceptionSOAPMessage(ex);
 			
-		    Document body = soapRequest.getSOAPBody().extractContentAsDocument();  
-		    
-		    Source bodySource = new DOMSource(body);
-		        
-		    Validator validator;
-		    
-		    if (_validators.contains(operationName)) {
-		    	
-		    	validator = _validators.get(operationName);
-		    	
-		    } else {
-		    	
-		    	SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-			    
-			    Source schemaSource = new DOMSource(getRequestSchema(operationName));
-
-			    StringReader schemaStringReader = new StringReader(getXMLString(schemaSource)); 
+		}
 		
-			    SAXSource schemaSAXSource = new SAXSource(new InputSource(schemaStringReader));
-			    
-			    Schema schema = schemaFactory.newSchema(schemaSAXSource);
-			    
-			    validator = schema.newValidator();
-			    		        		       		        		    	
-		    }
-		    
-		    ValidationHandler handler = new ValidationHandler();
-		    
-		    validator.setErrorHandler(handler);
-		    
-		    validator.validate(bodySource);
-		    
-		    if (handler.getFailures().size() > 0) {
-		    	
-		    	response = getSOAPFault(handler.getFailures());
-		    			    	
-		    } else {
-		    	
-		    	WSFactory.Request r = (WSFactory.Request) getObject(body.getFirstChild(), s.getBaseClass().getName());
-				
-				Object o = r.getResponse(servletContext);
-				
-				response = getSOAPMessage(o);
-		    	
-		    }
-		    		    		    			    			    		    		    	    	    				    
-	    } catch (Exception ex) {
-	    	
-	    	response = getSOAPFault(ex);
-	    	
-	    	try {	    					    
-	    		
-	    		Source responseSource = new DOMSource(response.getSOAPPart().getEnvelope());
-				
-	    		_logger.error("SOAP response:\n" + getXMLString(responseSource), ex);
-	    		
-	    	} catch (Exception ex2) { 
-	    		
-	    		_logger.error(ex2);	    	
-	    		
-	    	}
-	    		    		    
-	    }
+	}
+	
+	private SOAPMessage getExceptionSOAPMessage(Exception ex) throws SOAPException {
 		
-		if (_logger.isDebugEnabled()) {
-    					
-			_logger.debug("SOAP response:\n" + getXMLString(new DOMSource(response.getSOAPPart().getEnvelope())));
+		SOAPMessage response = getSOAPFault(ex);
+    	
+    	try {	    					    
+    		
+    		Source responseSource = new DOMSource(response.getSOAPPart().getEnvelope());
 			
-		}
+    		_logger.error("SOAP response:\n" + getXMLString(responseSource), ex);
+    		
+    	} catch (Exception ex2) { 
+    		
+    		_logger.error(ex2);	    	
+    		
+    	}
+    	
+    	return response;
 		
-		return response;
-		    		    	        		
 	}
 
 	private static class ValidationHandler extends DefaultHandler {
 	
 	    private String _elementName;
 	    private ArrayList<String> _failures;
+	    private boolean _stopOnFailure;
 
 	    public ArrayList<String> getFailures() { return _failures; }
 	    
 	    public ValidationHandler() {	    	
+	    	this(false);	    		    	
+	    }
+	    
+	    public ValidationHandler(boolean stopOnFailure) {	    	
 	    	_elementName = "";
-	    	_failures = new ArrayList<String>();	    		    	
+	    	_failures = new ArrayList<String>();
+	    	_stopOnFailure = stopOnFailure;
 	    }
 		 
 		@Override
         public void warning(SAXParseException exception) throws SAXException {
 	    	_failures.add(exception.getMessage());
+	    	if (_stopOnFailure) throw exception;
         }
 
         @Override
         public void error(SAXParseException exception) throws SAXException {
         	_failures.add(exception.getMessage());
+        	if (_stopOnFailure) throw exception;
         }
 
         @Override
         public void fatalError(SAXParseException exception) throws SAXException {
         	_failures.add(exception.getMessage());
+        	if (_stopOnFailure) throw exception;
         }
 		    	
 	}
 	
-	private Document getWSDLPrivate(String operationName, String endPoint) 
+	private Document getWSDLPrivate(Registry registry, String operationName, String endPoint) 
 			throws UnrecognizedOperation,
 			ParserConfigurationException, 
 			SecurityException, 
 			NoSuchMethodException, 
 			ClassNotFoundException {
 		
-		SOAPClass sReq = _operations.get(operationName);
+		SOAPClass sReq = registry.getOperation(operationName);
 		
 		if (sReq == null) throw new UnrecognizedOperation();
 		
@@ -1737,14 +5974,9 @@ public class WSFactory {
 		
 		String responseName = null;
 		
-		Method[] methods = sReq.getBaseClass().getMethods();
+		Class<?> responseClass = getResponseClass(sReq.getBaseClass());
 		
-		for (Method m : methods) {
-			if (m.getName().equals("getResponse") && !m.getReturnType().getName().equals("java.lang.Object")) {
-				responseName = m.getReturnType().getSimpleName();
-				break;
-			}
-		}
+		if (responseClass != null) responseName = responseClass.getSimpleName();
 				
 		DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
         DocumentBuilder db = dbfac.newDocumentBuilder();
@@ -1761,7 +5993,7 @@ public class WSFactory {
         Element types = doc.createElement("wsdl:types");        
         root.appendChild(types);
                 
-        Element schema = getWSDLSchema(doc, sReq.getBaseClass());
+        Element schema = getWSDLSchema(doc, sReq.getBaseClass(), registry);
         types.appendChild(schema);                
         
         Element messageIn = doc.createElement("wsdl:message");
@@ -1802,6 +6034,35 @@ public class WSFactory {
         binding.setAttribute("type", "tns:PortType");
         root.appendChild(binding);
         
+        // if any value is binary say that it can be sent with mtom, as an optional policy so clients without it can still send base64
+        NodeList schemaElements = schema.getElementsByTagName("xs:element");
+        
+        for (int i = 0; i < schemaElements.getLength(); i++) {
+        	
+        	if (((Element) schemaElements.item(i)).hasAttribute("xmime:expectedContentTypes")) {
+        		
+        		root.setAttribute("xmlns:wsp", "http://schemas.xmlsoap.org/ws/2004/09/policy");
+        		root.setAttribute("xmlns:wsoma", "http://schemas.xmlsoap.org/ws/2004/09/policy/optimizedmimeserialization");
+        		root.setAttribute("xmlns:wsu", "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd");
+        		
+        		Element policy = doc.createElement("wsp:Policy");
+        		policy.setAttribute("wsu:Id", "MTOMPolicy");
+        		root.insertBefore(policy, binding);
+        		
+        		Element mtom = doc.createElement("wsoma:OptimizedMimeSerialization");
+        		mtom.setAttribute("wsp:Optional", "true");
+        		policy.appendChild(mtom);
+        		
+        		Element policyReference = doc.createElement("wsp:PolicyReference");
+        		policyReference.setAttribute("URI", "#MTOMPolicy");
+        		binding.appendChild(policyReference);
+        		
+        		break;
+        		
+        	}
+        	
+        }
+        
         Element soapBinding = doc.createElement("soap:binding");
         soapBinding.setAttribute("style", "document");
         soapBinding.setAttribute("transport", "http://schemas.xmlsoap.org/soap/http");
@@ -1853,15 +6114,23 @@ public class WSFactory {
 			NoSuchMethodException, 
 			ClassNotFoundException {
 		
-		if (_wsdls.contains(operationName)) {
-			
-			return _wsdls.get(operationName);
-			
-		} else {
+		return getWSDL(_registry, operationName, endPoint);
+		
+	}
+	
+	private Document getWSDL(Registry registry, String operationName, String endPoint) 
+			throws UnrecognizedOperation,
+			ParserConfigurationException, 
+			SecurityException, 
+			NoSuchMethodException, 
+			ClassNotFoundException {
+		
+		// generation shares the complex types list with the schema compilation
+		synchronized (this) {
 			
 			_complexTypes.clear();
 			
-			Document wsdl = getWSDLPrivate(operationName, endPoint);
+			Document wsdl = getWSDLPrivate(registry, operationName, endPoint);
 			
 			return wsdl;
 			
@@ -1869,6 +6138,37 @@ public class WSFactory {
 					
 	}
 	
+	public WSDL getCachedWSDL(String operationName, String endPoint) 
+			throws UnrecognizedOperation,
+			ParserConfigurationException, 
+			SecurityException, 
+			NoSuchMethodException, 
+			ClassNotFoundException {
+		
+		// the wsdl is cached with the operations it was made from
+		Registry registry = _registry;
+		
+		ConcurrentHashMap<String,WSDL> endPointWSDLs = registry.getWSDLs().get(operationName);
+		
+		WSDL wsdl = endPointWSDLs == null ? null : endPointWSDLs.get(endPoint);
+		
+		if (wsdl == null) {
+			
+			// this will throw an exception if the operation is not known so we don't cache junk
+			Document document = getWSDL(registry, operationName, endPoint);
+			
+			wsdl = new WSDL(getXMLString(new DOMSource(document)).getBytes(Charset.forName("UTF-8")));
+			
+			endPointWSDLs = registry.getWSDLs().computeIfAbsent(operationName, k -> new ConcurrentHashMap<String,WSDL>());
+			
+			if (endPointWSDLs.size() < MAX_WSDL_END_POINTS) endPointWSDLs.put(endPoint, wsdl);
+			
+		}
+		
+		return wsdl;
+		
+	}
+	
   	public static String getXMLString(Source source) {
 		  		  		
   		try {
@@ -25,13 +25,33 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 
 package com.rapid.soa;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -45,17 +65,147 @@ import javax.xml.transform.dom.DOMSource;
 
 import org.apache.log4j.Logger;
 
-import org.w3c.dom.Document;
-
 import com.rapid.soa.WSFactory;
+import com.rapid.soa.WSFactory.WSDL;
 
 public class WSGateway extends HttpServlet {
 	
 	private static final long serialVersionUID = 1L;
+	// the lines of the log sent when no part of it is asked for, and the most bytes sent in one go
+	private static final int LOG_TAIL_LINES = 1000;
+	private static final long LOG_MAX_LENGTH = 4 * 1024 * 1024;
 	
 	private static Logger _logger; 
 	private static WSFactory _wsFactory;
 	
+	// whether requests and responses are made as SAAJ messages and DOMs, rather than streamed, set with the soa.parser init parameter
+	private boolean _domParser;
+	// how long async operations have to respond in milliseconds, set with the soa.asyncTimeout init parameter, otherwise the container's default
+	private long _asyncTimeout;
+	// any executor we made for the operations, set with the soa.executor init parameter
+	private ExecutorService _executor;
+	// the deflate level for compressed responses, 0 turns compression off, set with the soa.compressionLevel init parameter
+	private int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	// responses smaller than this many bytes are not worth compressing, set with the soa.compressionMinSize init parameter
+	private int _compressionMinSize = 1024;
+	// mtom parts bigger than this many bytes are spooled to temporary files, set with the soa.mtomMemoryThreshold init parameter
+	private int _mtomMemoryThreshold = WSFactory.Attachments.MEMORY_THRESHOLD;
+	// mtom requests bigger than this many bytes are refused, 0 for no limit, set with the soa.mtomMaxSize init parameter
+	private long _mtomMaxSize = WSFactory.Attachments.MAX_SIZE;
+	
+	private static class CompressingOutputStream extends OutputStream {
+		
+		// holds back the start of a response, and only compresses it if it gets to the minimum size, so small responses go as they are with a content length
+		
+		private HttpServletResponse _response;
+		private OutputStream _out;
+		private String _encoding;
+		private int _level;
+		private byte[] _buffer;
+		private int _count;
+		private DeflaterOutputStream _compressor;
+		private Deflater _deflater;
+				
+		public CompressingOutputStream(HttpServletResponse response, OutputStream out, String encoding, int level, int minSize) {
+			_response = response;
+			_out = out;
+			_encoding = encoding;
+			_level = level;
+			_buffer = new byte[minSize];
+			_count = 0;
+		}
+		
+		private DeflaterOutputStream getCompressor() throws IOException {
+			if ("gzip".equals(_encoding)) {
+				return new GZIPOutputStream(_out, 8192) {{ def.setLevel(_level); _deflater = def; }};
+			} else {
+				_deflater = new Deflater(_level);
+				return new DeflaterOutputStream(_out, _deflater, 8192);
+			}
+		}
+		
+		private void endCompressor() {
+			// the deflater we make for deflate isn't ended by the stream, and gzip's is only when it's closed, not when reset drops it,
+			// so both are ended here rather than leaving their native memory for the cleaner, ending one twice does nothing
+			if (_deflater != null) _deflater.end();
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			
+			if (_compressor == null) {
+				
+				if (_count + length <= _buffer.length) {
+					
+					System.arraycopy(b, offset, _buffer, _count, length);
+					
+					_count += length;
+					
+					return;
+					
+				}
+				
+				// big enough, from here on everything is compressed
+				_response.setHeader("Content-Encoding", _encoding);
+				
+				_compressor = getCompressor();
+				
+				_compressor.write(_buffer, 0, _count);
+				
+			}
+			
+			_compressor.write(b, offset, length);
+			
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			// nothing is sent until we know whether it's compressed
+			if (_compressor != null) _compressor.flush();
+		}
+		
+		public void reset() throws IOException {
+			
+			// for errors, drop anything written that hasn't been sent yet, and start again
+			_response.resetBuffer();
+			
+			_count = 0;
+			
+			if (_compressor != null) {
+				endCompressor();
+				_compressor = getCompressor();
+			}
+			
+		}
+		
+		@Override
+		public void close() throws IOException {
+			
+			if (_compressor == null) {
+				
+				_response.setContentLength(_count);
+				
+				_out.write(_buffer, 0, _count);
+				
+				_out.close();
+				
+			} else {
+				
+				_compressor.close();
+				
+				endCompressor();
+				
+			}
+			
+		}
+		
+	}
+
 	public Logger getLogger() {	
 		// ensure the logger is initialised
 		if (_logger == null) _logger = Logger.getLogger(WSGateway.class);
@@ -71,6 +221,344 @@ public class WSGateway extends HttpServlet {
 		// return it
 		return _wsFactory; 
 	}
+	
+	@Override
+	public void init() throws ServletException {
+		// the streaming parser is the default, "dom" falls back to SAAJ
+		_domParser = "dom".equalsIgnoreCase(getInitParameter("soa.parser"));
+		// get any async timeout
+		if (getInitParameter("soa.asyncTimeout") != null) _asyncTimeout = Long.parseLong(getInitParameter("soa.asyncTimeout"));
+		// "virtual" runs the operations on virtual threads (or a thread pool where there are none) rather than the container's
+		if ("virtual".equalsIgnoreCase(getInitParameter("soa.executor"))) {
+			// the limits of the pool used instead where there are no virtual threads
+			int maxThreads = getInitParameter("soa.executorMaxThreads") == null ? WSFactory.EXECUTOR_MAX_THREADS : Integer.parseInt(getInitParameter("soa.executorMaxThreads"));
+			int queueSize = getInitParameter("soa.executorQueueSize") == null ? WSFactory.EXECUTOR_QUEUE_SIZE : Integer.parseInt(getInitParameter("soa.executorQueueSize"));
+			_executor = WSFactory.newVirtualThreadExecutor(maxThreads, queueSize);
+			getWSFactory().setExecutor(_executor);
+		}
+		// get any compression settings
+		if (getInitParameter("soa.compressionLevel") != null) _compressionLevel = Integer.parseInt(getInitParameter("soa.compressionLevel"));
+		if (getInitParameter("soa.compressionMinSize") != null) _compressionMinSize = Integer.parseInt(getInitParameter("soa.compressionMinSize"));
+		// get any mtom limits
+		if (getInitParameter("soa.mtomMemoryThreshold") != null) _mtomMemoryThreshold = Integer.parseInt(getInitParameter("soa.mtomMemoryThreshold"));
+		if (getInitParameter("soa.mtomMaxSize") != null) _mtomMaxSize = Long.parseLong(getInitParameter("soa.mtomMaxSize"));
+		// get any batch limits
+		if (getInitParameter("soa.batchMaxCalls") != null || getInitParameter("soa.batchParallelism") != null) {
+			int maxCalls = getInitParameter("soa.batchMaxCalls") == null ? getWSFactory().getBatchMaxCalls() : Integer.parseInt(getInitParameter("soa.batchMaxCalls"));
+			int parallelism = getInitParameter("soa.batchParallelism") == null ? getWSFactory().getBatchParallelism() : Integer.parseInt(getInitParameter("soa.batchParallelism"));
+			getWSFactory().setBatchLimit(maxCalls, parallelism);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		// stop any executor we made
+		if (_executor != null) {
+			if (_wsFactory.getExecutor() == _executor) _wsFactory.setExecutor(null);
+			_executor.shutdown();
+		}
+		// and any the factory made
+		if (_wsFactory != null) _wsFactory.shutdown();
+	}
+
+	private static float getQuality(String[] parameters) {
+		
+		// the q parameter of a part of an Accept header, split at its semicolons, 1 if it doesn't have one
+		
+		for (int i = 1; i < parameters.length; i++) {
+			
+			String parameter = parameters[i].trim();
+			
+			if (parameter.startsWith("q=")) {
+				try {
+					return Float.parseFloat(parameter.substring(2));
+				} catch (NumberFormatException ex) {
+					return 0;
+				}
+			}
+			
+		}
+		
+		return 1;
+		
+	}
+	
+	private String getResponseEncoding(HttpServletRequest request) {
+		
+		// gzip, or deflate, if the client accepts them, otherwise null for no compression
+		
+		if (_compressionLevel == 0) return null;
+		
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		
+		if (acceptEncoding == null) return null;
+		
+		float gzip = -1, deflate = -1, any = -1;
+		
+		for (String part : acceptEncoding.split(",")) {
+			
+			String[] parameters = part.split(";");
+			
+			String coding = parameters[0].trim().toLowerCase();
+			
+			float quality = getQuality(parameters);
+						
+			if (coding.equals("gzip") || coding.equals("x-gzip")) gzip = quality;
+			else if (coding.equals("deflate")) deflate = quality;
+			else if (coding.equals("*")) any = quality;
+			
+		}
+		
+		// anything not mentioned gets the quality of *
+		if (gzip < 0) gzip = any;
+		if (deflate < 0) deflate = any;
+		
+		if (gzip > 0 && gzip >= deflate) return "gzip";
+		if (deflate > 0) return "deflate";
+		
+		return null;
+		
+	}
+	
+	private static boolean isFastInfoset(String contentType) {
+		
+		if (contentType == null) return false;
+		
+		contentType = contentType.trim().toLowerCase();
+		
+		return contentType.startsWith(WSFactory.FAST_INFOSET_CONTENT_TYPE) || contentType.startsWith(WSFactory.SOAP_FAST_INFOSET_CONTENT_TYPE);
+		
+	}
+	
+	private static String getFastInfosetResponseType(HttpServletRequest request) {
+		
+		// the Fast Infoset content type the client accepts, if it's said so, and if we have Fast Infoset, otherwise null for text
+		
+		String accept = request.getHeader("Accept");
+		
+		if (accept == null || !WSFactory.isFastInfosetSupported()) return null;
+		
+		for (String part : accept.split(",")) {
+			
+			String[] parameters = part.split(";");
+			
+			String type = parameters[0].trim().toLowerCase();
+			
+			// anything with a zero quality is not acceptable
+			if ((type.equals(WSFactory.SOAP_FAST_INFOSET_CONTENT_TYPE) || type.equals(WSFactory.FAST_INFOSET_CONTENT_TYPE)) && getQuality(parameters) > 0) return type;
+			
+		}
+		
+		return null;
+		
+	}
+	
+	private static boolean isMTOM(String contentType) {
+		
+		return contentType != null && contentType.trim().toLowerCase().startsWith(WSFactory.MTOM_CONTENT_TYPE);
+		
+	}
+	
+	private static boolean isMTOMAccepted(HttpServletRequest request) {
+		
+		// whether the client has said it takes mtom responses
+		
+		String accept = request.getHeader("Accept");
+		
+		if (accept == null) return false;
+		
+		for (String part : accept.split(",")) {
+			
+			String[] parameters = part.split(";");
+			
+			if (parameters[0].trim().toLowerCase().equals(WSFactory.MTOM_CONTENT_TYPE) && getQuality(parameters) > 0) return true;
+			
+		}
+		
+		return false;
+		
+	}
+	
+	private OutputStream getOutputStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		
+		// the response output stream, compressing if the client accepts it
+		
+		if (_compressionLevel != 0) response.addHeader("Vary", "Accept-Encoding");
+		
+		String encoding = getResponseEncoding(request);
+		
+		if (encoding == null) return response.getOutputStream();
+		
+		return new CompressingOutputStream(response, response.getOutputStream(), encoding, _compressionLevel, _compressionMinSize);
+		
+	}
+	
+	private InputStream getInputStream(HttpServletRequest request) throws IOException {
+		
+		// the request input stream, uncompressing it if the client compressed it
+		
+		String encoding = request.getHeader("Content-Encoding");
+		
+		if (encoding == null || encoding.trim().length() == 0 || "identity".equalsIgnoreCase(encoding.trim())) return request.getInputStream();
+		
+		if ("gzip".equalsIgnoreCase(encoding.trim()) || "x-gzip".equalsIgnoreCase(encoding.trim())) return new GZIPInputStream(request.getInputStream(), 8192);
+		
+		if ("deflate".equalsIgnoreCase(encoding.trim())) return new InflaterInputStream(request.getInputStream());
+		
+		return null;
+		
+	}
+
+	private void writeError(HttpServletResponse response, OutputStream out, Exception e) throws IOException {
+		
+		// drop anything not yet sent (this has no effect once committed)
+		if (!response.isCommitted()) {
+			if (out instanceof CompressingOutputStream) ((CompressingOutputStream) out).reset(); else response.resetBuffer();
+			response.setContentType("text/plain");
+		}
+		
+		out.write(("Error" + e.getMessage()).getBytes("UTF-8"));
+		
+		_logger.error("Error writing SOAP response", e);
+	
+	}
+	
+	private static long getLogTailStart(FileChannel channel, long end, int lines) throws IOException {
+		
+		// reads back from the end a block at a time until it has passed the line ends asked for, or the most we'd send
+		
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		
+		long position = end;
+		
+		int count = 0;
+		
+		while (lines > 0 && position > 0 && end - position < LOG_MAX_LENGTH) {
+			
+			int length = (int) Math.min(buffer.capacity(), position);
+			
+			position -= length;
+			
+			buffer.clear();
+			buffer.limit(length);
+			
+			while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0);
+			
+			for (int i = length - 1; i >= 0; i--) {
+				
+				// a line end right at the end finishes the last line rather than starting another
+				if (buffer.get(i) == '\n' && position + i < end - 1 && ++count == lines) return position + i + 1;
+				
+			}
+			
+		}
+		
+		return lines > 0 ? Math.max(position, end - LOG_MAX_LENGTH) : end;
+		
+	}
+	
+	private void writeLog(HttpServletRequest request, HttpServletResponse response) throws Exception {
+		
+		// only the part of the log asked for is read, the last lines by default, or from a byte offset, which is also how it's followed,
+		// by asking again from the offset in the header of the last response
+		
+		String logPath = System.getProperty("logPath");
+		
+		if (logPath == null) throw new Exception("Log path has not been set");
+		
+		FileChannel channel = FileChannel.open(Paths.get(logPath), StandardOpenOption.READ);
+		
+		try {
+			
+			// anything logged from now on is left for the next request
+			long size = channel.size();
+			
+			long start, end;
+			
+			if (request.getParameter("offset") != null) {
+				
+				start = Long.parseLong(request.getParameter("offset"));
+				
+				// a log smaller than the offset has been rolled over, so start at the beginning of the new one
+				if (start < 0 || start > size) start = 0;
+				
+				end = request.getParameter("length") == null ? size : Math.max(start, Math.min(size, start + Long.parseLong(request.getParameter("length"))));
+				
+			} else {
+				
+				end = size;
+				
+				start = getLogTailStart(channel, end, request.getParameter("tail") == null ? LOG_TAIL_LINES : Integer.parseInt(request.getParameter("tail")));
+				
+			}
+			
+			// a follower that's a long way behind catches up over several requests
+			end = Math.min(end, start + LOG_MAX_LENGTH);
+			
+			response.setContentType("text/plain");
+			response.addHeader("expires", "-1");
+			response.addHeader("Pragma", "no-cache");
+			response.setHeader("X-Log-Offset", Long.toString(end));
+			response.setHeader("X-Log-Size", Long.toString(size));
+			response.setContentLength((int) (end - start));
+			
+			ServletOutputStream out = response.getOutputStream();
+			
+			WritableByteChannel target = Channels.newChannel(out);
+			
+			// positional, so nothing before the start is read, and straight to the socket where the container's stream allows it
+			for (long position = start; position < end;) {
+				
+				long transferred = channel.transferTo(position, end - position, target);
+				
+				if (transferred <= 0) break;
+				
+				position += transferred;
+				
+			}
+			
+			out.flush();
+			
+		} finally {
+			
+			channel.close();
+			
+		}
+		
+	}
+	
+	private void writeAsyncResponse(AsyncContext asyncContext, String soapOperation, Object responseObject, boolean fastInfoset, String mtomBoundary) {
+		
+		HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+		
+		try {
+			
+			OutputStream out = getOutputStream((HttpServletRequest) asyncContext.getRequest(), response);
+			
+			try {
+				
+				_wsFactory.writeSOAPResponse(soapOperation, responseObject, out, fastInfoset, mtomBoundary);
+			
+			} catch (SOAPException e) {
+				
+				writeError(response, out, e);
+			
+			}
+			
+			out.close();
+		
+		} catch (IOException e) {
+			
+			// most likely the client has gone
+			_logger.error("Error writing SOAP response", e);
+		
+		} finally {
+			
+			asyncContext.complete();
+		
+		}
+	
+	}
 					
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 				
@@ -99,43 +587,54 @@ public class WSGateway extends HttpServlet {
 				
 				response.addHeader("expires", "-1");
 				response.addHeader("Pragma", "no-cache");				
-				
-				PrintWriter out = response.getWriter();
-						
+										
 				URL url = new URL(request.getScheme(), request.getServerName(), request.getServerPort(), request.getRequestURI());
 				
-				response.setContentType("text/xml");
+				WSDL wsdl = _wsFactory.getCachedWSDL(request.getParameter("wsdl"),url.toString());
 				
-				Document wsdl = _wsFactory.getWSDL(request.getParameter("wsdl"),url.toString());
+				// only wsdls big enough are compressed, and they have their own tag
+				String encoding = wsdl.getBytes().length > _compressionMinSize ? getResponseEncoding(request) : null;
 				
-				DOMSource ds = new DOMSource(wsdl);
+				// clients must revalidate, but only get the body again if it has changed
+				response.setHeader("ETag", wsdl.getETag(encoding));
 				
-				out.print(WSFactory.getXMLString(ds));
+				if (wsdl.matches(request.getHeader("If-None-Match"), encoding)) {
+					
+					// as the full response would have, so caches keep the encodings apart
+					if (_compressionLevel != 0) response.addHeader("Vary", "Accept-Encoding");
+					
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					
+				} else {
 				
-			} else if (request.getParameter("log") != null) {
-								
-				response.setContentType("text/plain");
+					// the bytes were made in UTF-8, which clients shouldn't have to guess
+					response.setContentType("text/xml; charset=UTF-8");
+					
+					OutputStream out = getOutputStream(request, response);
+					
+					// the length is set as it's written, compressed or not
+					if (!(out instanceof CompressingOutputStream)) response.setContentLength(wsdl.getBytes().length);
+					
+					out.write(wsdl.getBytes());
+					
+					out.close();
+					
+				}
+				
+			} else if (request.getParameter("metrics") != null) {
+				
+				// in the Prometheus text format
+				response.setContentType("text/plain; version=0.0.4");
 				response.addHeader("expires", "-1");
 				response.addHeader("Pragma", "no-cache");
-								
-				byte[] buf = new byte[100];
-				int length = 0;
 				
-				String logPath = System.getProperty("logPath");
+				PrintWriter out = response.getWriter();
 				
-				if (logPath == null) throw new Exception("Log path has not been set");
+				out.print(_wsFactory.getMetrics());
 				
-				FileInputStream fs = new FileInputStream(logPath);
+			} else if (request.getParameter("log") != null) {
 				
-		        DataInputStream in = new DataInputStream(fs);
-
-		        ServletOutputStream out = response.getOutputStream();
-		        
-		        while ((in != null) && ((length = in.read(buf)) != -1)) out.write(buf, 0, length);
-		        		        
-		        in.close();
-		        out.flush();
-		        out.close();
+				writeLog(request, response);
 							
 			} else {
 				
@@ -187,38 +686,238 @@ public class WSGateway extends HttpServlet {
 		
 		_logger.debug("POST request from " + request.getLocalAddr() + " " + request.getQueryString() + headers);
 		
-		PrintWriter out = response.getWriter();
-						
-		try {
+		final InputStream in = getInputStream(request);
+		
+		if (in == null) {
+			
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Content-Encoding " + request.getHeader("Content-Encoding") + " is not supported");
+			
+			return;
+			
+		}
+		
+		// binary xml is only read and written by the streaming parser
+		final boolean fastInfosetRequest = isFastInfoset(request.getContentType());
+		
+		if (fastInfosetRequest && (_domParser || !WSFactory.isFastInfosetSupported())) {
+			
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Fast Infoset is not supported");
+			
+			return;
+			
+		}
+		
+		// as are mtom attachments
+		final boolean mtomRequest = isMTOM(request.getContentType());
+		
+		if (mtomRequest && _domParser) {
+			
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "MTOM is not supported");
+			
+			return;
+			
+		}
 		
-			response.setContentType("text/xml");
+		if (_domParser) {
+		
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(getOutputStream(request, response), "UTF-8"));
+							
+			try {
+			
+				response.setContentType("text/xml");
+				response.addHeader("expires", "-1");
+				response.addHeader("Pragma", "no-cache");
+				
+				MessageFactory messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);		    
+									
+			    SOAPMessage soapRequest = messageFactory.createMessage(null, in);
+			    
+			    String soapOperation = request.getHeader("soapaction").replace("\"", "");
+							
+				DOMSource responseSource = new DOMSource(_wsFactory.getSOAPResponse(soapOperation, soapRequest, getServletContext()).getSOAPPart().getEnvelope());
+						
+				out.println(WSFactory.getXMLString(responseSource));
+							
+			} catch (SOAPException e) {
+				
+				response.setContentType("text/plain");
+				
+				out.println("Error" + e.getMessage());
+				
+				_logger.error(e.getStackTrace());
+							
+				e.printStackTrace(System.out);
+				
+			}
+			
+			out.close();
+			
+		} else {
+			
+			// the parts of an mtom request are read now, its envelope is then parsed as any other and its attachments bound where they were included
+			final WSFactory.Attachments attachments;
+			
+			try {
+				
+				// big parts go in the container's temporary directory for the web application
+				attachments = mtomRequest ? new WSFactory.Attachments(in, request.getContentType(), (File) getServletContext().getAttribute(ServletContext.TEMPDIR), _mtomMemoryThreshold, _mtomMaxSize) : null;
+				
+			} catch (IOException e) {
+				
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+				
+				return;
+				
+			}
+			
+			final InputStream soapRequest = mtomRequest ? attachments.getRootPart() : in;
+			
+			// Fast Infoset if the client accepts it, otherwise mtom if it sent or accepts it, otherwise text
+			String fastInfosetType = getFastInfosetResponseType(request);
+			
+			final boolean fastInfosetResponse = fastInfosetType != null;
+			
+			final String mtomBoundary = !fastInfosetResponse && (mtomRequest || isMTOMAccepted(request)) ? "MIMEBoundary_" + UUID.randomUUID() : null;
+			
+			response.setContentType(fastInfosetResponse ? fastInfosetType : mtomBoundary != null ? WSFactory.getMTOMContentType(mtomBoundary) : "text/xml");
 			response.addHeader("expires", "-1");
 			response.addHeader("Pragma", "no-cache");
+			response.addHeader("Vary", "Accept");
+			
+			final String soapOperation = request.getHeader("soapaction").replace("\"", "");
 			
-			MessageFactory messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_1_PROTOCOL);		    
+			if (request.isAsyncSupported() && _wsFactory.isAsyncOperation(soapOperation)) {
+				
+				// the request is read now but this thread is released while the operation makes its response
+				final AsyncContext asyncContext = request.startAsync();
+				
+				if (_asyncTimeout > 0) asyncContext.setTimeout(_asyncTimeout);
+				
+				// whichever of the response or the timeout is first gets to write
+				final AtomicBoolean responded = new AtomicBoolean();
+				
+				asyncContext.addListener(new AsyncListener() {
+					
+					@Override
+					public void onTimeout(AsyncEvent event) throws IOException {
+						
+						if (responded.compareAndSet(false, true)) {
+							
+							Object fault = null;
+							
+							try {
+								
+								fault = _wsFactory.getSOAPFault(new Exception("Operation " + soapOperation + " did not respond in time"));
 								
-		    SOAPMessage soapRequest = messageFactory.createMessage(null, request.getInputStream());		    	
-		    
-		    String soapOperation = request.getHeader("soapaction").replace("\"", "");
+							} catch (SOAPException e) {
+								
+								_logger.error("Error creating SOAP fault", e);
+								
+							}
+							
+							writeAsyncResponse(asyncContext, soapOperation, fault, fastInfosetResponse, mtomBoundary);
+							
+						}
+						
+					}
+					
+					@Override
+					public void onError(AsyncEvent event) throws IOException {
+						
+						// stop the response being written once the container has given up on the request, which stays open until we complete it
+						if (responded.compareAndSet(false, true)) {
+							
+							if (asyncContext.getResponse().isCommitted()) {
+								
+								// part of a response has gone so a fault can't follow it
+								asyncContext.complete();
+								
+							} else {
+								
+								Object fault = null;
+								
+								try {
+									
+									fault = _wsFactory.getSOAPFault(new Exception("Operation " + soapOperation + " failed: " + event.getThrowable()));
+									
+								} catch (SOAPException e) {
+									
+									_logger.error("Error creating SOAP fault", e);
+									
+								}
+								
+								// this completes the request even if the fault can't be written
+								writeAsyncResponse(asyncContext, soapOperation, fault, fastInfosetResponse, mtomBoundary);
+								
+							}
+							
+						}
+						
+					}
+					
+					@Override
+					public void onComplete(AsyncEvent event) throws IOException {
+						
+						// however the request ended, its response has been written so any spooled parts can go
+						if (attachments != null) attachments.close();
+						
+					}
+					
+					@Override
+					public void onStartAsync(AsyncEvent event) throws IOException {}
+					
+				});
+				
+				try {
+				
+					_wsFactory.getSOAPResponseAsync(soapOperation, soapRequest, getServletContext(), fastInfosetRequest, attachments).whenComplete((responseObject, ex) -> {
+						
+						// if the stage failed we have nothing to write, which becomes a fault
+						if (responded.compareAndSet(false, true)) writeAsyncResponse(asyncContext, soapOperation, ex == null ? responseObject : null, fastInfosetResponse, mtomBoundary);
 						
-			DOMSource responseSource = new DOMSource(_wsFactory.getSOAPResponse(soapOperation, soapRequest, getServletContext()).getSOAPPart().getEnvelope());
+					});
+				
+				} catch (SOAPException e) {
 					
-			out.println(WSFactory.getXMLString(responseSource));
+					if (responded.compareAndSet(false, true)) {
+						
+						OutputStream out = getOutputStream(request, response);
+						
+						writeError(response, out, e);
+						
+						out.close();
 						
-		} catch (SOAPException e) {
+						asyncContext.complete();
+						
+					}
+					
+				}
+				
+				return;
+				
+			}
 			
-			response.setContentType("text/plain");
+			OutputStream out = getOutputStream(request, response);
 			
-			out.println("Error" + e.getMessage());
+			try {
+				
+				// the response is written as it is marshalled, and compressed as it is written
+				_wsFactory.writeSOAPResponse(soapOperation, soapRequest, getServletContext(), out, fastInfosetRequest, fastInfosetResponse, attachments, mtomBoundary);
+				
+			} catch (SOAPException e) {
+				
+				writeError(response, out, e);
+				
+			} finally {
+				
+				if (attachments != null) attachments.close();
+				
+			}
 			
-			_logger.error(e.getStackTrace());
-						
-			e.printStackTrace(System.out);
+			out.close();
 			
 		}
 		
-		out.close();
-		
 	}
 
 }